@@ -0,0 +1,21 @@
+package net.andylizi.haproxydetector;
+
+/**
+ * {@link CIDR#contains(java.net.InetAddress)} 的按前缀比较，{@code src/main/java17} 中有 Java 17 版本。
+ */
+final class AddressPrefix {
+    /**
+     * @param network 已按前缀清零主机位的地址
+     * @param other   与 {@code network} 等长的地址
+     */
+    static boolean matches(byte[] network, int prefix, byte[] other) {
+        int full = prefix / Byte.SIZE;
+        for (int i = 0; i < full; i++) {
+            if (network[i] != other[i]) return false;
+        }
+        int rest = prefix % Byte.SIZE;
+        return rest == 0 || ((network[full] ^ other[full]) & (0xFF00 >>> rest) & 0xFF) == 0;
+    }
+
+    private AddressPrefix() {throw new AssertionError();}
+}
@@ -0,0 +1,380 @@
+package net.andylizi.haproxydetector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jetbrains.annotations.Nullable;
+
+import static net.andylizi.haproxydetector.BlocklistCompiler.*;
+
+/**
+ * 真实客户端地址黑名单，面向数百万条目的大型列表。
+ * <p>
+ * 区间数据存放在内存映射的索引文件中（见 {@link BlocklistCompiler}），堆内只保留一个 Bloom 过滤器
+ * 与两个 65536 位的宽区间位图：IPv4 以 /24、IPv6 以 /48 为键放入 Bloom 过滤器，
+ * 跨度更大的区间只在位图中标记其 /16（IPv6 为前 16 位）。绝大多数未被封禁的地址在过滤器处即可排除，
+ * 其余地址再在映射文件上二分查找。
+ * <p>
+ * 源文件变化后由后台线程重新编译。重建前先切换到不带过滤器的旧索引并释放旧过滤器，
+ * 因此堆内任何时刻至多只有一个过滤器。
+ */
+public final class Blocklist implements Closeable {
+    /** 跨度超过这么多个 /24（或 /48）的区间只记入宽区间位图 */
+    private static final int MAX_FILTER_KEYS_PER_RANGE = 256;
+    private static final long V4_KEY_TAG = 1L << 63;
+
+    @Nullable
+    private static volatile Blocklist active;
+    @Nullable
+    private static Thread watcher;
+    private static final LongAdder blocked = new LongAdder();
+
+    public static synchronized void start(Logger logger, Path dataDirectory) throws IOException {
+        stop();
+        DetectorConfig config = DetectorConfig.config;
+        String path = config.getBlocklistPath();
+        if (path == null) return;
+
+        Path source = dataDirectory.resolve(path);
+        Path index = source.resolveSibling(source.getFileName() + ".idx");
+        if (!Files.exists(source)) {
+            logger.warning("黑名单文件 " + source + " 不存在，黑名单已禁用");
+            return;
+        }
+        active = open(logger, source, index, true);
+        logger.info("已加载黑名单 " + source + "（" + active.v4Count + " 个 IPv4 区间，" + active.v6Count + " 个 IPv6 区间）");
+
+        long interval = config.getBlocklistCheckInterval();
+        if (interval > 0) {
+            Thread t = new Thread(() -> watch(logger, source, index, interval), "HAProxyDetector Blocklist Watcher");
+            t.setDaemon(true);
+            t.start();
+            watcher = t;
+        }
+    }
+
+    public static synchronized void stop() {
+        Thread t = watcher;
+        if (t != null) {
+            watcher = null;
+            t.interrupt();
+        }
+        Blocklist b = active;
+        if (b != null) {
+            active = null;
+            b.close();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return active != null;
+    }
+
+    /**
+     * 检查真实客户端地址是否在黑名单中。未启用黑名单时始终返回 {@code false}。
+     */
+    public static boolean check(InetAddress address) {
+        Blocklist b = active;
+        if (b == null || !b.contains(address)) return false;
+        blocked.increment();
+        return true;
+    }
+
+    /**
+     * 与 {@link #check(InetAddress)} 相同，地址取自 {@link ProxyHeaderParser} 的解析结果，不创建 {@link InetAddress}。
+     */
+    public static boolean check(ProxyHeader header) {
+        Blocklist b = active;
+        if (b == null || !header.hasAddresses() || !b.contains(header)) return false;
+        blocked.increment();
+        return true;
+    }
+
+    public static List<String> report() {
+        Blocklist b = active;
+        if (b == null) return new ArrayList<>(0);
+        List<String> lines = new ArrayList<>(1);
+        lines.add("黑名单：" + b.v4Count + " 个 IPv4 区间，" + b.v6Count + " 个 IPv6 区间，已拦截 " + blocked.sum() + " 个连接");
+        return lines;
+    }
+
+    static Blocklist open(Logger logger, Path source, Path index, boolean reuseIndex) throws IOException {
+        if (!reuseIndex || !isUpToDate(source, index)) {
+            int invalid = BlocklistCompiler.compile(source, index);
+            if (invalid > 0) {
+                logger.warning("黑名单 " + source + " 中有 " + invalid + " 行无效，已忽略");
+            }
+        }
+        return new Blocklist(index).buildFilter();
+    }
+
+    private static boolean isUpToDate(Path source, Path index) throws IOException {
+        if (!Files.isRegularFile(index)) return false;
+        try (FileChannel ch = FileChannel.open(index, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_SIZE) return false;
+            MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            return header.getLong(0) == MAGIC
+                    && header.getLong(OFFSET_SOURCE_SIZE) == Files.size(source)
+                    && header.getLong(OFFSET_SOURCE_MODIFIED) == Files.getLastModifiedTime(source).toMillis();
+        }
+    }
+
+    private static void watch(Logger logger, Path source, Path index, long intervalSeconds) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                TimeUnit.SECONDS.sleep(intervalSeconds);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Blocklist current = active;
+            if (current == null) return;
+            try {
+                if (!Files.exists(source) || isUpToDate(source, index)) continue;
+
+                // drop the old filter before building the new one; lookups fall back to
+                // binary search on the old index in the meantime
+                Blocklist old = current.withoutFilter();
+                current = null;
+                synchronized (Blocklist.class) {
+                    if (Thread.currentThread().isInterrupted()) return;
+                    active = old;
+                }
+                Blocklist next = open(logger, source, index, false);
+                synchronized (Blocklist.class) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        next.close();
+                        return;
+                    }
+                    active = next;
+                }
+                old.close();
+                logger.info("已重新加载黑名单（" + next.v4Count + " 个 IPv4 区间，" + next.v6Count + " 个 IPv6 区间）");
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "重新加载黑名单失败，继续使用旧数据", e);
+            }
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int v4Count;
+    private final int v6Count;
+    private final int v6Base;
+    @Nullable
+    private final long[] filter;
+    private final int filterMask;
+    @Nullable
+    private final long[] wide4;
+    @Nullable
+    private final long[] wide6;
+
+    Blocklist(Path index) throws IOException {
+        this.channel = FileChannel.open(index, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("黑名单索引文件已损坏：" + index);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            this.v4Count = buffer.getInt(OFFSET_V4_COUNT);
+            this.v6Count = buffer.getInt(OFFSET_V6_COUNT);
+            long v6Base = HEADER_SIZE + (long) v4Count * V4_RECORD;
+            if (buffer.getLong(0) != MAGIC || v4Count < 0 || v6Count < 0
+                    || v6Base + (long) v6Count * V6_RECORD != size) {
+                throw new IOException("黑名单索引文件已损坏：" + index);
+            }
+            this.v6Base = (int) v6Base;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.filter = null;
+        this.filterMask = 0;
+        this.wide4 = null;
+        this.wide6 = null;
+    }
+
+    private Blocklist(Blocklist source, @Nullable long[] filter, @Nullable long[] wide4, @Nullable long[] wide6) {
+        this.channel = source.channel;
+        this.buffer = source.buffer;
+        this.v4Count = source.v4Count;
+        this.v6Count = source.v6Count;
+        this.v6Base = source.v6Base;
+        this.filter = filter;
+        this.filterMask = filter == null ? 0 : filter.length * 64 - 1;
+        this.wide4 = wide4;
+        this.wide6 = wide6;
+    }
+
+    /**
+     * 返回共享同一映射、但不带过滤器的视图，所有查询直接走二分查找。
+     */
+    Blocklist withoutFilter() {
+        return new Blocklist(this, null, null, null);
+    }
+
+    /**
+     * 遍历映射的区间构建过滤器，返回带过滤器的新视图。
+     */
+    private Blocklist buildFilter() {
+        long[] wide4 = new long[1024];
+        long[] wide6 = new long[1024];
+        long keys = 0;
+        for (int i = 0; i < v4Count; i++) {
+            int off = HEADER_SIZE + i * V4_RECORD;
+            long start = buffer.getInt(off) & 0xFFFFFFFFL, end = buffer.getInt(off + 4) & 0xFFFFFFFFL;
+            long n = (end >>> 8) - (start >>> 8) + 1;
+            if (n <= MAX_FILTER_KEYS_PER_RANGE) keys += n;
+        }
+        for (int i = 0; i < v6Count; i++) {
+            int off = v6Base + i * V6_RECORD;
+            long n = (buffer.getLong(off + 16) >>> 16) - (buffer.getLong(off) >>> 16);
+            if (Long.compareUnsigned(n, MAX_FILTER_KEYS_PER_RANGE) < 0) keys += n + 1;
+        }
+
+        // ~10 bits per key, roughly 1% false positives with 7 probes
+        long bits = Math.max(64, Long.highestOneBit(Math.max(1, keys * 10) - 1) << 1);
+        long[] filter = new long[(int) Math.min(bits / 64, 1 << 22)]; // at most 32 MiB
+        int mask = filter.length * 64 - 1;
+
+        for (int i = 0; i < v4Count; i++) {
+            int off = HEADER_SIZE + i * V4_RECORD;
+            long start = buffer.getInt(off) & 0xFFFFFFFFL, end = buffer.getInt(off + 4) & 0xFFFFFFFFL;
+            if ((end >>> 8) - (start >>> 8) + 1 <= MAX_FILTER_KEYS_PER_RANGE) {
+                for (long k = start >>> 8; k <= end >>> 8; k++) put(filter, mask, k | V4_KEY_TAG);
+            } else {
+                for (long k = start >>> 16; k <= end >>> 16; k++) wide4[(int) (k >>> 6)] |= 1L << k;
+            }
+        }
+        for (int i = 0; i < v6Count; i++) {
+            int off = v6Base + i * V6_RECORD;
+            long startHi = buffer.getLong(off), endHi = buffer.getLong(off + 16);
+            long first = startHi >>> 16, last = endHi >>> 16;
+            if (Long.compareUnsigned(last - first, MAX_FILTER_KEYS_PER_RANGE) < 0) {
+                for (long k = first; ; k++) {
+                    put(filter, mask, k);
+                    if (k == last) break;
+                }
+            } else {
+                for (long k = startHi >>> 48; k <= endHi >>> 48; k++) wide6[(int) (k >>> 6)] |= 1L << k;
+            }
+        }
+        return new Blocklist(this, filter, wide4, wide6);
+    }
+
+    public boolean contains(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            return contains4((int) toLong(bytes, 0, 4));
+        } else {
+            return contains6(toLong(bytes, 0, 8), toLong(bytes, 8, 8));
+        }
+    }
+
+    /**
+     * 检查 {@link ProxyHeader} 中的来源地址，IPv4 映射的 IPv6 地址按 IPv4 处理，与 {@link InetAddress} 一致。
+     */
+    public boolean contains(ProxyHeader header) {
+        long hi = header.getSourceHigh(), lo = header.getSourceLow();
+        if (header.getFamily() == ProxyHeader.FAMILY_INET || (hi == 0 && lo >>> 32 == 0xFFFFL)) {
+            return contains4((int) lo);
+        }
+        return contains6(hi, lo);
+    }
+
+    private boolean contains4(int ip) {
+        if (filter != null && (wide4[ip >>> 22] & 1L << (ip >>> 16)) == 0
+                && !mightContain(filter, filterMask, (ip >>> 8) | V4_KEY_TAG)) {
+            return false;
+        }
+        return search4(ip);
+    }
+
+    private boolean contains6(long hi, long lo) {
+        if (filter != null && (wide6[(int) (hi >>> 54)] & 1L << (hi >>> 48)) == 0
+                && !mightContain(filter, filterMask, hi >>> 16)) {
+            return false;
+        }
+        return search6(hi, lo);
+    }
+
+    private boolean search4(int ip) {
+        int lo = 0, hi = v4Count - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Integer.compareUnsigned(buffer.getInt(HEADER_SIZE + mid * V4_RECORD), ip) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found >= 0 && Integer.compareUnsigned(ip, buffer.getInt(HEADER_SIZE + found * V4_RECORD + 4)) <= 0;
+    }
+
+    private boolean search6(long ipHi, long ipLo) {
+        int lo = 0, hi = v6Count - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int off = v6Base + mid * V6_RECORD;
+            if (compare128(buffer.getLong(off), buffer.getLong(off + 8), ipHi, ipLo) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found < 0) return false;
+        int off = v6Base + found * V6_RECORD;
+        return compare128(ipHi, ipLo, buffer.getLong(off + 16), buffer.getLong(off + 24)) <= 0;
+    }
+
+    private static final int PROBES = 7;
+
+    private static void put(long[] filter, int mask, long key) {
+        long h = mix(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            filter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(long[] filter, int mask, long key) {
+        long h = mix(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((filter[bit >>> 6] & 1L << bit) == 0) return false;
+        }
+        return true;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
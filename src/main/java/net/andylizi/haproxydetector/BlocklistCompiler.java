@@ -0,0 +1,229 @@
+package net.andylizi.haproxydetector;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import io.netty.util.NetUtil;
+
+/**
+ * 将文本格式的黑名单（每行一个 IP 或 CIDR）编译为 {@link Blocklist} 使用的二进制索引文件。
+ * <p>
+ * 索引布局：32 字节头部（魔数、源文件大小、源文件修改时间、IPv4 区间数、IPv6 区间数），
+ * 之后是按起始地址排序且互不重叠的 IPv4 区间（起止各 4 字节），最后是 IPv6 区间（起止各 16 字节）。
+ * 编译期间只使用基本类型数组，完成后即可丢弃。
+ */
+final class BlocklistCompiler {
+    static final long MAGIC = 0x48415044_424C4B31L; // "HAPDBLK1"
+    static final int HEADER_SIZE = 32;
+    static final int OFFSET_SOURCE_SIZE = 8;
+    static final int OFFSET_SOURCE_MODIFIED = 16;
+    static final int OFFSET_V4_COUNT = 24;
+    static final int OFFSET_V6_COUNT = 28;
+    static final int V4_RECORD = 8;
+    static final int V6_RECORD = 32;
+
+    /** 打包的 IPv4 区间，高 32 位为起始地址，低 32 位为结束地址，均按无符号处理 */
+    private long[] v4 = new long[1024];
+    private int v4Count;
+    /** 每 4 个元素为一个 IPv6 区间：起始高位、起始低位、结束高位、结束低位 */
+    private long[] v6 = new long[256];
+    private int v6Count;
+    private int invalid;
+
+    /**
+     * 编译 {@code source} 并原子地替换 {@code index}。
+     *
+     * @return 被忽略的无效行数
+     */
+    static int compile(Path source, Path index) throws IOException {
+        BlocklistCompiler compiler = new BlocklistCompiler();
+        long size = Files.size(source);
+        long modified = Files.getLastModifiedTime(source).toMillis();
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                compiler.add(line);
+            }
+        }
+        compiler.sortAndMerge();
+
+        Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+            out.writeLong(MAGIC);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeInt(compiler.v4Count);
+            out.writeInt(compiler.v6Count);
+            for (int i = 0; i < compiler.v4Count; i++) {
+                out.writeLong(compiler.v4[i]);
+            }
+            for (int i = 0; i < compiler.v6Count * 4; i++) {
+                out.writeLong(compiler.v6[i]);
+            }
+        }
+        Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return compiler.invalid;
+    }
+
+    void add(String line) {
+        int comment = line.indexOf('#');
+        if (comment >= 0) line = line.substring(0, comment);
+        line = line.trim();
+        if (line.isEmpty()) return;
+
+        int prefix = -1;
+        int slash = line.indexOf('/');
+        if (slash >= 0) {
+            try {
+                prefix = Integer.parseInt(line.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                invalid++;
+                return;
+            }
+            line = line.substring(0, slash);
+        }
+
+        byte[] bytes = NetUtil.createByteArrayFromIpAddressString(line);
+        if (bytes == null) {
+            invalid++;
+            return;
+        }
+        if (bytes.length == 16 && isV4Mapped(bytes)) {
+            bytes = Arrays.copyOfRange(bytes, 12, 16);
+            if (prefix >= 0) prefix -= 96;
+        }
+
+        int bits = bytes.length * 8;
+        if (prefix < 0) prefix = bits;
+        if (prefix < 0 || prefix > bits) {
+            invalid++;
+            return;
+        }
+
+        if (bytes.length == 4) {
+            long ip = toLong(bytes, 0, 4);
+            long mask = prefix == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+            long start = ip & mask;
+            long end = start | (~mask & 0xFFFFFFFFL);
+            if (v4Count == v4.length) v4 = Arrays.copyOf(v4, v4.length * 2);
+            v4[v4Count++] = start << 32 | end;
+        } else {
+            long hi = toLong(bytes, 0, 8);
+            long lo = toLong(bytes, 8, 8);
+            long hiMask = prefix == 0 ? 0 : prefix >= 64 ? -1L : -1L << (64 - prefix);
+            long loMask = prefix <= 64 ? 0 : prefix == 128 ? -1L : -1L << (128 - prefix);
+            if (v6Count * 4 == v6.length) v6 = Arrays.copyOf(v6, v6.length * 2);
+            int i = v6Count++ * 4;
+            v6[i] = hi & hiMask;
+            v6[i + 1] = lo & loMask;
+            v6[i + 2] = hi | ~hiMask;
+            v6[i + 3] = lo | ~loMask;
+        }
+    }
+
+    void sortAndMerge() {
+        // sort by unsigned start; flipping the sign bit makes signed order match
+        for (int i = 0; i < v4Count; i++) v4[i] ^= Long.MIN_VALUE;
+        Arrays.sort(v4, 0, v4Count);
+        for (int i = 0; i < v4Count; i++) v4[i] ^= Long.MIN_VALUE;
+
+        int n = 0;
+        for (int i = 0; i < v4Count; i++) {
+            long start = v4[i] >>> 32, end = v4[i] & 0xFFFFFFFFL;
+            if (n > 0 && start <= (v4[n - 1] & 0xFFFFFFFFL) + 1) {
+                long last = v4[n - 1];
+                if (end > (last & 0xFFFFFFFFL)) v4[n - 1] = (last & 0xFFFFFFFF_00000000L) | end;
+            } else {
+                v4[n++] = v4[i];
+            }
+        }
+        v4Count = n;
+
+        heapSort6();
+        n = 0;
+        for (int i = 0; i < v6Count; i++) {
+            int src = i * 4;
+            if (n > 0 && adjacent6(n - 1, src)) {
+                int dst = (n - 1) * 4;
+                if (compare128(v6[src + 2], v6[src + 3], v6[dst + 2], v6[dst + 3]) > 0) {
+                    v6[dst + 2] = v6[src + 2];
+                    v6[dst + 3] = v6[src + 3];
+                }
+            } else {
+                System.arraycopy(v6, src, v6, n++ * 4, 4);
+            }
+        }
+        v6Count = n;
+    }
+
+    /** 第 {@code src / 4} 个区间的起点是否不超过第 {@code prev} 个区间终点加一 */
+    private boolean adjacent6(int prev, int src) {
+        int p = prev * 4;
+        long endHi = v6[p + 2], endLo = v6[p + 3];
+        if (endHi == -1L && endLo == -1L) return true;
+        long nextLo = endLo + 1;
+        long nextHi = nextLo == 0 ? endHi + 1 : endHi;
+        return compare128(v6[src], v6[src + 1], nextHi, nextLo) <= 0;
+    }
+
+    private void heapSort6() {
+        int n = v6Count;
+        for (int i = n / 2 - 1; i >= 0; i--) siftDown6(i, n);
+        for (int end = n - 1; end > 0; end--) {
+            swap6(0, end);
+            siftDown6(0, end);
+        }
+    }
+
+    private void siftDown6(int i, int n) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) return;
+            if (child + 1 < n && compareStart6(child + 1, child) > 0) child++;
+            if (compareStart6(child, i) <= 0) return;
+            swap6(i, child);
+            i = child;
+        }
+    }
+
+    private int compareStart6(int a, int b) {
+        return compare128(v6[a * 4], v6[a * 4 + 1], v6[b * 4], v6[b * 4 + 1]);
+    }
+
+    private void swap6(int a, int b) {
+        for (int k = 0; k < 4; k++) {
+            long t = v6[a * 4 + k];
+            v6[a * 4 + k] = v6[b * 4 + k];
+            v6[b * 4 + k] = t;
+        }
+    }
+
+    static int compare128(long aHi, long aLo, long bHi, long bLo) {
+        int c = Long.compareUnsigned(aHi, bHi);
+        return c != 0 ? c : Long.compareUnsigned(aLo, bLo);
+    }
+
+    private static boolean isV4Mapped(byte[] bytes) {
+        for (int i = 0; i < 10; i++) {
+            if (bytes[i] != 0) return false;
+        }
+        return bytes[10] == (byte) 0xFF && bytes[11] == (byte) 0xFF;
+    }
+
+    static long toLong(byte[] bytes, int offset, int length) {
+        long v = 0;
+        for (int i = 0; i < length; i++) {
+            v = v << 8 | (bytes[offset + i] & 0xFFL);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,63 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.util.NetUtil;
+
+/**
+ * 紧跟在 HAProxy 解码器之后、在任何平台处理器之前检查真实客户端地址，命中 {@link Blocklist} 时关闭连接。
+ * 检查完第一条 {@link HAProxyMessage} 后即移出管线，不处理的消息原样向后传递。
+ */
+@Sharable
+public final class BlocklistInspector extends ChannelInboundHandlerAdapter {
+    public static final BlocklistInspector INSTANCE = new BlocklistInspector();
+
+    /**
+     * 黑名单启用时，将检查器放在名为 {@code decoderName} 的解码器之后。
+     */
+    public static void install(ChannelPipeline pipeline, String decoderName) {
+        if (Blocklist.isEnabled() && pipeline.get(BlocklistInspector.class) == null) {
+            pipeline.addAfter(decoderName, "haproxy-blocklist", INSTANCE);
+        }
+    }
+
+    /**
+     * 黑名单启用时，将检查器放在 {@code decoder} 之后。
+     */
+    public static void install(ChannelPipeline pipeline, ChannelHandler decoder) {
+        if (Blocklist.isEnabled() && pipeline.get(BlocklistInspector.class) == null) {
+            pipeline.addAfter(pipeline.context(decoder).name(), "haproxy-blocklist", INSTANCE);
+        }
+    }
+
+    private BlocklistInspector() {
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HAProxyMessage) {
+            ctx.pipeline().remove(this);
+            HAProxyMessage message = (HAProxyMessage) msg;
+            if (message.command() == HAProxyCommand.PROXY && isBlocked(message.sourceAddress())) {
+                message.release();
+                ctx.close();
+                return;
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    private static boolean isBlocked(String sourceAddress) throws UnknownHostException {
+        if (sourceAddress == null) return false;
+        byte[] bytes = NetUtil.createByteArrayFromIpAddressString(sourceAddress);
+        return bytes != null && Blocklist.check(InetAddress.getByAddress(bytes));
+    }
+}
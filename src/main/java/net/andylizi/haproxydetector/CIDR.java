@@ -3,7 +3,6 @@ package net.andylizi.haproxydetector;
 import org.apache.commons.validator.routines.InetAddressValidator;
 import org.jetbrains.annotations.NotNull;
 
-import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
@@ -46,8 +45,8 @@ public final class CIDR {
     private final InetAddress addr;
     private final int prefix;
 
-    private final BigInteger mask;
-    private final BigInteger network;
+    /** 按前缀清零主机位后的地址 */
+    private final byte[] network;
 
     public CIDR(@NotNull InetAddress addr, int prefix) throws IllegalArgumentException {
         this.addr = Objects.requireNonNull(addr);
@@ -57,10 +56,13 @@ public final class CIDR {
         if (prefix < 0) throw new IllegalArgumentException("前缀不能为负数");
         if (prefix > bytesLen * Byte.SIZE) throw new IllegalArgumentException("无效的前缀长度");
 
-        byte[] buf = new byte[bytesLen];
-        Arrays.fill(buf, (byte) 0xFF);
-        this.mask = new BigInteger(1, buf).shiftRight(prefix).not();
-        this.network = new BigInteger(1, addr.getAddress()).and(mask);
+        byte[] network = addr.getAddress();
+        int full = prefix / Byte.SIZE;
+        if (full < bytesLen) {
+            network[full] &= (byte) (0xFF00 >>> (prefix % Byte.SIZE));
+            Arrays.fill(network, full + 1, bytesLen, (byte) 0);
+        }
+        this.network = network;
     }
 
     private CIDR(@NotNull InetAddress addr) {
@@ -89,9 +91,7 @@ public final class CIDR {
 
     public boolean contains(InetAddress other) {
         byte[] bytes = other.getAddress();
-        if (bytes.length != addr.getAddress().length) return false;
-        BigInteger target = new BigInteger(1, bytes);
-        return network.equals(target.and(mask));
+        return bytes.length == network.length && AddressPrefix.matches(network, prefix, bytes);
     }
 
     @Override
@@ -0,0 +1,99 @@
+package net.andylizi.haproxydetector;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * CRC32C（Castagnoli）校验和。
+ * <p>
+ * Java 9 及以上直接使用 JDK 内置且被 JIT 内联为硬件指令的 {@code java.util.zip.CRC32C}，
+ * 通过 {@link ByteBuf#nioBuffer(int, int)} 传入缓冲区本身而不复制数据；Java 8 上退回查表实现。
+ */
+public final class Crc32c {
+    private static final int POLY = 0x82F63B78; // reflected Castagnoli polynomial
+    private static final int[] TABLE = new int[256];
+    private static final byte[] ZEROS = new byte[16];
+
+    private static final boolean JDK = JdkCrc32c.isAvailable();
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            TABLE[i] = c;
+        }
+    }
+
+    private Crc32c() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 是否使用 JDK 的 {@code CRC32C}。
+     */
+    static boolean isIntrinsic() {
+        return JDK;
+    }
+
+    public static int checksum(ByteBuf buf, int index, int length) {
+        return checksum(buf, index, length, index + length, 0);
+    }
+
+    /**
+     * 计算 {@code buf} 中 {@code [index, index + length)} 的校验和，
+     * 其中 {@code [zeroIndex, zeroIndex + zeroLength)} 按全 0 计算（用于校验自身就包含校验和字段的数据）。
+     */
+    public static int checksum(ByteBuf buf, int index, int length, int zeroIndex, int zeroLength) {
+        int end = index + length;
+        if (zeroIndex < index || zeroIndex + zeroLength > end || zeroLength > ZEROS.length) {
+            throw new IndexOutOfBoundsException("zero range out of bounds");
+        }
+        int tail = zeroIndex + zeroLength;
+        if (JDK) {
+            Checksum crc = JdkCrc32c.create();
+            updateJdk(crc, buf, index, zeroIndex - index);
+            crc.update(ZEROS, 0, zeroLength);
+            updateJdk(crc, buf, tail, end - tail);
+            return (int) crc.getValue();
+        }
+
+        int crc = ~0;
+        crc = updateTable(crc, buf, index, zeroIndex - index);
+        for (int i = 0; i < zeroLength; i++) {
+            crc = (crc >>> 8) ^ TABLE[crc & 0xFF];
+        }
+        crc = updateTable(crc, buf, tail, end - tail);
+        return ~crc;
+    }
+
+    private static void updateJdk(Checksum crc, ByteBuf buf, int index, int length) {
+        if (length == 0) return;
+        if (buf.nioBufferCount() == 1) {
+            JdkCrc32c.update(crc, buf.nioBuffer(index, length));
+        } else if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset() + index, length);
+        } else {
+            for (ByteBuffer nio : buf.nioBuffers(index, length)) {
+                JdkCrc32c.update(crc, nio);
+            }
+        }
+    }
+
+    static int updateTable(int crc, ByteBuf buf, int index, int length) {
+        for (int i = index, end = index + length; i < end; i++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ buf.getByte(i)) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * 强制使用查表实现，供测试与基准比较。
+     */
+    static int checksumTable(ByteBuf buf, int index, int length) {
+        return ~updateTable(~0, buf, index, length);
+    }
+}
@@ -0,0 +1,196 @@
+package net.andylizi.haproxydetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 放在检测器与 HAProxy 解码器之前，限制一个连接在尚未完成检测与解码时可以积攒的字节数。
+ * <p>
+ * PROXY v2 协议头声明的长度最多可达 64 KiB，解码器会一直累积直到收齐，只发送签名和长度字段就不再发送数据的连接
+ * 因此可以长期占用内存。单个连接累计收到的字节超过 {@code detection.max-buffered-bytes}，
+ * 或所有未决连接合计超过 {@code detection.max-total-buffered-mb} 时，连接立即被关闭并计数。
+ * 检测器与解码器都离开管线后本处理器随之移除，并归还它在全局计数中占用的份额。
+ * <p>
+ * 检测期限（{@code detection.deadline}）也由本处理器持有：从加入管线起计时，到期时检测器或解码器仍在管线中即关闭连接。
+ * 检测器把连接交给解码器并不会结束计时，因此发送签名与一个很大的长度字段后便不再发送数据的连接同样会被关闭。
+ * <p>
+ * 全局计数按线程（即事件循环）分开累计，本地变化超过 {@link #FLUSH_BYTES} 才并入共享的总数，
+ * 因此各事件循环在热路径上互不争用；全局上限的误差不超过事件循环数乘以 {@link #FLUSH_BYTES}。
+ * 线程退出后，它的计数并入总数并从列表中移除。
+ */
+public final class CumulationLimiter extends ChannelInboundHandlerAdapter {
+    static final int FLUSH_BYTES = 64 * 1024;
+
+    private static final AtomicLong flushed = new AtomicLong();
+    static final List<Counter> pending = new CopyOnWriteArrayList<>();
+    private static final FastThreadLocal<Counter> localPending = new FastThreadLocal<Counter>() {
+        @Override
+        protected Counter initialValue() {
+            prune();
+            Counter counter = new Counter();
+            pending.add(counter);
+            return counter;
+        }
+
+        @Override
+        protected void onRemoval(Counter counter) {
+            // FastThreadLocalThreads, such as event loops, remove their values on exit
+            retire(counter);
+        }
+    };
+    private static final LongAdder channelLimitHits = new LongAdder();
+    private static final LongAdder globalLimitHits = new LongAdder();
+
+    private final int channelLimit;
+    private final long globalLimit;
+    private long received;
+    @Nullable
+    private ScheduledFuture<?> deadline;
+
+    /**
+     * 将限制器放在名为 {@code handlerName} 的处理器之前；两项上限与检测期限均为 0 时不做任何事。
+     */
+    public static void install(ChannelPipeline pipeline, String handlerName) {
+        DetectorConfig config = DetectorConfig.config;
+        if (pipeline.get(CumulationLimiter.class) == null
+                && (config.getMaxBufferedBytes() != 0 || config.getMaxTotalBufferedBytes() != 0
+                        || config.getDetectionDeadlineSeconds() != 0)) {
+            pipeline.addBefore(handlerName, "haproxy-limiter",
+                    new CumulationLimiter(config.getMaxBufferedBytes(), config.getMaxTotalBufferedBytes()));
+        }
+    }
+
+    /**
+     * 将限制器放在 {@code handler} 之前。
+     */
+    public static void install(ChannelPipeline pipeline, ChannelHandler handler) {
+        install(pipeline, pipeline.context(handler).name());
+    }
+
+    /**
+     * @param channelLimit 单个连接的字节上限，0 为不限
+     * @param globalLimit  所有连接合计的字节上限，0 为不限
+     */
+    CumulationLimiter(int channelLimit, long globalLimit) {
+        this.channelLimit = channelLimit;
+        this.globalLimit = globalLimit;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        deadline = DeferAccept.scheduleDeadline(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            int bytes = ((ByteBuf) msg).readableBytes();
+            received += bytes;
+            long local = add(bytes);
+            if (channelLimit != 0 && received > channelLimit) {
+                channelLimitHits.increment();
+                reject(ctx, msg);
+                return;
+            }
+            if (globalLimit != 0 && flushed.get() + local > globalLimit) {
+                globalLimitHits.increment();
+                reject(ctx, msg);
+                return;
+            }
+        }
+        ctx.fireChannelRead(msg);
+        if (ctx.isRemoved()) return;
+        if (!isPending(ctx.pipeline())) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        add(-received);
+        received = 0;
+    }
+
+    /**
+     * @return 当前线程尚未并入总数的字节数
+     */
+    private static long add(long bytes) {
+        Counter counter = localPending.get();
+        long value = counter.get() + bytes;
+        if (value >= FLUSH_BYTES || value <= -FLUSH_BYTES) {
+            flushed.addAndGet(value);
+            value = 0;
+        }
+        counter.lazySet(value); // only this thread writes it
+        return value;
+    }
+
+    private static void reject(ChannelHandlerContext ctx, Object msg) {
+        ReferenceCountUtil.release(msg);
+        ctx.close();
+    }
+
+    private static boolean isPending(ChannelPipeline pipeline) {
+        return pipeline.get("haproxy-detector") != null
+                || pipeline.get(HAProxyMessageDecoder.class) != null
+                || pipeline.get(ProxyHeaderDecoder.class) != null;
+    }
+
+    /**
+     * 当前所有未决连接合计已收到的字节数。
+     */
+    public static long getBufferedBytes() {
+        prune();
+        long total = flushed.get();
+        for (Counter counter : pending) {
+            total += counter.get();
+        }
+        return total;
+    }
+
+    /**
+     * 并入已退出但未移除线程本地值的线程（普通线程）的计数。
+     */
+    private static void prune() {
+        for (Counter counter : pending) {
+            if (!counter.owner.isAlive()) retire(counter);
+        }
+    }
+
+    /** the owner must have stopped writing: it is either the calling thread or dead */
+    private static void retire(Counter counter) {
+        if (pending.remove(counter)) flushed.addAndGet(counter.getAndSet(0));
+    }
+
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>(1);
+        lines.add("缓冲上限：单连接超限关闭 " + channelLimitHits.sum() + " 个，全局超限关闭 " + globalLimitHits.sum()
+                + " 个，当前占用 " + getBufferedBytes() + " 字节");
+        return lines;
+    }
+
+    /** one per thread, written only by {@link #owner} */
+    static final class Counter extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        final Thread owner = Thread.currentThread();
+    }
+}
@@ -0,0 +1,91 @@
+package net.andylizi.haproxydetector;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.util.AttributeKey;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 监听器上的 {@code TCP_DEFER_ACCEPT} 与检测期限（{@code detection.defer-accept}、{@code detection.deadline} 配置项）。
+ * <p>
+ * 平台在连接建立后立即为其创建通道与管线，而检测器要等到第一批数据到来才能作出判定。
+ * 在 Linux epoll 监听器上设置 {@code TCP_DEFER_ACCEPT} 后，内核会等到连接上有可读数据（PROXY 协议头或握手包）才交给平台，
+ * 只连接不发送数据的扫描器与健康检查根本不会占用管线，检测通常也能在第一次读取时完成。
+ * <p>
+ * 本插件不持有平台的监听通道，因此选项在每个监听器接受第一个连接时设置，此后的连接才会生效。
+ * 超过期限仍未发送数据的连接会被内核照常交出，由检测期限负责关闭。
+ */
+public final class DeferAccept {
+    private static final AttributeKey<Boolean> APPLIED = AttributeKey.valueOf("haproxydetector:defer-accept");
+
+    private static final LongAdder listeners = new LongAdder();
+    private static final LongAdder expired = new LongAdder();
+    @Nullable
+    private static volatile Logger logger;
+
+    public static void start(Logger logger) {
+        DeferAccept.logger = logger;
+    }
+
+    /**
+     * 在新连接注入检测器之前调用，为其所属的监听器设置 {@code TCP_DEFER_ACCEPT}。每个监听器只设置一次。
+     */
+    public static void apply(Channel ch) {
+        int seconds = DetectorConfig.config.getDeferAcceptSeconds();
+        Channel listener = ch.parent();
+        if (seconds == 0 || listener == null || listener.hasAttr(APPLIED)) return;
+        listener.attr(APPLIED).set(Boolean.TRUE);
+
+        SocketAddress address = listener.localAddress();
+        Logger l = logger;
+        try {
+            if (!(listener instanceof EpollServerSocketChannel)) {
+                if (l != null) l.info("监听器 " + address + " 未使用 epoll 传输，不设置 TCP_DEFER_ACCEPT");
+                return;
+            }
+            listener.config().setOption(EpollChannelOption.TCP_DEFER_ACCEPT, seconds);
+            listeners.increment();
+            if (l != null) l.info("已在监听器 " + address + " 上设置 TCP_DEFER_ACCEPT（" + seconds + " 秒）");
+        } catch (LinkageError ignored) {
+            // the platform doesn't ship the epoll transport
+        } catch (RuntimeException e) {
+            if (l != null) l.log(Level.WARNING, "无法在监听器 " + address + " 上设置 TCP_DEFER_ACCEPT", e);
+        }
+    }
+
+    /**
+     * {@link CumulationLimiter} 加入管线时调用，到期时仍未完成检测与解码即关闭连接。
+     *
+     * @return 限制器离开管线时应取消的定时任务；未设期限时为 {@code null}
+     */
+    @Nullable
+    public static ScheduledFuture<?> scheduleDeadline(ChannelHandlerContext ctx) {
+        int seconds = DetectorConfig.config.getDetectionDeadlineSeconds();
+        if (seconds == 0) return null;
+        return ctx.executor().schedule(() -> {
+            expired.increment();
+            ctx.close();
+        }, seconds, TimeUnit.SECONDS);
+    }
+
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>(1);
+        DetectorConfig config = DetectorConfig.config;
+        if (config.getDeferAcceptSeconds() == 0 && config.getDetectionDeadlineSeconds() == 0) return lines;
+        lines.add("延迟接受：已设置监听器 " + listeners.sum() + " 个，超出检测期限关闭 " + expired.sum() + " 个");
+        return lines;
+    }
+
+    private DeferAccept() {throw new AssertionError();}
+}
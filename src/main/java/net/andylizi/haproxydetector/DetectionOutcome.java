@@ -0,0 +1,29 @@
+package net.andylizi.haproxydetector;
+
+/**
+ * 检测器对单个连接作出的最终判定。
+ */
+public enum DetectionOutcome {
+    /** 未携带 PROXY 协议头的直连 */
+    DIRECT("直连"),
+    /** 来自白名单代理、已交给 HAProxy 解码器的连接 */
+    PROXIED("代理"),
+    /** 携带 PROXY 协议头但来源不在白名单中，已关闭 */
+    REJECTED("拒绝"),
+    /** 负载均衡器健康检查，已由检测器直接处理 */
+    HEALTH_CHECK("健康检查"),
+    /** PROXY v2 协议头的 CRC32C 校验失败，已关闭 */
+    CORRUPTED("校验失败"),
+    /** 直连洪泛期间不是以 PROXY 协议头开头，已关闭 */
+    DROPPED("洪泛拦截");
+
+    private final String displayName;
+
+    DetectionOutcome(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
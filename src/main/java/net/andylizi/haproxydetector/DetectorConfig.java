@@ -0,0 +1,569 @@
+package net.andylizi.haproxydetector;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 插件的通用配置，对应数据目录中的 {@code config.conf}（Java Properties 格式）。
+ * 未出现在文件中的键一律使用默认值，因此旧版本生成的配置文件仍可直接使用。
+ */
+public final class DetectorConfig {
+    @NotNull
+    public static DetectorConfig config = new DetectorConfig(new Properties());
+
+    private static final String LISTENER_PREFIX = "listener.";
+
+    public static DetectorConfig loadOrDefault(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        if (!Files.exists(path) || Files.isDirectory(path)) {
+            Files.write(path, Arrays.asList(
+                "# HAProxyDetector 配置",
+                "#",
+                "# 未填写的项均使用默认值。",
+                "",
+                "# 负载均衡器健康检查快速通道。",
+                "# 命中的连接直接由检测器关闭，不会进入游戏的握手/登录流程，并单独计数。",
+                "health-check.enabled=true",
+                "# 将来自白名单地址的 PROXY v2 LOCAL 命令视为健康检查",
+                "health-check.local=true",
+                "# 将建立后未发送任何数据即关闭的连接计为健康检查",
+                "health-check.connect-close=true",
+                "# 可选的探测字节串；连接以此开头即视为健康检查。",
+                "# 支持 \\r \\n 等转义，或使用 hex: 前缀书写十六进制，例如 hex:50494e470d0a",
+                "health-check.probe=",
+                "# 匹配探测字节串后回写的响应（可选，格式同上），发送完毕后关闭连接",
+                "health-check.response=",
+                "",
+                "# 启用时的 JIT 预热：用模拟的直连与代理连接反复走一遍检测路径，使其在真实连接到来前就被充分编译。",
+                "# 会使启用过程延长，最多 jit-warmup.max-millis 毫秒。",
+                "jit-warmup.enabled=false",
+                "# 模拟的连接数",
+                "jit-warmup.connections=40000",
+                "# 时间预算（毫秒），超出即提前结束",
+                "jit-warmup.max-millis=3000",
+                "",
+                "# 直连洪泛保护：某一秒内判定的直连数超过该值时切换为仅接受代理，不以 PROXY 协议头开头的连接在首个字节即被关闭；0 为关闭",
+                "flood-guard.direct-rate=0",
+                "# 洪泛停止后保持仅接受代理的时间（秒）",
+                "flood-guard.cool-down=60",
+                "# 为每个监听器策略分别统计与切换（仅 BungeeCord 与 Velocity 的 listener.* 配置有意义），否则全局共用",
+                "flood-guard.per-listener=false",
+                "",
+                "# 快速通道：经代理登录成功的真实地址在此后若干分钟内不受限速与直连洪泛保护的约束，0 为关闭",
+                "fast-lane.ttl=30",
+                "# 可记录的地址数，必须为 2 的幂（每个占 8 字节）",
+                "fast-lane.slots=16384",
+                "",
+                "# 各阶段延迟统计的采样率：每 N 个连接计时 1 个，1 为全部计时，0 为关闭。",
+                "stats.latency-sample-rate=16",
+                "",
+                "# 首包捕获：将被采样连接最初收到的字节与分段边界写入 captures/ 目录，用于离线重放。",
+                "capture.enabled=false",
+                "# 每 N 个连接捕获 1 个",
+                "capture.sample-rate=100",
+                "# 每个连接最多捕获的字节数",
+                "capture.max-bytes=512",
+                "# 等待写入的记录上限，超出时直接丢弃",
+                "capture.queue-size=4096",
+                "",
+                "# 同一主机上多个实例共享的封禁与限速表（内存映射文件）。",
+                "# 填写文件路径（相对于数据目录）即可启用，各实例应指向同一个文件，例如 ../../shared/haproxy-bans.dat",
+                "shared-table.path=",
+                "# 槽位数，必须为 2 的幂；以第一个创建该文件的实例为准",
+                "shared-table.slots=65536",
+                "# 每个直连来源每秒允许的新连接数，超出即封禁；0 为不限速",
+                "shared-table.rate-limit=0",
+                "# 封禁时长（秒）",
+                "shared-table.ban-seconds=300",
+                "# 是否封禁发送 PROXY 协议头但不在白名单中的来源",
+                "shared-table.ban-rejected=true",
+                "",
+                "# 在连接后端服务器时发送 PROXY v2 协议头，使后端获得玩家的真实地址（仅 Velocity）。",
+                "# 后端必须能够解析该协议头，例如同样安装了本插件并将本代理加入白名单。",
+                "backend.proxy-protocol=false",
+                "",
+                "# 校验 PROXY v2 协议头中的 CRC32C TLV（PP2_TYPE_CRC32C），不符或被截断时关闭连接。",
+                "# 不含该 TLV 的协议头不受影响。",
+                "proxy-protocol.verify-crc32c=false",
+                "",
+                "# 检测与解码 PROXY 协议头期间允许积攒的数据量，超出即关闭连接，防止只发送协议头开头的连接占用内存。",
+                "# 单个连接的字节上限（v2 协议头最长 65551 字节），0 为不限",
+                "detection.max-buffered-bytes=16384",
+                "# 所有尚未完成检测的连接合计的上限（MiB），0 为不限",
+                "detection.max-total-buffered-mb=64",
+                "# 在 Linux epoll 监听器上设置 TCP_DEFER_ACCEPT（秒）：内核等到连接发来数据才交给服务端，",
+                "# 只连接不发送数据的扫描器与健康检查不会占用管线；0 为关闭",
+                "detection.defer-accept=0",
+                "# 检测期限（秒）：连接加入后超过该时间仍未判定即关闭；0 表示与 detection.defer-accept 相同",
+                "detection.deadline=0",
+                "",
+                "# 真实客户端地址黑名单：每行一个 IP 或 CIDR 的文本文件（相对于数据目录），留空即禁用。",
+                "# 首次加载时编译为同目录下的 .idx 索引文件并以内存映射方式读取，可容纳数百万条目。",
+                "blocklist.path=",
+                "# 检查黑名单文件是否变化的间隔（秒），变化后自动重新加载；0 为不检查",
+                "blocklist.check-interval=60",
+                "",
+                "# 访问日志：记录每个代理连接的时间、代理地址、真实地址、目标地址与监听器，按天（UTC）轮转。",
+                "access-log.enabled=false",
+                "# 日志目录（相对于数据目录）",
+                "access-log.directory=access-logs",
+                "# 等待写入的缓冲块上限（每块 16 KiB），写入跟不上时丢弃记录而不阻塞网络线程",
+                "access-log.queue-chunks=256",
+                "",
+                "# 额外监听一个 Unix 域套接字，供同一主机上的 HAProxy 连接（仅 BungeeCord 与 Velocity，需 Linux epoll）。",
+                "# 填写套接字文件路径（相对于数据目录）即可启用。对端按 whitelist.conf 中的 uid:/gid: 规则校验。",
+                "unix-socket.path=",
+                "# 处理该套接字的线程数，0 为 Netty 默认值（CPU 核数的两倍）",
+                "unix-socket.threads=0",
+                "",
+                "# 按监听器区分的检测策略（仅 BungeeCord 与 Velocity）。每个监听器的配置项以 listener.<名称>. 开头：",
+                "#   bind       监听地址，格式为 主机:端口，主机为 * 表示任意地址",
+                "#   mode       disabled（不处理）、detect（自动检测）、proxy-required（仅接受代理）或 direct-only（仅接受直连）",
+                "#   whitelist  可选，该监听器专用的白名单文件（相对于数据目录），格式同 whitelist.conf",
+                "# 同一监听器同时匹配指定主机与主机为 * 的条目时，以指定主机的条目为准；bind 相同的条目视为配置错误。",
+                "# 未匹配任何条目的监听器使用 detect 与全局白名单。例如：",
+                "# listener.public.bind=*:25565",
+                "# listener.public.mode=direct-only",
+                "# listener.internal.bind=10.0.0.5:25577",
+                "# listener.internal.mode=proxy-required",
+                "# listener.internal.whitelist=whitelist-internal.conf"
+            ), StandardCharsets.UTF_8);
+        }
+        return load(path);
+    }
+
+    public static DetectorConfig load(Path path) throws IOException {
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        return new DetectorConfig(props, loadListenerPolicies(props, path.toAbsolutePath().getParent()),
+                ProxyWhitelist.whitelist);
+    }
+
+    /**
+     * 构建各监听器的策略。未指定专用白名单的监听器使用当前全局白名单的快照，因此须在加载白名单之后调用。
+     */
+    private static ListenerPolicy[] loadListenerPolicies(Properties props, Path dataDirectory) throws IOException {
+        Set<String> names = new TreeSet<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(LISTENER_PREFIX) && key.endsWith(".bind")) {
+                names.add(key.substring(LISTENER_PREFIX.length(), key.length() - ".bind".length()));
+            }
+        }
+
+        List<ListenerPolicy> policies = new ArrayList<>(names.size());
+        for (String name : names) {
+            String prefix = LISTENER_PREFIX + name + ".";
+            String bind = props.getProperty(prefix + "bind").trim();
+            int idx = bind.lastIndexOf(':');
+            if (idx <= 0) {
+                throw new IllegalArgumentException("配置项 " + prefix + "bind 必须为 主机:端口 的形式：" + bind);
+            }
+            int port = parseInt(prefix + "bind", bind.substring(idx + 1).trim(), 1, 0xFFFF);
+            String hostPart = bind.substring(0, idx);
+            if (hostPart.startsWith("[") && hostPart.endsWith("]")) {
+                hostPart = hostPart.substring(1, hostPart.length() - 1);
+            }
+            InetAddress host = "*".equals(hostPart) ? null : InetAddress.getByName(hostPart);
+
+            ListenerPolicy.Mode mode = ListenerPolicy.Mode.DETECT;
+            String modeValue = props.getProperty(prefix + "mode");
+            if (modeValue != null && !modeValue.trim().isEmpty()) {
+                mode = ListenerPolicy.Mode.parse(prefix + "mode", modeValue);
+            }
+
+            ProxyWhitelist whitelist = ProxyWhitelist.whitelist;
+            String whitelistFile = props.getProperty(prefix + "whitelist", "").trim();
+            if (!whitelistFile.isEmpty()) {
+                whitelist = ProxyWhitelist.load(dataDirectory.resolve(whitelistFile)).orElse(null);
+            }
+            ListenerPolicy policy = new ListenerPolicy(name, host, port, mode, whitelist);
+            for (ListenerPolicy other : policies) {
+                if (other.sameBind(policy)) {
+                    throw new IllegalArgumentException("配置项 " + prefix + "bind 与 " + LISTENER_PREFIX
+                            + other.getName() + ".bind 指向同一监听地址：" + bind);
+                }
+            }
+            policies.add(policy);
+        }
+        return policies.toArray(new ListenerPolicy[0]);
+    }
+
+    private final boolean healthCheckLocal;
+    private final boolean healthCheckConnectClose;
+    @Nullable
+    private final byte[] healthCheckProbe;
+    @Nullable
+    private final byte[] healthCheckResponse;
+    private final boolean jitWarmupEnabled;
+    private final int jitWarmupConnections;
+    private final int jitWarmupMaxMillis;
+    private final int latencySampleRate;
+    private final boolean captureEnabled;
+    private final int captureSampleRate;
+    private final int captureMaxBytes;
+    private final int captureQueueSize;
+    @Nullable
+    private final String sharedTablePath;
+    private final int sharedTableSlots;
+    private final int sharedTableRateLimit;
+    private final int sharedTableBanSeconds;
+    private final boolean sharedTableBanRejected;
+    private final boolean backendProxyProtocol;
+    private final boolean verifyCrc32c;
+    private final int maxBufferedBytes;
+    private final long maxTotalBufferedBytes;
+    private final int deferAcceptSeconds;
+    private final int detectionDeadlineSeconds;
+    @Nullable
+    private final String blocklistPath;
+    private final int blocklistCheckInterval;
+    private final boolean accessLogEnabled;
+    private final String accessLogDirectory;
+    private final int accessLogQueueChunks;
+    @Nullable
+    private final String unixSocketPath;
+    private final int unixSocketThreads;
+    /** 供 {@link #forWarmup} 按同样的设置再构建一份 */
+    private final Properties props;
+    private final ListenerPolicy[] listenerPolicies;
+    private final ListenerPolicy defaultListenerPolicy;
+    private final int floodGuardThreshold;
+    /** 与 {@link #listenerPolicies} 一一对应，全局共用时每项都是同一个实例；未启用时为 {@code null} */
+    @Nullable
+    private final FloodGuard[] floodGuards;
+    @Nullable
+    private final FloodGuard defaultFloodGuard;
+    private final int fastLaneTtl;
+    private final int fastLaneSlots;
+
+    DetectorConfig(Properties props) throws IllegalArgumentException {
+        this(props, new ListenerPolicy[0], ProxyWhitelist.whitelist);
+    }
+
+    private DetectorConfig(Properties props, ListenerPolicy[] listenerPolicies, @Nullable ProxyWhitelist whitelist)
+            throws IllegalArgumentException {
+        this.props = props;
+        this.listenerPolicies = listenerPolicies;
+        this.defaultListenerPolicy = new ListenerPolicy("default", null, 0, ListenerPolicy.Mode.DETECT, whitelist);
+        boolean healthCheck = getBoolean(props, "health-check.enabled", true);
+        this.healthCheckLocal = healthCheck && getBoolean(props, "health-check.local", true);
+        this.healthCheckConnectClose = healthCheck && getBoolean(props, "health-check.connect-close", true);
+        this.healthCheckProbe = healthCheck ? getBytes(props, "health-check.probe") : null;
+        this.healthCheckResponse = healthCheck ? getBytes(props, "health-check.response") : null;
+        this.floodGuardThreshold = getInt(props, "flood-guard.direct-rate", 0, 0, Integer.MAX_VALUE);
+        if (floodGuardThreshold == 0) {
+            this.floodGuards = null;
+            this.defaultFloodGuard = null;
+        } else {
+            long coolDown = TimeUnit.SECONDS.toNanos(getInt(props, "flood-guard.cool-down", 60, 1, Integer.MAX_VALUE));
+            boolean perListener = getBoolean(props, "flood-guard.per-listener", false);
+            this.defaultFloodGuard = new FloodGuard(perListener ? "默认监听器" : "全部监听器", floodGuardThreshold,
+                    coolDown);
+            this.floodGuards = new FloodGuard[listenerPolicies.length];
+            for (int i = 0; i < listenerPolicies.length; i++) {
+                floodGuards[i] = perListener
+                        ? new FloodGuard("监听器 " + listenerPolicies[i].getName() + " ", floodGuardThreshold, coolDown)
+                        : defaultFloodGuard;
+            }
+        }
+        this.fastLaneTtl = getInt(props, "fast-lane.ttl", 30, 0, 43200);
+        this.fastLaneSlots = getInt(props, "fast-lane.slots", 16384, FastLane.MAX_PROBES, 1 << 24);
+        if (Integer.bitCount(fastLaneSlots) != 1) {
+            throw new IllegalArgumentException("配置项 fast-lane.slots 必须为 2 的幂：" + fastLaneSlots);
+        }
+        this.jitWarmupEnabled = getBoolean(props, "jit-warmup.enabled", false);
+        this.jitWarmupConnections = getInt(props, "jit-warmup.connections", 40000, 0, Integer.MAX_VALUE);
+        this.jitWarmupMaxMillis = getInt(props, "jit-warmup.max-millis", 3000, 0, Integer.MAX_VALUE);
+        this.latencySampleRate = getInt(props, "stats.latency-sample-rate", 16, 0, Integer.MAX_VALUE);
+        this.captureEnabled = getBoolean(props, "capture.enabled", false);
+        this.captureSampleRate = getInt(props, "capture.sample-rate", 100, 1, Integer.MAX_VALUE);
+        this.captureMaxBytes = getInt(props, "capture.max-bytes", 512, 1, 0xFFFF);
+        this.captureQueueSize = getInt(props, "capture.queue-size", 4096, 1, Integer.MAX_VALUE);
+        String sharedTablePath = props.getProperty("shared-table.path", "").trim();
+        this.sharedTablePath = sharedTablePath.isEmpty() ? null : sharedTablePath;
+        this.sharedTableSlots = getInt(props, "shared-table.slots", 65536, 1024, 1 << 24);
+        if (Integer.bitCount(sharedTableSlots) != 1) {
+            throw new IllegalArgumentException("配置项 shared-table.slots 必须为 2 的幂：" + sharedTableSlots);
+        }
+        this.sharedTableRateLimit = getInt(props, "shared-table.rate-limit", 0, 0, Integer.MAX_VALUE);
+        this.sharedTableBanSeconds = getInt(props, "shared-table.ban-seconds", 300, 1, Integer.MAX_VALUE);
+        this.sharedTableBanRejected = getBoolean(props, "shared-table.ban-rejected", true);
+        this.backendProxyProtocol = getBoolean(props, "backend.proxy-protocol", false);
+        this.verifyCrc32c = getBoolean(props, "proxy-protocol.verify-crc32c", false);
+        this.maxBufferedBytes = getInt(props, "detection.max-buffered-bytes", 16384, 0, Integer.MAX_VALUE);
+        this.maxTotalBufferedBytes = (long) getInt(props, "detection.max-total-buffered-mb", 64, 0, 1 << 20) << 20;
+        this.deferAcceptSeconds = getInt(props, "detection.defer-accept", 0, 0, 3600);
+        int deadline = getInt(props, "detection.deadline", 0, 0, 3600);
+        this.detectionDeadlineSeconds = deadline == 0 ? deferAcceptSeconds : deadline;
+        String blocklistPath = props.getProperty("blocklist.path", "").trim();
+        this.blocklistPath = blocklistPath.isEmpty() ? null : blocklistPath;
+        this.blocklistCheckInterval = getInt(props, "blocklist.check-interval", 60, 0, Integer.MAX_VALUE);
+        this.accessLogEnabled = getBoolean(props, "access-log.enabled", false);
+        String accessLogDirectory = props.getProperty("access-log.directory", "").trim();
+        this.accessLogDirectory = accessLogDirectory.isEmpty() ? "access-logs" : accessLogDirectory;
+        this.accessLogQueueChunks = getInt(props, "access-log.queue-chunks", 256, 1, 65536);
+        String unixSocketPath = props.getProperty("unix-socket.path", "").trim();
+        this.unixSocketPath = unixSocketPath.isEmpty() ? null : unixSocketPath;
+        this.unixSocketThreads = getInt(props, "unix-socket.threads", 0, 0, 1024);
+    }
+
+    public boolean isHealthCheckLocal() {
+        return healthCheckLocal;
+    }
+
+    public boolean isHealthCheckConnectClose() {
+        return healthCheckConnectClose;
+    }
+
+    @Nullable
+    public byte[] getHealthCheckProbe() {
+        return healthCheckProbe;
+    }
+
+    @Nullable
+    public byte[] getHealthCheckResponse() {
+        return healthCheckResponse;
+    }
+
+    public boolean isJitWarmupEnabled() {
+        return jitWarmupEnabled;
+    }
+
+    public int getJitWarmupConnections() {
+        return jitWarmupConnections;
+    }
+
+    public int getJitWarmupMaxMillis() {
+        return jitWarmupMaxMillis;
+    }
+
+    public int getLatencySampleRate() {
+        return latencySampleRate;
+    }
+
+    public boolean isCaptureEnabled() {
+        return captureEnabled;
+    }
+
+    public int getCaptureSampleRate() {
+        return captureSampleRate;
+    }
+
+    public int getCaptureMaxBytes() {
+        return captureMaxBytes;
+    }
+
+    public int getCaptureQueueSize() {
+        return captureQueueSize;
+    }
+
+    @Nullable
+    public String getSharedTablePath() {
+        return sharedTablePath;
+    }
+
+    public int getSharedTableSlots() {
+        return sharedTableSlots;
+    }
+
+    public int getSharedTableRateLimit() {
+        return sharedTableRateLimit;
+    }
+
+    public int getSharedTableBanSeconds() {
+        return sharedTableBanSeconds;
+    }
+
+    public boolean isSharedTableBanRejected() {
+        return sharedTableBanRejected;
+    }
+
+    public boolean isBackendProxyProtocol() {
+        return backendProxyProtocol;
+    }
+
+    public boolean isVerifyCrc32c() {
+        return verifyCrc32c;
+    }
+
+    public int getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public long getMaxTotalBufferedBytes() {
+        return maxTotalBufferedBytes;
+    }
+
+    /**
+     * 监听器上 {@code TCP_DEFER_ACCEPT} 的秒数，0 表示不设置。
+     */
+    public int getDeferAcceptSeconds() {
+        return deferAcceptSeconds;
+    }
+
+    /**
+     * 检测器等待判定的期限（秒），0 表示不设期限。
+     */
+    public int getDetectionDeadlineSeconds() {
+        return detectionDeadlineSeconds;
+    }
+
+    @Nullable
+    public String getBlocklistPath() {
+        return blocklistPath;
+    }
+
+    public int getBlocklistCheckInterval() {
+        return blocklistCheckInterval;
+    }
+
+    public boolean isAccessLogEnabled() {
+        return accessLogEnabled;
+    }
+
+    public String getAccessLogDirectory() {
+        return accessLogDirectory;
+    }
+
+    public int getAccessLogQueueChunks() {
+        return accessLogQueueChunks;
+    }
+
+    @Nullable
+    public String getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    public int getUnixSocketThreads() {
+        return unixSocketThreads;
+    }
+
+    public List<ListenerPolicy> getListenerPolicies() {
+        return Collections.unmodifiableList(Arrays.asList(listenerPolicies));
+    }
+
+    /**
+     * 返回与监听地址匹配的策略：指定主机的条目优先于主机为 {@code *} 的条目，与条目名称及书写顺序无关。
+     * 加载时已拒绝监听地址重复的条目，因此结果唯一。没有匹配时返回使用全局白名单的 {@link ListenerPolicy.Mode#DETECT} 策略。
+     */
+    @NotNull
+    public ListenerPolicy getListenerPolicy(SocketAddress localAddress) {
+        ListenerPolicy wildcard = null;
+        for (ListenerPolicy policy : listenerPolicies) {
+            if (!policy.matches(localAddress)) continue;
+            if (!policy.isWildcard()) return policy;
+            wildcard = policy;
+        }
+        return wildcard != null ? wildcard : defaultListenerPolicy;
+    }
+
+    public int getFloodGuardThreshold() {
+        return floodGuardThreshold;
+    }
+
+    /**
+     * 返回负责该监听器策略的洪泛保护，未启用时返回 {@code null}。
+     */
+    @Nullable
+    public FloodGuard getFloodGuard(ListenerPolicy policy) {
+        if (floodGuards == null) return null;
+        for (int i = 0; i < listenerPolicies.length; i++) {
+            if (listenerPolicies[i] == policy) return floodGuards[i];
+        }
+        return defaultFloodGuard;
+    }
+
+    /**
+     * 快速通道中地址的有效期（分钟），0 表示停用。
+     */
+    public int getFastLaneTtl() {
+        return fastLaneTtl;
+    }
+
+    public int getFastLaneSlots() {
+        return fastLaneSlots;
+    }
+
+    /**
+     * 供 {@link JitWarmup} 使用的副本：设置相同，但没有按监听器区分的策略，所有连接都按 {@code whitelist} 检测；
+     * 洪泛保护的状态也与本配置互不相干。
+     */
+    DetectorConfig forWarmup(ProxyWhitelist whitelist) {
+        return new DetectorConfig(props, new ListenerPolicy[0], whitelist);
+    }
+
+    boolean ownsListenerPolicy(ListenerPolicy policy) {
+        if (policy == defaultListenerPolicy) return true;
+        for (ListenerPolicy p : listenerPolicies) {
+            if (p == policy) return true;
+        }
+        return false;
+    }
+
+    static int getInt(Properties props, String key, int def, int min, int max) {
+        String value = props.getProperty(key);
+        if (value == null || (value = value.trim()).isEmpty()) return def;
+        return parseInt(key, value, min, max);
+    }
+
+    private static int parseInt(String key, String value, int min, int max) {
+        int n;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("配置项 " + key + " 必须为整数：" + value, e);
+        }
+        if (n < min || n > max) {
+            throw new IllegalArgumentException("配置项 " + key + " 超出范围 [" + min + ", " + max + "]：" + value);
+        }
+        return n;
+    }
+
+    static boolean getBoolean(Properties props, String key, boolean def) {
+        String value = props.getProperty(key);
+        if (value == null || (value = value.trim()).isEmpty()) return def;
+        if ("true".equalsIgnoreCase(value)) return true;
+        if ("false".equalsIgnoreCase(value)) return false;
+        throw new IllegalArgumentException("配置项 " + key + " 必须为 true 或 false：" + value);
+    }
+
+    @Nullable
+    static byte[] getBytes(Properties props, String key) {
+        String value = props.getProperty(key);
+        if (value == null || value.isEmpty()) return null;
+        if (!value.startsWith("hex:")) return value.getBytes(StandardCharsets.UTF_8);
+
+        String hex = value.substring(4).trim();
+        if (hex.isEmpty() || (hex.length() & 1) != 0) {
+            throw new IllegalArgumentException("配置项 " + key + " 不是有效的十六进制串：" + value);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("配置项 " + key + " 不是有效的十六进制串：" + value);
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,67 @@
+package net.andylizi.haproxydetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.andylizi.haproxydetector.accesslog.AccessLog;
+
+/**
+ * 检测结果计数器，供统计命令展示。
+ */
+public final class DetectorStats {
+    private static final DetectionOutcome[] OUTCOMES = DetectionOutcome.values();
+    private static final LongAdder[] COUNTERS = new LongAdder[OUTCOMES.length];
+
+    static {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            COUNTERS[i] = new LongAdder();
+        }
+    }
+
+    public static void record(DetectionOutcome outcome) {
+        COUNTERS[outcome.ordinal()].increment();
+    }
+
+    public static long get(DetectionOutcome outcome) {
+        return COUNTERS[outcome.ordinal()].sum();
+    }
+
+    /**
+     * 当前各项计数的快照，配合 {@link #rollback(long[])} 撤销此后产生的计数。
+     */
+    static long[] snapshot() {
+        long[] values = new long[COUNTERS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = COUNTERS[i].sum();
+        }
+        return values;
+    }
+
+    static void rollback(long[] snapshot) {
+        for (int i = 0; i < snapshot.length; i++) {
+            COUNTERS[i].add(snapshot[i] - COUNTERS[i].sum());
+        }
+    }
+
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>(OUTCOMES.length + 1);
+        lines.add("HAProxyDetector 连接统计：");
+        for (DetectionOutcome outcome : OUTCOMES) {
+            lines.add("  " + outcome.getDisplayName() + "：" + get(outcome));
+        }
+        lines.addAll(ProxyNodeStats.report());
+        lines.addAll(FloodGuard.report());
+        lines.addAll(FastLane.report());
+        lines.addAll(DeferAccept.report());
+        lines.addAll(CumulationLimiter.report());
+        lines.addAll(LatencyStats.report());
+        lines.addAll(SharedBanTable.report());
+        lines.addAll(Blocklist.report());
+        lines.addAll(AccessLog.report());
+        lines.addAll(UnixSocketListener.report());
+        return lines;
+    }
+
+    private DetectorStats() {throw new AssertionError();}
+}
@@ -0,0 +1,148 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 近期经代理完成登录的真实客户端地址（{@code fast-lane.*} 配置项）。
+ * <p>
+ * 遭受攻击时，限速与洪泛保护也会误伤正在重连的正常玩家。玩家经代理登录成功后，其真实地址被记入本表并保留
+ * {@code fast-lane.ttl} 分钟；来自这些地址的连接不受 {@link SharedBanTable} 限速与 {@link FloodGuard} 的约束。
+ * <p>
+ * 查询使用 TCP 对端地址：玩家改为直连时，对端就是其真实地址，无法伪造；经代理的连接对端为代理，白名单中的代理本就不受限制。
+ * 真实地址黑名单 {@link Blocklist} 不受本表影响。
+ * <p>
+ * 表大小固定，每个槽位是一个 {@code long}：高 40 位为地址指纹，低 24 位为以分钟计的过期时刻，通过 CAS 整体更新。
+ * 查找与插入最多探测 {@link #MAX_PROBES} 个相邻槽位，不加锁；探测范围内没有空闲或过期槽位时，
+ * 覆盖其中最早过期的一个。
+ */
+public final class FastLane {
+    static final int MAX_PROBES = 8;
+    private static final int EXPIRY_BITS = 24;
+    private static final long EXPIRY_MASK = (1L << EXPIRY_BITS) - 1;
+    private static final long EPOCH = System.nanoTime();
+
+    @Nullable
+    private static volatile FastLane lane;
+    private static final LongAdder hits = new LongAdder();
+
+    /**
+     * 按当前配置重建地址表，之前记录的地址全部丢弃。{@code fast-lane.ttl} 为 0 时停用。
+     */
+    public static void start() {
+        DetectorConfig config = DetectorConfig.config;
+        lane = config.getFastLaneTtl() == 0 ? null : new FastLane(config.getFastLaneSlots(), config.getFastLaneTtl());
+    }
+
+    public static void stop() {
+        lane = null;
+    }
+
+    /**
+     * 玩家经代理登录成功时调用，记录或续期其真实地址。
+     */
+    public static void record(SocketAddress realAddress) {
+        FastLane l = lane;
+        if (l != null && realAddress instanceof InetSocketAddress) {
+            l.put(SharedBanTable.keyOf(((InetSocketAddress) realAddress).getAddress()), minutes());
+        }
+    }
+
+    /**
+     * 来源地址是否在有效期内经代理登录过。
+     */
+    public static boolean contains(SocketAddress remoteAddress) {
+        FastLane l = lane;
+        if (l == null || !(remoteAddress instanceof InetSocketAddress)) return false;
+        if (l.get(SharedBanTable.keyOf(((InetSocketAddress) remoteAddress).getAddress()), minutes())) {
+            hits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    static long minutes() {
+        return TimeUnit.NANOSECONDS.toMinutes(System.nanoTime() - EPOCH);
+    }
+
+    public static List<String> report() {
+        FastLane l = lane;
+        List<String> lines = new ArrayList<>(1);
+        if (l == null) return lines;
+        lines.add("快速通道：信任地址 " + l.size(minutes()) + " 个，放行 " + hits.sum() + " 次");
+        return lines;
+    }
+
+    private final AtomicLongArray table;
+    private final int ttl;
+
+    /**
+     * @param slots 槽位数，必须为 2 的幂
+     * @param ttl   地址的有效期（分钟）
+     */
+    FastLane(int slots, int ttl) {
+        this.table = new AtomicLongArray(slots);
+        this.ttl = ttl;
+    }
+
+    void put(long key, long now) {
+        long fingerprint = fingerprint(key);
+        long entry = fingerprint | ((now + ttl) & EXPIRY_MASK);
+        int mask = table.length() - 1;
+        int victim = -1;
+        long victimEntry = 0;
+        long victimRemaining = Long.MAX_VALUE;
+        for (int probe = 0, i = (int) key & mask; probe < MAX_PROBES; probe++, i = (i + 1) & mask) {
+            long current = table.get(i);
+            if ((current & ~EXPIRY_MASK) == fingerprint) {
+                table.set(i, entry);
+                return;
+            }
+            long remaining = current == 0 ? Long.MIN_VALUE : remaining(current, now);
+            if (remaining < victimRemaining) {
+                victim = i;
+                victimEntry = current;
+                victimRemaining = remaining;
+            }
+        }
+        // losing this race only means the address is recorded again on its next login
+        table.compareAndSet(victim, victimEntry, entry);
+    }
+
+    boolean get(long key, long now) {
+        long fingerprint = fingerprint(key);
+        int mask = table.length() - 1;
+        for (int probe = 0, i = (int) key & mask; probe < MAX_PROBES; probe++, i = (i + 1) & mask) {
+            long current = table.get(i);
+            if ((current & ~EXPIRY_MASK) == fingerprint) return remaining(current, now) > 0;
+        }
+        return false;
+    }
+
+    int size(long now) {
+        int size = 0;
+        for (int i = 0; i < table.length(); i++) {
+            long current = table.get(i);
+            if (current != 0 && remaining(current, now) > 0) size++;
+        }
+        return size;
+    }
+
+    /** 0 is reserved for empty slots */
+    private static long fingerprint(long key) {
+        long fingerprint = key & ~EXPIRY_MASK;
+        return fingerprint == 0 ? 1L << EXPIRY_BITS : fingerprint;
+    }
+
+    /** minutes left before {@code entry} expires, as a signed 24-bit difference so the clock may wrap */
+    private static long remaining(long entry, long now) {
+        return ((entry - now) << (64 - EXPIRY_BITS)) >> (64 - EXPIRY_BITS);
+    }
+}
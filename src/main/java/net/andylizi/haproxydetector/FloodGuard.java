@@ -0,0 +1,143 @@
+package net.andylizi.haproxydetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 直连洪泛保护（{@code flood-guard.*} 配置项）。
+ * <p>
+ * 检测器每判定一个直连就记一次数，按秒统计速率。某一秒的直连数超过阈值时切换为“仅接受代理”状态：
+ * 此后首个字节不可能属于 PROXY 协议头的连接会被立即关闭，不再交给游戏的握手解码器。
+ * 最后一次超过阈值后经过冷却时间即自动恢复。每次切换都会记录日志并计数。
+ * <p>
+ * 全局共用一个实例，或按 {@code flood-guard.per-listener} 为每个监听器策略各建一个，见 {@link DetectorConfig#getFloodGuard}。
+ */
+public final class FloodGuard {
+    static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private static final byte[] V1_PREFIX = {'P', 'R', 'O', 'X', 'Y', ' '};
+    private static final byte[] V2_SIGNATURE = {
+            0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A
+    };
+
+    private static final LongAdder engagements = new LongAdder();
+    @Nullable
+    private static volatile Logger logger;
+
+    private final String name;
+    private final int threshold;
+    private final long coolDown;
+    private final LongAdder window = new LongAdder();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    /** 仅接受代理状态的截止时刻，0 表示未处于该状态 */
+    private final AtomicLong engagedUntil = new AtomicLong();
+
+    public static void start(Logger logger) {
+        FloodGuard.logger = logger;
+    }
+
+    /**
+     * 返回负责该连接的洪泛保护；未启用，或来源地址在 {@link FastLane} 中时返回 {@code null}。
+     */
+    @Nullable
+    public static FloodGuard of(Channel ch) {
+        FloodGuard guard = DetectorConfig.config.getFloodGuard(ListenerPolicy.of(ch));
+        return guard == null || FastLane.contains(ch.remoteAddress()) ? null : guard;
+    }
+
+    /**
+     * @param name      日志中显示的范围，如“监听器 public ”
+     * @param threshold 每秒直连数阈值
+     * @param coolDown  恢复前的冷却时间（纳秒）
+     */
+    FloodGuard(String name, int threshold, long coolDown) {
+        this.name = name;
+        this.threshold = threshold;
+        this.coolDown = coolDown;
+    }
+
+    /**
+     * 检测器判定了一个直连。
+     *
+     * @return 当前处于仅接受代理状态、该连接应被关闭时返回 {@code true}
+     */
+    public boolean recordDirect() {
+        return recordDirect(System.nanoTime());
+    }
+
+    boolean recordDirect(long now) {
+        window.increment();
+        long start = windowStart.get();
+        long elapsed = now - start;
+        if (elapsed >= WINDOW && windowStart.compareAndSet(start, now)) {
+            long rate = window.sumThenReset() * WINDOW / elapsed;
+            if (rate > threshold) engage(now, rate);
+        }
+        return isEngaged(now);
+    }
+
+    /**
+     * 是否处于仅接受代理状态；冷却时间已过时在此切换回来。
+     */
+    public boolean isEngaged() {
+        return isEngaged(System.nanoTime());
+    }
+
+    boolean isEngaged(long now) {
+        long until = engagedUntil.get();
+        if (until == 0) return false;
+        if (now - until < 0) return true;
+        if (engagedUntil.compareAndSet(until, 0)) {
+            log(Level.INFO, "直连洪泛已平息，" + name + "恢复自动检测");
+        }
+        return false;
+    }
+
+    private void engage(long now, long rate) {
+        long until = now + coolDown;
+        if (until == 0) until = 1;
+        if (engagedUntil.getAndSet(until) == 0) {
+            engagements.increment();
+            log(Level.WARNING, "检测到直连洪泛（每秒 " + rate + " 个，阈值 " + threshold + "），" + name
+                    + "切换为仅接受代理，直至洪泛停止 " + TimeUnit.NANOSECONDS.toSeconds(coolDown) + " 秒后");
+        }
+    }
+
+    static void resetEngagements() {
+        engagements.reset();
+    }
+
+    private static void log(Level level, String message) {
+        Logger l = logger;
+        if (l != null) l.log(level, message);
+    }
+
+    /**
+     * 已收到的字节是否仍可能是 PROXY v1 或 v2 协议头的开头。
+     */
+    public static boolean isProxyPrefix(ByteBuf in) {
+        int readable = in.readableBytes();
+        if (readable == 0) return true;
+        byte[] expected = in.getByte(in.readerIndex()) == 'P' ? V1_PREFIX : V2_SIGNATURE;
+        int n = Math.min(readable, expected.length);
+        for (int i = 0; i < n; i++) {
+            if (in.getByte(in.readerIndex() + i) != expected[i]) return false;
+        }
+        return true;
+    }
+
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>(1);
+        if (DetectorConfig.config.getFloodGuardThreshold() == 0) return lines;
+        lines.add("直连洪泛保护：切换为仅接受代理 " + engagements.sum() + " 次，拦截连接 " + DetectorStats.get(DetectionOutcome.DROPPED) + " 个");
+        return lines;
+    }
+}
@@ -30,96 +30,237 @@ import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.ProtocolDetectionResult;
 import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
 import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import net.andylizi.haproxydetector.accesslog.AccessLogHandler;
+import net.andylizi.haproxydetector.jfr.DetectorEvents;
+import net.andylizi.haproxydetector.trace.ConnectionCapture;
+import net.andylizi.haproxydetector.trace.TraceCapture;
+import org.jetbrains.annotations.Nullable;
 
 public class HAProxyDetectorHandler extends ByteToMessageDecoder {
     private final Logger logger;
     private final ChannelHandler haproxyHandler;
+    @Nullable
+    private final ProxyWhitelist whitelist;
+    private boolean received;
+    private long injectedAt;
+    private ConnectionCapture capture = TraceCapture.sample();
+    @Nullable
+    private FloodGuard floodGuard;
 
     {
         setSingleDecode(true);
     }
 
     public HAProxyDetectorHandler(Logger logger, ChannelHandler haproxyHandler) {
+        this(logger, haproxyHandler, ProxyWhitelist.whitelist);
+    }
+
+    /**
+     * @param whitelist 校验代理来源使用的白名单，{@code null} 表示不做限制
+     */
+    public HAProxyDetectorHandler(Logger logger, ChannelHandler haproxyHandler, @Nullable ProxyWhitelist whitelist) {
         this.logger = logger;
         this.haproxyHandler = haproxyHandler;
+        this.whitelist = whitelist;
+    }
+
+    /**
+     * 标记此连接参与延迟采样，{@code nanos} 为注入完成的时刻。
+     */
+    public void setInjectedAt(long nanos) {
+        this.injectedAt = nanos;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        CumulationLimiter.install(ctx.pipeline(), ctx.name());
+        floodGuard = FloodGuard.of(ctx.channel());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!received && injectedAt != 0) {
+            LatencyStats.recordSince(LatencyStage.FIRST_BYTES, injectedAt);
+        }
+        received = true;
+        if (capture != null && msg instanceof ByteBuf) {
+            capture.append((ByteBuf) msg);
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        if (capture != null) {
+            capture.finish(whitelist, ctx.channel());
+            capture = null;
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (!received && DetectorConfig.config.isHealthCheckConnectClose()) {
+            // connect-then-close, nothing was ever passed on to the game
+            DetectorStats.record(DetectionOutcome.HEALTH_CHECK);
+        }
+        super.channelInactive(ctx);
     }
 
     @Override
     public void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
         try {
-            if (logger != null) {
+            if (logger != null && logger.isLoggable(Level.INFO)) {
                 logger.info("HAProxy 检测器：正在处理来自 " + ctx.channel().remoteAddress() + " 的 " + in.readableBytes() + " 字节数据");
             }
-            
+
+            Object event = DetectorEvents.beginDetection();
+            int bytesInspected = in.readableBytes();
+            DetectorConfig config = DetectorConfig.config;
+            byte[] probe = config.getHealthCheckProbe();
+            if (probe != null) {
+                int match = HealthCheck.matchProbe(in, probe);
+                if (match == HealthCheck.PARTIAL) {
+                    return; // 等待更多数据
+                } else if (match == HealthCheck.MATCH) {
+                    if (logger != null && logger.isLoggable(Level.INFO)) {
+                        logger.info("HAProxy 检测器：来自 " + ctx.channel().remoteAddress() + " 的健康检查探测");
+                    }
+                    decided(event, ctx, null, bytesInspected, DetectionOutcome.HEALTH_CHECK);
+                    HealthCheck.complete(ctx, in, config.getHealthCheckResponse());
+                    return;
+                }
+            }
+
+            if (floodGuard != null && floodGuard.isEngaged() && !FloodGuard.isProxyPrefix(in)) {
+                floodGuard.recordDirect(); // keeps the flood window going
+                dropped(event, ctx, in, bytesInspected);
+                return;
+            }
+
             // 安全检查：确保有足够的数据进行检测
             if (in.readableBytes() < 16) {
-                if (logger != null) {
+                if (logger != null && logger.isLoggable(Level.INFO)) {
                     logger.info("HAProxy 检测器：数据不足以进行检测（" + in.readableBytes() + " 字节），等待更多数据...");
                 }
                 return; // 等待更多数据
             }
             
             ProtocolDetectionResult<HAProxyProtocolVersion> detectionResult;
+            long detectStart = injectedAt != 0 ? System.nanoTime() : 0;
             try {
                 detectionResult = HAProxyMessageDecoder.detectProtocol(in);
+                if (detectStart != 0) LatencyStats.recordSince(LatencyStage.DETECT, detectStart);
             } catch (IndexOutOfBoundsException e) {
-                if (logger != null) {
+                if (logger != null && logger.isLoggable(Level.INFO)) {
                     logger.info("HAProxy 检测器：检测过程中发生缓冲区下溢，等待更多数据。错误：" + e.getMessage());
                 }
                 return; // 等待更多数据
             }
             
-            if (logger != null) {
+            if (logger != null && logger.isLoggable(Level.INFO)) {
                 logger.info("HAProxy 检测结果：" + detectionResult.state() + "，来源 " + ctx.channel().remoteAddress());
             }
             
             switch (detectionResult.state()) {
                 case NEEDS_MORE_DATA:
-                    if (logger != null) {
+                    if (logger != null && logger.isLoggable(Level.INFO)) {
                         logger.info("HAProxy 检测器：需要更多数据，等待中...");
                     }
                     return;
                 case INVALID:
-                    if (logger != null) {
+                    if (logger != null && logger.isLoggable(Level.INFO)) {
                         logger.info("HAProxy 检测器：协议无效，从 " + ctx.channel().remoteAddress() + " 移除检测器");
                     }
+                    if (floodGuard != null && floodGuard.recordDirect()) {
+                        dropped(event, ctx, in, bytesInspected);
+                        return;
+                    }
+                    decided(event, ctx, null, bytesInspected, DetectionOutcome.DIRECT);
                     ctx.pipeline().remove(this);
                     break;
                 case DETECTED:
                 default:
-                    if (logger != null) {
+                    if (logger != null && logger.isLoggable(Level.INFO)) {
                         logger.info("检测到 HAProxy 协议，来源 " + ctx.channel().remoteAddress() + "，版本：" + detectionResult.detectedProtocol());
                     }
                     SocketAddress addr = ctx.channel().remoteAddress();
-                    if (logger != null) {
+                    if (logger != null && logger.isLoggable(Level.INFO)) {
                         logger.info("HAProxy 检测器：正在校验白名单，地址：" + addr);
                     }
                     
-                    if (!ProxyWhitelist.check(addr)) {
-                        if (logger != null) {
+                    HAProxyProtocolVersion version = detectionResult.detectedProtocol();
+                    Object lookupEvent = DetectorEvents.beginWhitelistLookup();
+                    long lookupStart = injectedAt != 0 ? System.nanoTime() : 0;
+                    boolean whitelisted = ProxyWhitelist.check(whitelist, ctx.channel());
+                    if (lookupStart != 0) LatencyStats.recordSince(LatencyStage.WHITELIST, lookupStart);
+                    DetectorEvents.commitWhitelistLookup(lookupEvent, addr, version, bytesInspected, whitelisted);
+                    if (!whitelisted) {
+                        if (logger != null && logger.isLoggable(Level.WARNING)) {
                             logger.warning("HAProxy 检测器：来源地址 " + addr + " 不在白名单，关闭连接");
                         }
+                        decided(event, ctx, version, bytesInspected, DetectionOutcome.REJECTED);
+                        SharedBanTable.reportOffender(addr);
                         try {
-                            ProxyWhitelist.getWarningFor(addr).ifPresent(logger::info);
+                            if (logger != null) ProxyWhitelist.getWarningFor(addr).ifPresent(logger::info);
                         } finally {
                             ctx.close();
                         }
                         return;
                     }
 
-                    if (logger != null) {
+                    if (version == HAProxyProtocolVersion.V2 && config.isVerifyCrc32c()) {
+                        int checksum = ProxyChecksumVerifier.verify(in);
+                        if (checksum == ProxyChecksumVerifier.NEEDS_MORE_DATA) {
+                            return; // 等待完整的协议头
+                        } else if (checksum == ProxyChecksumVerifier.INVALID) {
+                            if (logger != null && logger.isLoggable(Level.WARNING)) {
+                                logger.warning("HAProxy 检测器：来自 " + addr + " 的 PROXY 协议头 CRC32C 校验失败，关闭连接");
+                            }
+                            decided(event, ctx, version, bytesInspected, DetectionOutcome.CORRUPTED);
+                            in.skipBytes(in.readableBytes());
+                            ctx.close();
+                            return;
+                        }
+                    }
+
+                    if (config.isHealthCheckLocal() && version == HAProxyProtocolVersion.V2
+                            && HealthCheck.isLocalCommand(in)) {
+                        if (logger != null && logger.isLoggable(Level.INFO)) {
+                            logger.info("HAProxy 检测器：来自 " + addr + " 的 LOCAL 健康检查");
+                        }
+                        decided(event, ctx, version, bytesInspected, DetectionOutcome.HEALTH_CHECK);
+                        HealthCheck.complete(ctx, in, null);
+                        return;
+                    }
+                    decided(event, ctx, version, bytesInspected, DetectionOutcome.PROXIED);
+                    if (injectedAt != 0) {
+                        ctx.channel().attr(LatencyStats.DECIDED_AT).set(System.nanoTime());
+                    }
+
+                    if (logger != null && logger.isLoggable(Level.INFO)) {
                         logger.info("HAProxy 检测器：白名单校验通过，开始配置管线");
                     }
 
                     ChannelPipeline pipeline = ctx.pipeline();
+                    if (haproxyHandler instanceof ProxyHeaderDecoder) {
+                        // parses the header and applies the address itself, no HAProxyMessage involved
+                        if (pipeline.get("haproxy-decoder") != null) {
+                            pipeline.remove("haproxy-decoder");
+                        }
+                        pipeline.replace(this, "haproxy-decoder", haproxyHandler);
+                        if (logger != null && logger.isLoggable(Level.INFO)) {
+                            logger.info("HAProxy 检测器：已用 PROXY 协议头解析器替换检测器");
+                        }
+                        break;
+                    }
                     try {
                         pipeline.replace(this, "haproxy-decoder", new HAProxyMessageDecoder());
-                        if (logger != null) {
+                        if (logger != null && logger.isLoggable(Level.INFO)) {
                             logger.info("HAProxy 检测器：已用 HAProxy 解码器替换检测器");
                         }
                     } catch (IllegalArgumentException ignored) {
                         pipeline.remove(this); // decoder already exists
-                        if (logger != null) {
+                        if (logger != null && logger.isLoggable(Level.WARNING)) {
                             logger.warning("HAProxy 检测器：解码器已存在，移除检测器");
                         }
                     }
@@ -127,36 +268,39 @@ public class HAProxyDetectorHandler extends ByteToMessageDecoder {
                     if (haproxyHandler != null) {
                         try {
                             pipeline.addAfter("haproxy-decoder", "haproxy-handler", haproxyHandler);
-                            if (logger != null) {
+                            if (logger != null && logger.isLoggable(Level.INFO)) {
                                 logger.info("HAProxy 检测器：已将 HAProxy 处理器添加至管线");
                             }
                         } catch (IllegalArgumentException ignored) {
-                            if (logger != null) {
+                            if (logger != null && logger.isLoggable(Level.WARNING)) {
                                 logger.warning("HAProxy 检测器：处理器已存在");
                             }
                         } catch (NoSuchElementException e) {  // Not sure why but...
-                            if (logger != null) {
+                            if (logger != null && logger.isLoggable(Level.WARNING)) {
                                 logger.warning("HAProxy 检测器：未找到解码器，尝试备用放置位置");
                             }
                             if (pipeline.get("timeout") != null) {
                                 pipeline.addAfter("timeout", "haproxy-decoder", new HAProxyMessageDecoder());
                                 pipeline.addAfter("timeout", "haproxy-handler", haproxyHandler);
-                                if (logger != null) {
+                                if (logger != null && logger.isLoggable(Level.INFO)) {
                                     logger.info("HAProxy 检测器：已在 timeout 处理器之后添加组件");
                                 }
                             } else {
                                 pipeline.addFirst("haproxy-handler", haproxyHandler);
                                 pipeline.addFirst("haproxy-decoder", new HAProxyMessageDecoder());
-                                if (logger != null) {
+                                if (logger != null && logger.isLoggable(Level.INFO)) {
                                     logger.info("HAProxy 检测器：已在管线开头添加组件");
                                 }
                             }
                         }
                     } else {
-                        if (logger != null) {
+                        if (logger != null && logger.isLoggable(Level.INFO)) {
                             logger.info("HAProxy 检测器：未提供 HAProxy 处理器");
                         }
                     }
+                    RealAddressRecorder.install(pipeline, "haproxy-decoder");
+                    AccessLogHandler.install(pipeline, "haproxy-decoder");
+                    BlocklistInspector.install(pipeline, "haproxy-decoder");
                     break;
             }
         }  catch (Throwable t) {  // stop BC from eating my exceptions
@@ -166,4 +310,19 @@ public class HAProxyDetectorHandler extends ByteToMessageDecoder {
                 t.printStackTrace();
         }
     }
+
+    private static void dropped(Object event, ChannelHandlerContext ctx, ByteBuf in, int bytesInspected) {
+        decided(event, ctx, null, bytesInspected, DetectionOutcome.DROPPED);
+        in.skipBytes(in.readableBytes());
+        ctx.close();
+    }
+
+    private static void decided(Object event, ChannelHandlerContext ctx, HAProxyProtocolVersion version,
+                                int bytesInspected, DetectionOutcome outcome) {
+        DetectorStats.record(outcome);
+        if (version != null && outcome != DetectionOutcome.REJECTED) {
+            ProxyNodeStats.record(ctx.channel().remoteAddress(), version, bytesInspected, outcome);
+        }
+        DetectorEvents.commitDetection(event, ctx.channel().remoteAddress(), version, bytesInspected, outcome);
+    }
 }
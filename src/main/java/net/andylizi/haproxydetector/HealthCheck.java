@@ -0,0 +1,50 @@
+package net.andylizi.haproxydetector;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * 负载均衡器健康检查的识别与快速处理。
+ * <p>
+ * 被识别的连接由检测器直接收尾，剩余数据不会传递给游戏的握手/登录处理器。
+ */
+public final class HealthCheck {
+    public static final int MISMATCH = 0;
+    public static final int PARTIAL = 1;
+    public static final int MATCH = 2;
+
+    /**
+     * 将缓冲区开头与配置的探测字节串比较，不移动读指针。
+     */
+    public static int matchProbe(ByteBuf in, byte[] probe) {
+        int len = Math.min(in.readableBytes(), probe.length);
+        int base = in.readerIndex();
+        for (int i = 0; i < len; i++) {
+            if (in.getByte(base + i) != probe[i]) return MISMATCH;
+        }
+        return len == probe.length ? MATCH : PARTIAL;
+    }
+
+    /**
+     * 判断已检测为 PROXY v2 的数据是否为 LOCAL 命令，调用方需保证至少有 13 字节可读。
+     */
+    public static boolean isLocalCommand(ByteBuf in) {
+        return (in.getByte(in.readerIndex() + 12) & 0x0F) == 0;
+    }
+
+    /**
+     * 丢弃已收到的数据，按需回写响应后关闭连接。
+     */
+    public static void complete(ChannelHandlerContext ctx, ByteBuf in, byte[] response) {
+        in.skipBytes(in.readableBytes());
+        if (response != null) {
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(response)).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            ctx.close();
+        }
+    }
+
+    private HealthCheck() {throw new AssertionError();}
+}
@@ -0,0 +1,62 @@
+package net.andylizi.haproxydetector;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+import static net.andylizi.haproxydetector.ReflectionUtil.sneakyThrow;
+
+/**
+ * {@link Crc32c} 使用的 JDK {@code java.util.zip.CRC32C}，Java 9 起才有，这里通过方法句柄访问。
+ * {@code src/main/java17} 中有直接调用的 Java 17 版本。
+ */
+final class JdkCrc32c {
+    /** {@code () -> Checksum}，不可用时为 {@code null} */
+    private static final MethodHandle NEW;
+    /** {@code (Checksum, ByteBuffer) -> void} */
+    private static final MethodHandle UPDATE_BUFFER;
+
+    static {
+        MethodHandle newJdk = null, updateBuffer = null;
+        try {
+            Class<?> cls = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            newJdk = lookup.findConstructor(cls, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            updateBuffer = lookup.findVirtual(cls, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException ignored) {
+            // Java 8
+        }
+        NEW = updateBuffer == null ? null : newJdk;
+        UPDATE_BUFFER = updateBuffer;
+    }
+
+    static boolean isAvailable() {
+        return NEW != null;
+    }
+
+    /**
+     * 仅在 {@link #isAvailable()} 时调用。
+     */
+    static Checksum create() {
+        try {
+            return (Checksum) NEW.invokeExact();
+        } catch (Throwable e) {
+            sneakyThrow(e);
+            throw new AssertionError();
+        }
+    }
+
+    static void update(Checksum crc, ByteBuffer buffer) {
+        try {
+            UPDATE_BUFFER.invokeExact(crc, buffer);
+        } catch (Throwable e) {
+            sneakyThrow(e);
+        }
+    }
+
+    private JdkCrc32c() {throw new AssertionError();}
+}
@@ -0,0 +1,136 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+
+/**
+ * 启用时的可选 JIT 预热（{@code jit-warmup.*} 配置项）。
+ * <p>
+ * 重启后最先涌入的正是部署后的重连高峰，而此时检测、白名单匹配与管线改写的代码还在解释执行或仅经过 C1 编译。
+ * 预热在 {@link EmbeddedChannel} 上调用平台真实的注入代码，反复模拟直连、PROXY v1、PROXY v2 与被拒绝的连接，
+ * 直到次数用完或超出时间预算，使这些方法在第一个真实连接到来前就被 C2 编译。
+ * <p>
+ * 模拟连接使用保留地址；预热期间 {@link DetectorConfig#config} 换成 {@link DetectorConfig#forWarmup 副本}，
+ * 监听器策略只有使用预热专用白名单的默认策略。地址最终写入一次性的目标，结束后撤销模拟连接在统计与代理节点计数中留下的痕迹。
+ * 须在 {@link SharedBanTable}、{@link Blocklist}、{@link net.andylizi.haproxydetector.accesslog.AccessLog}
+ * 、{@link FloodGuard} 与 {@link net.andylizi.haproxydetector.trace.TraceCapture} 启动之前调用，以免模拟连接进入这些共享状态。
+ */
+public final class JitWarmup {
+    private static final InetSocketAddress PROXY = new InetSocketAddress("192.0.2.1", 40000);
+    private static final InetSocketAddress STRANGER = new InetSocketAddress("192.0.2.2", 40000);
+    private static final InetSocketAddress PLAYER = new InetSocketAddress("192.0.2.3", 40000);
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("0.0.0.0", 25565);
+
+    private static final byte[] HANDSHAKE = {
+            0x10, 0x00, (byte) 0xF9, 0x05, 0x09, 'l', 'o', 'c', 'a', 'l', 'h', 'o', 's', 't', 0x63, (byte) 0xDD, 0x01
+    };
+    private static final byte[] V1 = concat(
+            "PROXY TCP4 198.51.100.7 192.0.2.1 40000 25565\r\n".getBytes(StandardCharsets.US_ASCII), HANDSHAKE);
+    private static final byte[] V2 = concat(new byte[]{
+            0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A,
+            0x21, 0x11, 0x00, 0x0C,
+            (byte) 198, 51, 100, 7, (byte) 192, 0, 2, 1, (byte) 0x9C, 0x40, 0x63, (byte) 0xDD
+    }, HANDSHAKE);
+
+    /**
+     * 平台注入检测器的步骤。
+     */
+    @FunctionalInterface
+    public interface Injector {
+        /**
+         * 调用平台注入检测器的代码，把检测器放入 {@code ch} 的管线。
+         */
+        void inject(Channel ch) throws Exception;
+    }
+
+    /**
+     * @param platformDecoder 平台是否像 BungeeCord 与 Velocity 那样已在管线最前面放好名为 {@code haproxy-decoder} 的解码器
+     * @return 实际模拟的连接数，未启用时为 0
+     */
+    public static int run(Logger logger, boolean platformDecoder, Injector injector) {
+        DetectorConfig config = DetectorConfig.config;
+        if (!config.isJitWarmupEnabled()) return 0;
+
+        ProxyWhitelist whitelist = new ProxyWhitelist(Arrays.asList(new CIDR(PROXY.getAddress(), 32)));
+        long[] stats = DetectorStats.snapshot();
+        // the platforms' handlers log every connection they rewrite
+        Level level = logger.getLevel();
+        logger.setLevel(Level.WARNING);
+        DetectorConfig.config = config.forWarmup(whitelist);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(config.getJitWarmupMaxMillis());
+        int connections = 0;
+        try {
+            for (int limit = config.getJitWarmupConnections(); connections < limit; connections++) {
+                if ((connections & 0xFF) == 0 && System.nanoTime() - deadline > 0) break;
+                switch (connections & 3) {
+                    case 0: simulate(platformDecoder, injector, PLAYER, HANDSHAKE); break;
+                    case 1: simulate(platformDecoder, injector, PROXY, V1); break;
+                    case 2: simulate(platformDecoder, injector, PROXY, V2); break;
+                    default: simulate(platformDecoder, injector, STRANGER, V2); break;
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "JIT 预热在第 " + connections + " 个模拟连接时失败", e);
+        } finally {
+            DetectorConfig.config = config;
+            logger.setLevel(level);
+            DetectorStats.rollback(stats);
+            ProxyNodeStats.reset();
+            RealAddressService.clear();
+            FloodGuard.resetEngagements();
+        }
+        logger.info("JIT 预热完成：模拟了 " + connections + " 个连接，耗时 "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " 毫秒");
+        return connections;
+    }
+
+    private static void simulate(boolean platformDecoder, Injector injector, SocketAddress remote, byte[] input)
+            throws Exception {
+        EmbeddedChannel ch = new EmbeddedChannel() {
+            @Override
+            protected SocketAddress localAddress0() {
+                return LOCAL;
+            }
+
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return remote;
+            }
+        };
+        try {
+            // the shape every platform leaves behind before we inject
+            ChannelPipeline pipeline = ch.pipeline();
+            if (platformDecoder) {
+                pipeline.addLast("haproxy-decoder", new HAProxyMessageDecoder());
+            }
+            pipeline.addLast("timeout", new ChannelInboundHandlerAdapter());
+            pipeline.addLast("packet_handler", new ChannelInboundHandlerAdapter());
+
+            injector.inject(ch);
+            ch.writeInbound(Unpooled.wrappedBuffer(input));
+        } finally {
+            ch.finishAndReleaseAll();
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private JitWarmup() {throw new AssertionError();}
+}
@@ -0,0 +1,105 @@
+package net.andylizi.haproxydetector;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * 固定内存、无锁的对数分桶延迟直方图。
+ * <p>
+ * 每个写入线程（即每个事件循环）拥有独立的桶数组，只有该线程会写入，
+ * 读取时再将所有线程的数据合并。每个 2 的幂区间再细分为 4 个子桶，相对误差不超过 25%。
+ */
+public final class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 2;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int MAX_SLOT = BUCKETS;
+
+    private final List<LongSlots> recorders = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<LongSlots> local = new FastThreadLocal<LongSlots>() {
+        @Override
+        protected LongSlots initialValue() {
+            LongSlots recorder = new LongSlots(BUCKETS + 1);
+            recorders.add(recorder);
+            return recorder;
+        }
+    };
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        int shift = exp - SUB_BUCKET_BITS;
+        if (shift >= 64 - SUB_BUCKET_BITS - 1) return Long.MAX_VALUE;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * 记录一个以纳秒为单位的数值。只能由当前线程的写入者调用，不会阻塞也不会分配内存。
+     */
+    public void record(long nanos) {
+        LongSlots recorder = local.get();
+        recorder.increment(bucketOf(nanos));
+        recorder.max(MAX_SLOT, nanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        long max = 0;
+        for (LongSlots recorder : recorders) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = recorder.get(i);
+                counts[i] += n;
+                total += n;
+            }
+            max = Math.max(max, recorder.get(MAX_SLOT));
+        }
+        return new Snapshot(counts, total, max);
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] counts, long total, long max) {
+            this.counts = counts;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * 返回给定分位（0~1）所在桶的上界，单位为纳秒。
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (total == 0) return 0;
+            long threshold = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= threshold && seen > 0) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
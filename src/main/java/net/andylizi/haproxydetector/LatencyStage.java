@@ -0,0 +1,27 @@
+package net.andylizi.haproxydetector;
+
+/**
+ * 连接建立过程中被单独计时的各个阶段。
+ */
+public enum LatencyStage {
+    /** 从 channelActive（或通道初始化）到检测器注入完成 */
+    INJECT("注入"),
+    /** 从注入完成到收到第一批数据 */
+    FIRST_BYTES("等待首包"),
+    /** 单次 detectProtocol 调用 */
+    DETECT("协议检测"),
+    /** 单次白名单检查 */
+    WHITELIST("白名单检查"),
+    /** 从判定为代理连接到真实地址被应用 */
+    APPLY("地址应用");
+
+    private final String displayName;
+
+    LatencyStage(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,61 @@
+package net.andylizi.haproxydetector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.netty.util.AttributeKey;
+
+/**
+ * 各阶段的延迟直方图。是否计时按连接采样决定，采样率由 {@code stats.latency-sample-rate} 配置。
+ */
+public final class LatencyStats {
+    /** 被采样的代理连接完成判定的时刻，供地址应用阶段计时 */
+    public static final AttributeKey<Long> DECIDED_AT = AttributeKey.valueOf("haproxy-detector-decided-at");
+
+    private static final LatencyStage[] STAGES = LatencyStage.values();
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[STAGES.length];
+
+    static {
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * 决定是否对新连接计时。
+     */
+    public static boolean sample() {
+        int rate = DetectorConfig.config.getLatencySampleRate();
+        return rate == 1 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    public static void record(LatencyStage stage, long nanos) {
+        HISTOGRAMS[stage.ordinal()].record(nanos);
+    }
+
+    public static void recordSince(LatencyStage stage, long startNanos) {
+        HISTOGRAMS[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>(STAGES.length + 1);
+        lines.add("各阶段延迟（微秒，p50 / p90 / p99 / p99.9 / 最大，采样数）：");
+        for (LatencyStage stage : STAGES) {
+            LatencyHistogram.Snapshot s = HISTOGRAMS[stage.ordinal()].snapshot();
+            lines.add("  " + stage.getDisplayName() + "：" + micros(s.getValueAtPercentile(0.5))
+                    + " / " + micros(s.getValueAtPercentile(0.9))
+                    + " / " + micros(s.getValueAtPercentile(0.99))
+                    + " / " + micros(s.getValueAtPercentile(0.999))
+                    + " / " + micros(s.getMax())
+                    + "，" + s.getCount());
+        }
+        return lines;
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+
+    private LatencyStats() {throw new AssertionError();}
+}
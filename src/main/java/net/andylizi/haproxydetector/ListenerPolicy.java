@@ -0,0 +1,159 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Locale;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import net.andylizi.haproxydetector.accesslog.AccessLogHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 单个监听器（绑定地址与端口）的检测策略，连同该监听器专用的白名单快照在加载配置时一次性构建。
+ */
+public final class ListenerPolicy {
+    private static final AttributeKey<ListenerPolicy> POLICY = AttributeKey.valueOf("haproxydetector:listener-policy");
+
+    /**
+     * 返回新连接所属监听器的策略。策略在第一次查询时解析并缓存在监听器的服务端通道上，
+     * 之后同一监听器的连接直接读取缓存；重新加载配置后缓存会自动失效。
+     */
+    @NotNull
+    public static ListenerPolicy of(Channel ch) {
+        DetectorConfig config = DetectorConfig.config;
+        Channel listener = ch.parent();
+        if (listener == null) return config.getListenerPolicy(ch.localAddress());
+
+        Attribute<ListenerPolicy> attr = listener.attr(POLICY);
+        ListenerPolicy policy = attr.get();
+        if (policy == null || !config.ownsListenerPolicy(policy)) {
+            policy = config.getListenerPolicy(listener.localAddress());
+            attr.set(policy);
+        }
+        return policy;
+    }
+
+    public enum Mode {
+        /** 不做任何处理，保持平台原有的管线 */
+        DISABLED,
+        /** 自动检测直连与代理连接 */
+        DETECT,
+        /** 只接受来自白名单代理的连接，直接交给 HAProxy 解码器 */
+        PROXY_REQUIRED,
+        /** 只接受直连，移除 HAProxy 解码器 */
+        DIRECT_ONLY;
+
+        static Mode parse(String key, String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("配置项 " + key
+                        + " 必须为 disabled、detect、proxy-required 或 direct-only：" + value, e);
+            }
+        }
+    }
+
+    private final String name;
+    /** {@code null} 表示任意地址 */
+    @Nullable
+    private final InetAddress host;
+    private final int port;
+    private final Mode mode;
+    @Nullable
+    private final ProxyWhitelist whitelist;
+
+    public ListenerPolicy(@NotNull String name, @Nullable InetAddress host, int port, @NotNull Mode mode,
+                          @Nullable ProxyWhitelist whitelist) {
+        this.name = name;
+        this.host = host == null || host.isAnyLocalAddress() ? null : host;
+        this.port = port;
+        this.mode = mode;
+        this.whitelist = whitelist;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * 该监听器使用的白名单，{@code null} 表示白名单已禁用。
+     */
+    @Nullable
+    public ProxyWhitelist getWhitelist() {
+        return whitelist;
+    }
+
+    /**
+     * 判断监听地址是否属于该策略。绑定在通配地址上的监听器只能匹配主机为 {@code *} 的条目。
+     */
+    public boolean matches(SocketAddress localAddress) {
+        if (!(localAddress instanceof InetSocketAddress)) return false;
+        InetSocketAddress local = (InetSocketAddress) localAddress;
+        return local.getPort() == port && (host == null || host.equals(local.getAddress()));
+    }
+
+    /**
+     * 主机为 {@code *} 的条目。同一监听地址同时匹配它与指定主机的条目时，以后者为准。
+     */
+    boolean isWildcard() {
+        return host == null;
+    }
+
+    boolean sameBind(ListenerPolicy other) {
+        return port == other.port && (host == null ? other.host == null : host.equals(other.host));
+    }
+
+    /**
+     * 对 {@link Mode#DETECT} 以外的模式直接处理新连接，不注入检测器。
+     *
+     * @param decoder 平台已放入管线的 HAProxy 解码器
+     * @return 连接已处理完毕时返回 {@code true}；{@link Mode#DETECT} 返回 {@code false}
+     */
+    public boolean applyWithoutDetection(Channel ch, ChannelHandler decoder) {
+        switch (mode) {
+            case DISABLED:
+                return true;
+            case DIRECT_ONLY:
+                ch.pipeline().remove(decoder);
+                DetectorStats.record(DetectionOutcome.DIRECT);
+                return true;
+            case PROXY_REQUIRED:
+                SocketAddress addr = ch.remoteAddress();
+                if (ProxyWhitelist.check(whitelist, ch)) {
+                    DetectorStats.record(DetectionOutcome.PROXIED);
+                    ProxyNodeStats.record(addr, null, 0, DetectionOutcome.PROXIED);
+                    CumulationLimiter.install(ch.pipeline(), decoder);
+                    if (DetectorConfig.config.isVerifyCrc32c()) {
+                        ch.pipeline().addBefore(ch.pipeline().context(decoder).name(), "haproxy-checksum",
+                                new ProxyChecksumVerifier());
+                    }
+                    RealAddressRecorder.install(ch.pipeline(), decoder);
+                    AccessLogHandler.install(ch.pipeline(), decoder);
+                    BlocklistInspector.install(ch.pipeline(), decoder);
+                } else {
+                    DetectorStats.record(DetectionOutcome.REJECTED);
+                    SharedBanTable.reportOffender(addr);
+                    ch.close();
+                }
+                return true;
+            case DETECT:
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerPolicy{" + name + ", " + (host == null ? "*" : host.getHostAddress()) + ":" + port
+                + ", " + mode + "}";
+    }
+}
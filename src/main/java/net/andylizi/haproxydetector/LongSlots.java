@@ -0,0 +1,31 @@
+package net.andylizi.haproxydetector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link LatencyHistogram} 中单个写入线程的计数槽位：只有所属线程写入，其他线程随时读取。
+ * {@code src/main/java17} 中有 Java 17 版本。
+ */
+final class LongSlots {
+    private final AtomicLongArray slots;
+
+    LongSlots(int length) {
+        this.slots = new AtomicLongArray(length);
+    }
+
+    long get(int i) {
+        return slots.get(i);
+    }
+
+    /** 只能由所属线程调用 */
+    void increment(int i) {
+        slots.lazySet(i, slots.get(i) + 1);
+    }
+
+    /** 只能由所属线程调用 */
+    void max(int i, long value) {
+        if (value > slots.get(i)) {
+            slots.lazySet(i, value);
+        }
+    }
+}
@@ -6,11 +6,19 @@ import org.bstats.charts.SimplePie;
 public final class MetricsId {
     public static String KEY_WHITELIST_COUNT = "whitelist_count";
     public static String KEY_PROTOCOLLIB_VERSION = "protocollib_version";
+    public static String KEY_PROXY_NODE_COUNT = "proxy_node_count";
 
     public static CustomChart createWhitelistCountChart() {
         return new SimplePie(KEY_WHITELIST_COUNT,
                 () -> ProxyWhitelist.whitelist == null ? "0" : Integer.toString(ProxyWhitelist.whitelist.size()));
     }
 
+    /**
+     * 只上报见到过的代理节点数量，不上报节点地址。
+     */
+    public static CustomChart createProxyNodeCountChart() {
+        return new SimplePie(KEY_PROXY_NODE_COUNT, () -> Integer.toString(ProxyNodeStats.getNodeCount()));
+    }
+
     private MetricsId() {throw new AssertionError();}
 }
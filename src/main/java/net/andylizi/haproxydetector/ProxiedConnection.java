@@ -0,0 +1,64 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+
+/**
+ * 一个经由 PROXY 协议接入的连接：代理（负载均衡器）的地址、解析出的真实客户端地址、协议版本以及是否带有 TLV。
+ * 创建后不再改变，可在任意线程读取。
+ */
+public final class ProxiedConnection {
+    private final SocketAddress proxyAddress;
+    private final InetSocketAddress realAddress;
+    private final int version;
+    private final boolean hasTlvs;
+
+    public ProxiedConnection(SocketAddress proxyAddress, InetSocketAddress realAddress, int version, boolean hasTlvs) {
+        this.proxyAddress = proxyAddress;
+        this.realAddress = realAddress;
+        this.version = version;
+        this.hasTlvs = hasTlvs;
+    }
+
+    static ProxiedConnection of(SocketAddress proxyAddress, HAProxyMessage msg) {
+        return new ProxiedConnection(proxyAddress, new InetSocketAddress(msg.sourceAddress(), msg.sourcePort()),
+                msg.protocolVersion() == HAProxyProtocolVersion.V1 ? 1 : 2, !msg.tlvs().isEmpty());
+    }
+
+    static ProxiedConnection of(SocketAddress proxyAddress, ProxyHeader header) {
+        return new ProxiedConnection(proxyAddress, header.sourceAddress(), header.getVersion(), header.hasTlvs());
+    }
+
+    /** 代理一侧的地址，即底层套接字的远程地址 */
+    public SocketAddress getProxyAddress() {
+        return proxyAddress;
+    }
+
+    /** PROXY 协议头中的来源地址 */
+    public InetSocketAddress getRealAddress() {
+        return realAddress;
+    }
+
+    /** PROXY 协议版本，{@code 1} 或 {@code 2} */
+    public int getVersion() {
+        return version;
+    }
+
+    /** 协议头是否携带 TLV（仅 v2） */
+    public boolean hasTlvs() {
+        return hasTlvs;
+    }
+
+    @Override
+    public String toString() {
+        return "ProxiedConnection{" +
+                "proxy=" + proxyAddress +
+                ", real=" + realAddress +
+                ", version=" + version +
+                ", tlvs=" + hasTlvs +
+                '}';
+    }
+}
@@ -0,0 +1,80 @@
+package net.andylizi.haproxydetector;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.ProtocolDetectionResult;
+import io.netty.handler.codec.ProtocolDetectionState;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+
+/**
+ * 校验 PROXY v2 协议头中的 {@code PP2_TYPE_CRC32C} TLV。Netty 的 {@link HAProxyMessageDecoder} 不做此校验。
+ * <p>
+ * 检测器在判定为 v2 后直接调用 {@link #verify(ByteBuf)}；不经过检测器的连接则将本处理器放在解码器之前，
+ * 校验通过（或协议头不含该 TLV）后即移出管线，缓冲的数据原样交给解码器。
+ */
+public final class ProxyChecksumVerifier extends ByteToMessageDecoder {
+    /** 协议头中没有 CRC32C TLV */
+    public static final int ABSENT = 0;
+    public static final int VALID = 1;
+    /** 校验和不符，或 TLV 被截断 */
+    public static final int INVALID = 2;
+    public static final int NEEDS_MORE_DATA = 3;
+
+    private static final int PP2_TYPE_CRC32C = 0x03;
+
+    /**
+     * 校验已检测为 v2 的协议头，不移动读指针。
+     */
+    public static int verify(ByteBuf in) {
+        if (in.readableBytes() < 16) return NEEDS_MORE_DATA;
+        int base = in.readerIndex();
+        int length = in.getUnsignedShort(base + 14);
+        if (in.readableBytes() < 16 + length) return NEEDS_MORE_DATA;
+
+        int addressLength;
+        switch ((in.getByte(base + 13) & 0xF0) >> 4) {
+            case 1: addressLength = 12; break;  // AF_INET
+            case 2: addressLength = 36; break;  // AF_INET6
+            case 3: addressLength = 216; break; // AF_UNIX
+            default: addressLength = 0; break;
+        }
+        if (addressLength > length) return ABSENT; // malformed, the decoder will reject it
+
+        int end = base + 16 + length;
+        for (int i = base + 16 + addressLength; i < end; ) {
+            if (end - i < 3) return INVALID;
+            int type = in.getUnsignedByte(i);
+            int valueLength = in.getUnsignedShort(i + 1);
+            int value = i + 3;
+            if (value + valueLength > end) return INVALID;
+            if (type == PP2_TYPE_CRC32C) {
+                if (valueLength != 4) return INVALID;
+                int expected = in.getInt(value);
+                return Crc32c.checksum(in, base, 16 + length, value, 4) == expected ? VALID : INVALID;
+            }
+            i = value + valueLength;
+        }
+        return ABSENT;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        ProtocolDetectionResult<HAProxyProtocolVersion> result = HAProxyMessageDecoder.detectProtocol(in);
+        if (result.state() == ProtocolDetectionState.NEEDS_MORE_DATA) return;
+        if (result.state() == ProtocolDetectionState.DETECTED && result.detectedProtocol() == HAProxyProtocolVersion.V2) {
+            int checksum = verify(in);
+            if (checksum == NEEDS_MORE_DATA) return;
+            if (checksum == INVALID) {
+                DetectorStats.record(DetectionOutcome.CORRUPTED);
+                in.skipBytes(in.readableBytes());
+                ctx.close();
+                return;
+            }
+        }
+        ctx.pipeline().remove(this);
+    }
+}
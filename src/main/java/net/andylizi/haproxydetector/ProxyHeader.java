@@ -0,0 +1,120 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * {@link ProxyHeaderParser} 的解析结果，地址以基本类型保存，可在同一连接上复用。
+ * <p>
+ * IPv4 地址保存在低位字的低 32 位；IPv6 地址按网络字节序拆成高低两个 64 位字。
+ */
+public final class ProxyHeader {
+    public static final int FAMILY_UNSPEC = 0;
+    public static final int FAMILY_INET = 1;
+    public static final int FAMILY_INET6 = 2;
+    public static final int FAMILY_UNIX = 3;
+
+    int version;
+    boolean local;
+    int family;
+    long sourceHigh, sourceLow;
+    long destinationHigh, destinationLow;
+    int sourcePort, destinationPort;
+    boolean hasTlvs;
+
+    void reset() {
+        version = 0;
+        local = false;
+        family = FAMILY_UNSPEC;
+        sourceHigh = sourceLow = destinationHigh = destinationLow = 0;
+        sourcePort = destinationPort = 0;
+        hasTlvs = false;
+    }
+
+    /** 1 或 2 */
+    public int getVersion() {
+        return version;
+    }
+
+    /** 是否为 v2 LOCAL 命令（负载均衡器自身发起的连接） */
+    public boolean isLocal() {
+        return local;
+    }
+
+    public int getFamily() {
+        return family;
+    }
+
+    /** 是否携带真实的 IPv4/IPv6 地址 */
+    public boolean hasAddresses() {
+        return !local && (family == FAMILY_INET || family == FAMILY_INET6);
+    }
+
+    public long getSourceHigh() {
+        return sourceHigh;
+    }
+
+    public long getSourceLow() {
+        return sourceLow;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public long getDestinationHigh() {
+        return destinationHigh;
+    }
+
+    public long getDestinationLow() {
+        return destinationLow;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    public boolean hasTlvs() {
+        return hasTlvs;
+    }
+
+    /**
+     * 构造真实客户端地址，不携带地址时返回 {@code null}。
+     */
+    @Nullable
+    public InetSocketAddress sourceAddress() {
+        return hasAddresses() ? toSocketAddress(sourceHigh, sourceLow, sourcePort) : null;
+    }
+
+    @Nullable
+    public InetSocketAddress destinationAddress() {
+        return hasAddresses() ? toSocketAddress(destinationHigh, destinationLow, destinationPort) : null;
+    }
+
+    private InetSocketAddress toSocketAddress(long high, long low, int port) {
+        byte[] bytes;
+        if (family == FAMILY_INET) {
+            bytes = new byte[]{(byte) (low >>> 24), (byte) (low >>> 16), (byte) (low >>> 8), (byte) low};
+        } else {
+            bytes = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (high >>> (56 - i * 8));
+                bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+            }
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e); // only thrown for an illegal length
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyHeader{v" + version + (local ? " LOCAL" : "") + ", family=" + family
+                + ", source=" + sourceAddress() + ", destination=" + destinationAddress() + ", tlvs=" + hasTlvs + '}';
+    }
+}
@@ -0,0 +1,63 @@
+package net.andylizi.haproxydetector;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import net.andylizi.haproxydetector.accesslog.AccessLog;
+import net.andylizi.haproxydetector.jfr.DetectorEvents;
+
+/**
+ * 用 {@link ProxyHeaderParser} 取代 Netty 的 {@code HAProxyMessageDecoder} 及其后的处理器，不创建 {@code HAProxyMessage}。
+ * <p>
+ * 解析出协议头后依次做黑名单检查、写访问日志、记录到 {@link RealAddressService}，再交给 {@link #proxied} 应用真实地址，
+ * 后两步计入一次地址改写的 JFR 事件；解码器随即移出管线，协议头之后的数据原样向后传递。格式错误的协议头会使连接被关闭。
+ */
+public abstract class ProxyHeaderDecoder extends ByteToMessageDecoder {
+    private final ProxyHeader header = new ProxyHeader();
+
+    {
+        setSingleDecode(true);
+    }
+
+    @Override
+    protected final void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        int length = ProxyHeaderParser.parse(in, header);
+        if (length == ProxyHeaderParser.NEEDS_MORE_DATA) {
+            return;
+        } else if (length == ProxyHeaderParser.INVALID) {
+            ProxyNodeStats.recordFailure(ctx.channel().remoteAddress());
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+            return;
+        }
+
+        in.skipBytes(length);
+        ctx.pipeline().remove(this);
+        if (!header.hasAddresses()) { // LOCAL or UNKNOWN: keep the socket's own address
+            if (header.isLocal()) ProxyNodeStats.recordLocal(ctx.channel().remoteAddress());
+            return;
+        }
+
+        if (Blocklist.check(header)) {
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+            return;
+        }
+        AccessLog.record(ctx.channel(), header);
+        Object event = DetectorEvents.beginAddressRewrite();
+        ProxiedConnection connection = ProxiedConnection.of(ctx.channel().remoteAddress(), header);
+        RealAddressService.record(ctx.channel(), connection);
+        proxied(ctx, connection);
+        DetectorEvents.commitAddressRewrite(event, ctx.channel().remoteAddress(),
+                header.getVersion() == 1 ? HAProxyProtocolVersion.V1 : HAProxyProtocolVersion.V2, length,
+                connection.getRealAddress());
+    }
+
+    /**
+     * 收到携带 IPv4/IPv6 地址的 PROXY 协议头，此时解码器已移出管线，连接也已记录到 {@link RealAddressService}。
+     */
+    protected abstract void proxied(ChannelHandlerContext ctx, ProxiedConnection connection);
+}
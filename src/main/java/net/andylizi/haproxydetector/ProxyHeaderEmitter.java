@@ -0,0 +1,72 @@
+package net.andylizi.haproxydetector;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * 在发往后端服务器的连接上，于第一次写出数据之前发送二进制 PROXY v2 协议头，随后将自身移出管线。
+ * <p>
+ * 协议头是定长布局，直接写入池化的直接缓冲区，不经过任何字符串转换。
+ * 后端（例如安装了本插件的 Spigot）即可从协议头中取得玩家的真实地址。
+ */
+@Sharable
+public abstract class ProxyHeaderEmitter extends ChannelOutboundHandlerAdapter {
+    /** 12 字节签名加上版本/命令字节（v2，PROXY） */
+    private static final byte[] PREFIX = {
+            0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A, 0x21
+    };
+    private static final byte TCP4 = 0x11;
+    private static final byte TCP6 = 0x21;
+
+    /**
+     * 返回该后端连接所属玩家的真实地址，无法确定时返回 {@code null}，此时不会发送协议头。
+     */
+    protected abstract InetSocketAddress clientAddress(ChannelHandlerContext ctx);
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        InetSocketAddress source = clientAddress(ctx);
+        SocketAddress destination = ctx.channel().remoteAddress();
+        if (source != null && destination instanceof InetSocketAddress) {
+            ctx.write(encode(ctx.alloc(), source, (InetSocketAddress) destination), ctx.voidPromise());
+        }
+        ctx.write(msg, promise);
+        ctx.pipeline().remove(this);
+    }
+
+    public static ByteBuf encode(ByteBufAllocator alloc, InetSocketAddress source, InetSocketAddress destination) {
+        InetAddress src = source.getAddress();
+        InetAddress dst = destination.getAddress();
+        boolean v4 = src instanceof Inet4Address && dst instanceof Inet4Address;
+        int addressLength = v4 ? 12 : 36;
+
+        ByteBuf buf = alloc.directBuffer(PREFIX.length + 3 + addressLength);
+        buf.writeBytes(PREFIX);
+        buf.writeByte(v4 ? TCP4 : TCP6);
+        buf.writeShort(addressLength);
+        writeAddress(buf, src, v4);
+        writeAddress(buf, dst, v4);
+        buf.writeShort(source.getPort());
+        buf.writeShort(destination.getPort());
+        return buf;
+    }
+
+    private static void writeAddress(ByteBuf buf, InetAddress address, boolean v4) {
+        byte[] bytes = address.getAddress();
+        if (!v4 && bytes.length == 4) {
+            // IPv4-mapped IPv6 address, ::ffff:a.b.c.d
+            buf.writeZero(10);
+            buf.writeShort(0xFFFF);
+        }
+        buf.writeBytes(bytes);
+    }
+}
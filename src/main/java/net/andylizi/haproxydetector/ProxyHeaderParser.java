@@ -0,0 +1,359 @@
+package net.andylizi.haproxydetector;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 直接从 {@link ByteBuf} 解析 PROXY v1 文本与 v2 二进制协议头，地址与端口解析为基本类型写入 {@link ProxyHeader}，
+ * 过程中不创建字符串或其他中间对象。接受与拒绝的输入与 Netty 的 {@code HAProxyMessageDecoder} 保持一致。
+ */
+public final class ProxyHeaderParser {
+    public static final int NEEDS_MORE_DATA = 0;
+    public static final int INVALID = -1;
+
+    /** v1 协议头（含 CRLF）的最大长度 */
+    static final int V1_MAX_LENGTH = 108;
+    static final int V2_HEADER_LENGTH = 16;
+    private static final int PP2_TYPE_SSL = 0x20;
+
+    private static final byte[] V1_PREFIX = {'P', 'R', 'O', 'X', 'Y'};
+    private static final byte[] V2_SIGNATURE = {
+            0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A
+    };
+
+    private ProxyHeaderParser() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 解析可读区域开头的协议头，不移动读指针。
+     *
+     * @return 协议头的字节数；数据不足时返回 {@link #NEEDS_MORE_DATA}，格式错误时返回 {@link #INVALID}
+     */
+    public static int parse(ByteBuf in, ProxyHeader out) {
+        out.reset();
+        int base = in.readerIndex();
+        int readable = in.readableBytes();
+        // like Netty, nothing is decided before the signature and the version byte are in,
+        // and anything without the v2 signature is taken as a v1 line
+        if (readable <= V2_SIGNATURE.length) return NEEDS_MORE_DATA;
+        if (!startsWith(in, base, V2_SIGNATURE)) return parseV1(in, base, readable, out);
+        // version byte 0x01 sends Netty down the v1 path, where the signature's leading CRLF is an empty line
+        if (in.getByte(base + V2_SIGNATURE.length) == 0x01) return INVALID;
+        return parseV2(in, base, readable, out);
+    }
+
+    private static boolean startsWith(ByteBuf in, int base, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (in.getByte(base + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static int parseV2(ByteBuf in, int base, int readable, ProxyHeader out) {
+        if (readable < V2_HEADER_LENGTH) return NEEDS_MORE_DATA;
+        int length = in.getUnsignedShort(base + 14);
+        int total = V2_HEADER_LENGTH + length;
+        if (readable < total) return NEEDS_MORE_DATA;
+
+        int verCmd = in.getUnsignedByte(base + 12);
+        if ((verCmd >>> 4) != 2) return INVALID;
+        int command = verCmd & 0x0F;
+        if (command > 1) return INVALID;
+        out.version = 2;
+        if (command == 0) {
+            out.local = true;
+            return total; // LOCAL: the rest of the header is not looked at
+        }
+
+        int addressLength;
+        switch (in.getUnsignedByte(base + 13)) {
+            case 0x00: // UNSPEC
+                out.family = ProxyHeader.FAMILY_UNSPEC;
+                addressLength = 0;
+                break;
+            case 0x11: case 0x12: // TCP4, UDP4
+                out.family = ProxyHeader.FAMILY_INET;
+                addressLength = 12;
+                break;
+            case 0x21: case 0x22: // TCP6, UDP6
+                out.family = ProxyHeader.FAMILY_INET6;
+                addressLength = 36;
+                break;
+            case 0x31: case 0x32: // UNIX_STREAM, UNIX_DGRAM
+                out.family = ProxyHeader.FAMILY_UNIX;
+                addressLength = 216;
+                break;
+            default:
+                return INVALID;
+        }
+        if (out.family == ProxyHeader.FAMILY_UNSPEC) {
+            return total; // the address block, if any, is ignored
+        }
+        if (length < addressLength) return INVALID;
+
+        int p = base + V2_HEADER_LENGTH;
+        if (out.family == ProxyHeader.FAMILY_INET) {
+            out.sourceLow = in.getUnsignedInt(p);
+            out.destinationLow = in.getUnsignedInt(p + 4);
+            out.sourcePort = in.getUnsignedShort(p + 8);
+            out.destinationPort = in.getUnsignedShort(p + 10);
+        } else if (out.family == ProxyHeader.FAMILY_INET6) {
+            out.sourceHigh = in.getLong(p);
+            out.sourceLow = in.getLong(p + 8);
+            out.destinationHigh = in.getLong(p + 16);
+            out.destinationLow = in.getLong(p + 24);
+            out.sourcePort = in.getUnsignedShort(p + 32);
+            out.destinationPort = in.getUnsignedShort(p + 34);
+        }
+        int tlvs = countTlvs(in, p + addressLength, base + total);
+        if (tlvs < 0) return INVALID;
+        out.hasTlvs = tlvs > 0;
+        return total;
+    }
+
+    /**
+     * 按 Netty 的规则遍历 TLV：剩余不足 4 字节时停止，值超出范围视为错误，
+     * {@code PP2_TYPE_SSL} 的值至少 5 字节，其后可嵌套子 TLV。
+     *
+     * @return TLV 个数（含嵌套），格式错误时返回 -1
+     */
+    private static int countTlvs(ByteBuf in, int from, int end) {
+        int count = 0;
+        int p = from;
+        while (end - p >= 4) {
+            int type = in.getUnsignedByte(p);
+            int length = in.getUnsignedShort(p + 1);
+            int value = p + 3;
+            if (length > end - value) return -1;
+            count++;
+            if (type == PP2_TYPE_SSL) {
+                if (length < 5) return -1; // client flags and verify result
+                int nested = countTlvs(in, value + 5, value + length);
+                if (nested < 0) return -1;
+                count += nested;
+            }
+            p = value + length;
+        }
+        return count;
+    }
+
+    private static int parseV1(ByteBuf in, int base, int readable, ProxyHeader out) {
+        int limit = Math.min(readable, V1_MAX_LENGTH);
+        int eol = -1;
+        for (int i = base; i < base + limit - 1; i++) {
+            if (in.getByte(i) == '\r' && in.getByte(i + 1) == '\n') {
+                eol = i;
+                break;
+            }
+        }
+        if (eol < 0) return readable > V1_MAX_LENGTH ? INVALID : NEEDS_MORE_DATA;
+        int total = eol + 2 - base;
+
+        // same field splitting as String.split(" "): single spaces, trailing empty fields dropped
+        int end = eol;
+        while (end > base && in.getByte(end - 1) == ' ') end--;
+
+        int p = base + V1_PREFIX.length;
+        if (p >= end || !startsWith(in, base, V1_PREFIX)) return INVALID; // "PROXY" alone
+        if (in.getByte(p++) != ' ') return INVALID;
+
+        int protoEnd = indexOfSpace(in, p, end);
+        int family;
+        if (matches(in, p, protoEnd, "TCP4")) {
+            family = ProxyHeader.FAMILY_INET;
+        } else if (matches(in, p, protoEnd, "TCP6")) {
+            family = ProxyHeader.FAMILY_INET6;
+        } else if (matches(in, p, protoEnd, "UNKNOWN")) {
+            out.version = 1;
+            out.family = ProxyHeader.FAMILY_UNSPEC;
+            return total;
+        } else {
+            return INVALID;
+        }
+
+        out.version = 1;
+        out.family = family;
+        p = protoEnd;
+        for (int field = 0; field < 4; field++) {
+            if (p >= end || in.getByte(p) != ' ') return INVALID;
+            int start = p + 1;
+            int fieldEnd = indexOfSpace(in, start, end);
+            if (fieldEnd == start) return INVALID;
+            switch (field) {
+                case 0:
+                case 1:
+                    boolean source = field == 0;
+                    if (family == ProxyHeader.FAMILY_INET) {
+                        long address = parseIpv4(in, start, fieldEnd);
+                        if (address < 0) return INVALID;
+                        if (source) out.sourceLow = address;
+                        else out.destinationLow = address;
+                    } else if (!parseIpv6(in, start, fieldEnd, out, source)) {
+                        return INVALID;
+                    }
+                    break;
+                default:
+                    int port = parsePort(in, start, fieldEnd);
+                    if (port < 0) return INVALID;
+                    if (field == 2) out.sourcePort = port;
+                    else out.destinationPort = port;
+                    break;
+            }
+            p = fieldEnd;
+        }
+        return p == end ? total : INVALID; // more than 6 fields otherwise
+    }
+
+    private static int indexOfSpace(ByteBuf in, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (in.getByte(i) == ' ') return i;
+        }
+        return end;
+    }
+
+    private static boolean matches(ByteBuf in, int from, int to, String s) {
+        if (to - from != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (in.getByte(from + i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /** 端口为 1~65535 的十进制数，与 {@link Integer#parseInt} 一样允许前导 {@code +} 和前导零，错误时返回 -1 */
+    static int parsePort(ByteBuf in, int from, int to) {
+        if (from < to && in.getByte(from) == '+') from++;
+        if (from == to) return -1;
+        int port = 0;
+        for (int i = from; i < to; i++) {
+            int d = in.getByte(i) - '0';
+            if (d < 0 || d > 9) return -1;
+            port = port * 10 + d;
+            if (port > 65535) return -1;
+        }
+        return port > 0 ? port : -1;
+    }
+
+    /** 点分十进制 IPv4，错误时返回 -1 */
+    static long parseIpv4(ByteBuf in, int from, int to) {
+        long value = 0;
+        int parts = 0;
+        int p = from;
+        while (true) {
+            int octet = 0, digits = 0;
+            while (p < to && digits < 4) {
+                int d = in.getByte(p) - '0';
+                if (d < 0 || d > 9) break;
+                octet = octet * 10 + d;
+                digits++;
+                p++;
+            }
+            if (digits == 0 || digits > 3 || octet > 255) return -1;
+            value = value << 8 | octet;
+            if (++parts == 4) break;
+            if (p >= to || in.getByte(p) != '.') return -1;
+            p++;
+        }
+        return p == to ? value : -1;
+    }
+
+    /**
+     * 文本格式的 IPv6 地址，支持 {@code ::} 压缩、方括号、{@code %} 区域标识（忽略）以及
+     * IPv4 兼容或映射地址末尾内嵌的点分 IPv4。
+     */
+    static boolean parseIpv6(ByteBuf in, int from, int to, ProxyHeader out, boolean source) {
+        if (from < to && in.getByte(from) == '[') {
+            if (in.getByte(to - 1) != ']') return false;
+            from++;
+            to--;
+        }
+        for (int i = from; i < to; i++) {
+            if (in.getByte(i) == '%') {
+                to = i;
+                break;
+            }
+        }
+
+        // groups before "::" are placed from the left, groups after it are shifted in from the right
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int groups = 0;
+        boolean gap = false, embedded = false;
+        int p = from;
+        if (to - from >= 2 && in.getByte(p) == ':' && in.getByte(p + 1) == ':') {
+            gap = true;
+            p += 2;
+        } else if (p < to && in.getByte(p) == ':') {
+            return false;
+        }
+
+        while (p < to) {
+            int start = p;
+            int value = 0;
+            while (p < to && p - start < 5) {
+                int h = hexValue(in.getByte(p));
+                if (h < 0) break;
+                value = value << 4 | h;
+                p++;
+            }
+
+            int count = 1;
+            long v4 = 0;
+            if (p < to && in.getByte(p) == '.') {
+                // embedded IPv4 takes the last two groups
+                v4 = parseIpv4(in, start, to);
+                if (v4 < 0) return false;
+                value = (int) (v4 >>> 16);
+                count = 2;
+                embedded = true;
+                p = to;
+            } else if (p == start || p - start > 4) {
+                return false;
+            }
+
+            for (int k = 0; k < count; k++) {
+                if (groups == 8) return false;
+                if (k == 1) value = (int) (v4 & 0xFFFF);
+                if (gap) {
+                    tailHigh = tailHigh << 16 | tailLow >>> 48;
+                    tailLow = tailLow << 16 | value;
+                } else if (groups < 4) {
+                    headHigh |= (long) value << (48 - groups * 16);
+                } else {
+                    headLow |= (long) value << (48 - (groups - 4) * 16);
+                }
+                groups++;
+            }
+
+            if (p == to) break;
+            if (in.getByte(p) != ':') return false;
+            p++;
+            if (p < to && in.getByte(p) == ':') {
+                if (gap) return false;
+                gap = true;
+                p++;
+            } else if (p == to) {
+                return false; // trailing single ':'
+            }
+        }
+
+        if (gap ? groups > 7 : groups != 8) return false;
+        long high = headHigh | tailHigh, low = headLow | tailLow;
+        if (embedded && (high != 0 || (low >>> 32 != 0 && low >>> 32 != 0xFFFF))) {
+            return false; // dotted form is only accepted for IPv4-compatible and IPv4-mapped addresses
+        }
+        if (source) {
+            out.sourceHigh = high;
+            out.sourceLow = low;
+        } else {
+            out.destinationHigh = high;
+            out.destinationLow = low;
+        }
+        return true;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+}
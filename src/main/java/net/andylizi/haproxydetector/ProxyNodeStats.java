@@ -0,0 +1,159 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 按代理节点（发来 PROXY 协议头的白名单地址）分别计数，用于观察负载均衡是否均匀、哪个节点在发送损坏的协议头。
+ * <p>
+ * 节点保存在以地址哈希为键的开放寻址表中，只增不删，查找不分配对象；
+ * 白名单通常只包含少数几个负载均衡节点，超出 {@link #MAX_NODES} 个之后出现的地址合并计入“其他”。
+ */
+public final class ProxyNodeStats {
+    static final int MAX_NODES = 256;
+    static final int TOP_N = 5;
+
+    private static final AtomicReferenceArray<Node> table = new AtomicReferenceArray<>(MAX_NODES * 2);
+    private static final AtomicInteger size = new AtomicInteger();
+    private static final Node other = new Node(null, 0);
+
+    /**
+     * 检测器对白名单代理的连接作出判定时调用。
+     *
+     * @param version 检测到的协议版本，{@code null} 表示未经检测（如仅接受代理的监听器）
+     */
+    public static void record(SocketAddress remote, @Nullable HAProxyProtocolVersion version, int bytesInspected,
+                              DetectionOutcome outcome) {
+        Node node = node(remote);
+        if (node == null) return;
+        node.connections.increment();
+        if (version == HAProxyProtocolVersion.V1) {
+            node.v1.increment();
+        } else if (version == HAProxyProtocolVersion.V2) {
+            node.v2.increment();
+        }
+        node.bytesInspected.add(bytesInspected);
+        if (outcome == DetectionOutcome.HEALTH_CHECK) {
+            node.local.increment();
+        } else if (outcome == DetectionOutcome.CORRUPTED) {
+            node.failures.increment();
+        }
+    }
+
+    /**
+     * 解码器收到了 {@code LOCAL} 命令（未被健康检查快速通道处理）。
+     */
+    public static void recordLocal(SocketAddress remote) {
+        Node node = node(remote);
+        if (node != null) node.local.increment();
+    }
+
+    /**
+     * 检测之后的解码阶段发现协议头格式错误。
+     */
+    public static void recordFailure(SocketAddress remote) {
+        Node node = node(remote);
+        if (node != null) node.failures.increment();
+    }
+
+    @Nullable
+    static Node node(SocketAddress remote) {
+        if (!(remote instanceof InetSocketAddress)) return null;
+        InetAddress address = ((InetSocketAddress) remote).getAddress();
+        if (address == null) return null;
+        int hash = address.hashCode() * 0x9E3779B9;
+        int mask = table.length() - 1;
+        for (int i = (hash ^ hash >>> 16) & mask; ; i = (i + 1) & mask) {
+            Node node = table.get(i);
+            if (node == null) {
+                if (size.get() >= MAX_NODES) return other;
+                Node created = new Node(address, hash);
+                if (table.compareAndSet(i, null, created)) {
+                    size.incrementAndGet();
+                    return created;
+                }
+                node = table.get(i);
+            }
+            if (node.hash == hash && address.equals(node.address)) return node;
+        }
+    }
+
+    /**
+     * 按连接数从多到少排列的前 {@code n} 个节点。
+     */
+    static List<Node> top(int n) {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < table.length(); i++) {
+            Node node = table.get(i);
+            if (node != null) nodes.add(node);
+        }
+        if (other.connections.sum() != 0 || other.failures.sum() != 0) nodes.add(other);
+        nodes.sort(Comparator.comparingLong((Node node) -> node.connections.sum()).reversed());
+        return nodes.size() > n ? nodes.subList(0, n) : nodes;
+    }
+
+    /**
+     * 清空所有节点，供 {@link JitWarmup} 抹去模拟连接留下的计数。
+     */
+    static void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+        size.set(0);
+        for (LongAdder adder : new LongAdder[]{other.connections, other.v1, other.v2, other.local, other.failures,
+                other.bytesInspected}) {
+            adder.reset();
+        }
+    }
+
+    /**
+     * 见到过的代理节点数。
+     */
+    public static int getNodeCount() {
+        return size.get();
+    }
+
+    public static List<String> report() {
+        List<Node> top = top(TOP_N);
+        List<String> lines = new ArrayList<>(top.size() + 1);
+        if (top.isEmpty()) return lines;
+        lines.add("代理节点（共 " + getNodeCount() + " 个，按连接数前 " + top.size() + " 名）：");
+        for (Node node : top) {
+            long connections = node.connections.sum();
+            lines.add("  " + (node.address == null ? "其他" : node.address.getHostAddress())
+                    + "：连接 " + connections + "（v1 " + node.v1.sum() + "，v2 " + node.v2.sum() + "）"
+                    + "，LOCAL " + node.local.sum() + "，协议头错误 " + node.failures.sum()
+                    + "，判定前平均检查 " + (connections == 0 ? 0 : node.bytesInspected.sum() / connections) + " 字节");
+        }
+        return lines;
+    }
+
+    static final class Node {
+        @Nullable
+        final InetAddress address;
+        final int hash;
+        final LongAdder connections = new LongAdder();
+        final LongAdder v1 = new LongAdder();
+        final LongAdder v2 = new LongAdder();
+        final LongAdder local = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder bytesInspected = new LongAdder();
+
+        Node(@Nullable InetAddress address, int hash) {
+            this.address = address;
+            this.hash = hash;
+        }
+    }
+
+    private ProxyNodeStats() {throw new AssertionError();}
+}
@@ -1,5 +1,7 @@
 package net.andylizi.haproxydetector;
 
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.BufferedReader;
@@ -19,18 +21,36 @@ public class ProxyWhitelist {
     @Nullable
     public static ProxyWhitelist whitelist = new ProxyWhitelist(new ArrayList<>(0));
 
-    private static volatile InetAddress lastWarning;
+    /** per event loop, so a scan from many addresses doesn't bounce one shared field between cores */
+    private static final FastThreadLocal<InetAddress> lastWarning = new FastThreadLocal<>();
 
     public static boolean check(SocketAddress addr) {
+        return check(whitelist, addr);
+    }
+
+    /**
+     * 使用指定的白名单快照检查地址，{@code whitelist} 为 {@code null} 表示白名单已禁用。
+     */
+    public static boolean check(@Nullable ProxyWhitelist whitelist, SocketAddress addr) {
         if (whitelist == null) return true;
         return addr instanceof InetSocketAddress && whitelist.matches(((InetSocketAddress) addr).getAddress());
     }
 
+    /**
+     * 检查连接的来源：网络连接按地址匹配，Unix 域套接字连接按 {@link UnixPeer} 中的对端凭据匹配 {@code uid:}/{@code gid:} 规则。
+     */
+    public static boolean check(@Nullable ProxyWhitelist whitelist, Channel ch) {
+        SocketAddress addr = ch.remoteAddress();
+        if (whitelist == null || addr instanceof InetSocketAddress) return check(whitelist, addr);
+        UnixPeer peer = UnixPeer.of(ch);
+        return peer != null && whitelist.matches(peer);
+    }
+
     public static Optional<String> getWarningFor(SocketAddress socketAddress) {
         if (!(socketAddress instanceof InetSocketAddress)) return Optional.empty();
         InetAddress address = ((InetSocketAddress) socketAddress).getAddress();
-        if (!address.equals(lastWarning)) {
-            lastWarning = address;
+        if (!address.equals(lastWarning.get())) {
+            lastWarning.set(address);
             return Optional.of("代理连接来源地址 " + address + " 不在白名单中");
         }
         return Optional.empty();
@@ -47,6 +67,7 @@ public class ProxyWhitelist {
                 "# 域名仅在启动时解析一次。",
                 "# 单个域名可解析出多个 A/AAAA 记录，均会被允许。",
                 "# 域名不支持附带 CIDR 前缀。",
+                "# 经 Unix 域套接字接入的 HAProxy 按进程凭据校验，写作 uid:<数字> 或 gid:<数字>。",
                 "",
                 "127.0.0.0/8",
                 "::1/128"
@@ -57,6 +78,7 @@ public class ProxyWhitelist {
 
     public static Optional<ProxyWhitelist> load(Path path) throws IOException {
         ArrayList<CIDR> list = new ArrayList<>();
+        List<Integer> uids = new ArrayList<>(), gids = new ArrayList<>();
         try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
             boolean first = true;
             String line;
@@ -68,20 +90,45 @@ public class ProxyWhitelist {
                     return Optional.empty();
                 }
                 first =false;
-                list.addAll(CIDR.parse(line));
+                if (line.startsWith("uid:")) {
+                    uids.add(parseId(line));
+                } else if (line.startsWith("gid:")) {
+                    gids.add(parseId(line));
+                } else {
+                    list.addAll(CIDR.parse(line));
+                }
             }
         }
-        return Optional.of(new ProxyWhitelist(list));
+        return Optional.of(new ProxyWhitelist(list, toArray(uids), toArray(gids)));
+    }
+
+    private static int parseId(String line) {
+        try {
+            int id = Integer.parseInt(line.substring(4).trim());
+            if (id >= 0) return id;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("无效的 uid/gid 规则：" + line);
+    }
+
+    private static int[] toArray(List<Integer> ids) {
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++) array[i] = ids.get(i);
+        return array;
     }
 
     private final List<CIDR> list;
+    private final int[] uids;
+    private final int[] gids;
 
-    private ProxyWhitelist(ArrayList<CIDR> list) {
+    private ProxyWhitelist(ArrayList<CIDR> list, int[] uids, int[] gids) {
         this.list = list;
+        this.uids = uids;
+        this.gids = gids;
     }
 
     public ProxyWhitelist(List<CIDR> list) {
-        this.list = new ArrayList<>(list);
+        this(new ArrayList<>(list), new int[0], new int[0]);
     }
 
     public boolean matches(InetAddress addr) {
@@ -93,12 +140,31 @@ public class ProxyWhitelist {
         return false;
     }
 
+    /**
+     * 对端的 uid 或任一 gid 命中规则即视为可信。
+     */
+    public boolean matches(UnixPeer peer) {
+        if (contains(uids, peer.getUid())) return true;
+        for (int gid : peer.gids()) {
+            if (contains(gids, gid)) return true;
+        }
+        return false;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int i : ids) {
+            if (i == id) return true;
+        }
+        return false;
+    }
+
     public int size() {
-        return this.list.size();
+        return this.list.size() + uids.length + gids.length;
     }
 
     @Override
     public String toString() {
-        return "ProxyWhitelist" + list;
+        return "ProxyWhitelist" + list + (uids.length == 0 ? "" : " uid" + Arrays.toString(uids))
+                + (gids.length == 0 ? "" : " gid" + Arrays.toString(gids));
     }
 }
@@ -0,0 +1,113 @@
+package net.andylizi.haproxydetector;
+
+import java.util.List;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyProtocolException;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import io.netty.handler.codec.haproxy.HAProxySSLTLV;
+import io.netty.handler.codec.haproxy.HAProxyTLV;
+import net.andylizi.haproxydetector.jfr.DetectorEvents;
+
+/**
+ * 紧跟在 HAProxy 解码器之后，把第一条 {@link HAProxyMessage} 交给 {@link RealAddressService}，随后即移出管线，消息原样向后传递。
+ * 在此之前解码器抛出的格式错误与收到的 {@code LOCAL} 命令计入 {@link ProxyNodeStats}。
+ * 应先于 {@link BlocklistInspector} 安装，使被黑名单拦截的连接不会被记录。
+ * <p>
+ * 记录过程计为一次地址改写的 JFR 事件，覆盖由平台自己的处理器应用真实地址的场景（Paper、BungeeCord、Velocity）。
+ */
+@Sharable
+public final class RealAddressRecorder extends ChannelInboundHandlerAdapter {
+    public static final RealAddressRecorder INSTANCE = new RealAddressRecorder();
+
+    /**
+     * 将记录器放在名为 {@code decoderName} 的解码器之后。
+     */
+    public static void install(ChannelPipeline pipeline, String decoderName) {
+        if (pipeline.get(RealAddressRecorder.class) == null) {
+            pipeline.addAfter(decoderName, "haproxy-real-address", INSTANCE);
+        }
+    }
+
+    /**
+     * 将记录器放在 {@code decoder} 之后。
+     */
+    public static void install(ChannelPipeline pipeline, ChannelHandler decoder) {
+        if (pipeline.get(RealAddressRecorder.class) == null) {
+            pipeline.addAfter(pipeline.context(decoder).name(), "haproxy-real-address", INSTANCE);
+        }
+    }
+
+    private RealAddressRecorder() {
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HAProxyMessage) {
+            ctx.pipeline().remove(this);
+            HAProxyMessage message = (HAProxyMessage) msg;
+            if (message.command() == HAProxyCommand.PROXY && isInet(message)) {
+                Object event = DetectorEvents.beginAddressRewrite();
+                ProxiedConnection connection = ProxiedConnection.of(ctx.channel().remoteAddress(), message);
+                RealAddressService.record(ctx.channel(), connection);
+                if (event != null) {
+                    DetectorEvents.commitAddressRewrite(event, ctx.channel().remoteAddress(), message.protocolVersion(),
+                            headerLength(message), connection.getRealAddress());
+                }
+            } else if (message.command() == HAProxyCommand.LOCAL) {
+                ProxyNodeStats.recordLocal(ctx.channel().remoteAddress());
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // still in the pipeline, so the decoder in front of us has not produced a message yet
+        if (cause instanceof HAProxyProtocolException) {
+            ProxyNodeStats.recordFailure(ctx.channel().remoteAddress());
+        }
+        ctx.fireExceptionCaught(cause);
+    }
+
+    /**
+     * 按消息内容还原出的协议头字节数；解码器不保留原始长度，v2 地址块之后的填充不计在内。
+     */
+    static int headerLength(HAProxyMessage message) {
+        if (message.protocolVersion() == HAProxyProtocolVersion.V1) {
+            // "PROXY TCP4 <src> <dst> <sport> <dport>\r\n", all ASCII
+            return 6 + message.proxiedProtocol().name().length()
+                    + 1 + message.sourceAddress().length() + 1 + message.destinationAddress().length()
+                    + 1 + digits(message.sourcePort()) + 1 + digits(message.destinationPort()) + 2;
+        }
+        int length = 16 + (message.proxiedProtocol().addressFamily() == HAProxyProxiedProtocol.AddressFamily.AF_IPv4
+                ? 12 : 36);
+        List<HAProxyTLV> tlvs = message.tlvs();
+        for (int i = 0; i < tlvs.size(); i++) {
+            HAProxyTLV tlv = tlvs.get(i);
+            length += 3 + tlv.content().readableBytes();
+            if (tlv instanceof HAProxySSLTLV) {
+                // the decoder lists the sub-TLVs right after their container, already counted in its content
+                i += ((HAProxySSLTLV) tlv).encapsulatedTLVs().size();
+            }
+        }
+        return length;
+    }
+
+    private static int digits(int port) {
+        return port < 10 ? 1 : port < 100 ? 2 : port < 1000 ? 3 : port < 10000 ? 4 : 5;
+    }
+
+    private static boolean isInet(HAProxyMessage message) {
+        HAProxyProxiedProtocol.AddressFamily family = message.proxiedProtocol().addressFamily();
+        return family == HAProxyProxiedProtocol.AddressFamily.AF_IPv4
+                || family == HAProxyProxiedProtocol.AddressFamily.AF_IPv6;
+    }
+}
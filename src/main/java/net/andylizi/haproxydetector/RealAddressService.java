@@ -0,0 +1,86 @@
+package net.andylizi.haproxydetector;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 供其他插件查询连接真实地址的服务，无需反射服务端内部字段。
+ * <p>
+ * 解析出 PROXY 协议头时，{@link ProxiedConnection} 被保存为通道属性；玩家登录时再从其通道读取，记入以 UUID 为键的索引。
+ * 两种查询都是常数时间且不分配对象，通道关闭时相应条目随之清除。直连的通道与玩家查询结果为 {@code null}。
+ */
+public final class RealAddressService {
+    private static final AttributeKey<ProxiedConnection> CONNECTION =
+            AttributeKey.valueOf("haproxydetector:proxied-connection");
+
+    private static final ConcurrentHashMap<UUID, ProxiedConnection> players = new ConcurrentHashMap<>();
+    /** {@link #players} 的反向索引，通道关闭时据此找到要清除的条目；{@link ProxiedConnection} 按引用比较 */
+    private static final ConcurrentHashMap<ProxiedConnection, UUID> bound = new ConcurrentHashMap<>();
+
+    private static final ChannelFutureListener CLEANUP = future -> {
+        ProxiedConnection connection = get(future.channel());
+        if (connection != null) forget(connection);
+    };
+
+    @Nullable
+    public static ProxiedConnection get(Channel ch) {
+        // hasAttr() first, attr() would create an empty attribute on direct connections
+        return ch.hasAttr(CONNECTION) ? ch.attr(CONNECTION).get() : null;
+    }
+
+    @Nullable
+    public static ProxiedConnection get(UUID player) {
+        return players.get(player);
+    }
+
+    /**
+     * 记录通道的 PROXY 信息。须在解析出协议头后、平台处理登录之前调用。
+     */
+    public static void record(Channel ch, ProxiedConnection connection) {
+        ch.attr(CONNECTION).set(connection);
+        ch.closeFuture().addListener(CLEANUP);
+    }
+
+    /**
+     * 玩家登录时调用：若该玩家的通道是代理连接，将其记入 UUID 索引，并把真实地址记入 {@link FastLane}。
+     *
+     * @param ch 平台为该玩家建立的连接通道，取不到时为 {@code null}
+     */
+    @Nullable
+    public static ProxiedConnection bind(UUID player, @Nullable Channel ch) {
+        if (ch == null) return null;
+        ProxiedConnection connection = get(ch);
+        if (connection == null) return null;
+        bound.put(connection, player);
+        players.put(player, connection);
+        // the close listener may have run before the entries above existed
+        if (!ch.isOpen()) forget(connection);
+        FastLane.record(connection.getRealAddress());
+        return connection;
+    }
+
+    /**
+     * 玩家断开时调用。通道关闭时也会自动清除，此方法只是让条目更早消失。
+     */
+    public static void unbind(UUID player) {
+        ProxiedConnection connection = players.remove(player);
+        if (connection != null) bound.remove(connection, player);
+    }
+
+    private static void forget(ProxiedConnection connection) {
+        UUID player = bound.remove(connection);
+        if (player != null) players.remove(player, connection);
+    }
+
+    public static void clear() {
+        players.clear();
+        bound.clear();
+    }
+
+    private RealAddressService() {throw new AssertionError();}
+}
@@ -0,0 +1,334 @@
+package net.andylizi.haproxydetector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.util.internal.PlatformDependent;
+import org.jetbrains.annotations.Nullable;
+import sun.misc.Unsafe;
+
+/**
+ * 同一主机上多个服务端实例共享的封禁与限速表。
+ * <p>
+ * 表存放在一个内存映射文件中，所有实例映射同一个文件，槽位通过 CAS 无锁更新，
+ * 因此一个实例检测到的攻击来源会立即对其他实例生效，无需任何网络服务。
+ * <p>
+ * 文件布局：64 字节头部（魔数、槽位数、版本计数器），之后是若干 32 字节槽位，每个槽位依次为
+ * 地址指纹、封禁截止时间（毫秒）、限速窗口（高 32 位为秒，低 32 位为该秒内的连接数）与保留字段。
+ * 槽位使用开放寻址，地址指纹为 0 表示空闲。每次封禁都会递增版本计数器。
+ */
+public final class SharedBanTable implements Closeable {
+    private static final long MAGIC = 0x48415044_42414E31L; // "HAPDBAN1"
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SLOTS = 8;
+    private static final int OFFSET_VERSION = 16;
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_BAN_UNTIL = 8;
+    private static final int SLOT_WINDOW = 16;
+    private static final int MAX_PROBES = 16;
+    /** 槽位在封禁结束且超过这么多秒没有连接后可被其他地址复用 */
+    private static final long IDLE_SECONDS = 60;
+
+    private static final Unsafe UNSAFE;
+
+    static {
+        Unsafe unsafe = null;
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+        } catch (Throwable ignored) {
+        }
+        UNSAFE = unsafe;
+    }
+
+    @Nullable
+    private static volatile SharedBanTable table;
+    private static final LongAdder refused = new LongAdder();
+    private static final LongAdder bans = new LongAdder();
+
+    public static void start(Logger logger, Path dataDirectory) throws IOException {
+        stop();
+        DetectorConfig config = DetectorConfig.config;
+        String path = config.getSharedTablePath();
+        if (path == null) return;
+        if (UNSAFE == null || !PlatformDependent.hasUnsafe()) {
+            logger.warning("当前 JVM 不支持 sun.misc.Unsafe，共享封禁表已禁用");
+            return;
+        }
+
+        SharedBanTable t = new SharedBanTable(dataDirectory.resolve(path), config.getSharedTableSlots());
+        if (t.slots != config.getSharedTableSlots()) {
+            logger.warning("共享封禁表 " + t.path + " 已由其他实例以 " + t.slots + " 个槽位创建，将沿用该大小");
+        }
+        table = t;
+        logger.info("已映射共享封禁表 " + t.path + "（" + t.slots + " 个槽位）");
+    }
+
+    public static void stop() {
+        SharedBanTable t = table;
+        if (t != null) {
+            table = null;
+            t.close();
+        }
+    }
+
+    /**
+     * 在新连接注入检测器之前调用。来源已被封禁或超出限速时返回 {@code false}，调用方应直接关闭连接。
+     * 连接所属监听器的白名单（见 {@link ListenerPolicy#getWhitelist()}）中的代理与 {@link FastLane} 中的地址不受限制。
+     */
+    public static boolean admit(Channel ch) {
+        return admit(ch, System.currentTimeMillis());
+    }
+
+    static boolean admit(Channel ch, long now) {
+        SharedBanTable t = table;
+        SocketAddress remoteAddress = ch.remoteAddress();
+        if (t == null || !(remoteAddress instanceof InetSocketAddress)
+                || ProxyWhitelist.check(ListenerPolicy.of(ch).getWhitelist(), ch) || FastLane.contains(remoteAddress))
+            return true;
+
+        int limit = DetectorConfig.config.getSharedTableRateLimit();
+        long key = keyOf(((InetSocketAddress) remoteAddress).getAddress());
+        try {
+            long slot = t.find(key, now, limit > 0);
+            if (slot < 0) return true; // unknown source, or the table is full around this key
+
+            if (UNSAFE.getLongVolatile(null, slot + SLOT_BAN_UNTIL) > now) {
+                refused.increment();
+                return false;
+            }
+
+            if (limit > 0 && t.hit(slot, now) > limit) {
+                t.ban(slot, now + DetectorConfig.config.getSharedTableBanSeconds() * 1000L);
+                refused.increment();
+                return false;
+            }
+            return true;
+        } catch (IllegalStateException e) {
+            return true; // stopped while this connection was being checked
+        } finally {
+            t.keepAlive();
+        }
+    }
+
+    /**
+     * 对发送了 PROXY 协议头但不在白名单中的来源施加封禁。
+     */
+    public static void reportOffender(SocketAddress remoteAddress) {
+        SharedBanTable t = table;
+        DetectorConfig config = DetectorConfig.config;
+        if (t == null || !config.isSharedTableBanRejected() || !(remoteAddress instanceof InetSocketAddress))
+            return;
+
+        long now = System.currentTimeMillis();
+        try {
+            long slot = t.find(keyOf(((InetSocketAddress) remoteAddress).getAddress()), now, true);
+            if (slot >= 0) {
+                t.ban(slot, now + config.getSharedTableBanSeconds() * 1000L);
+            }
+        } catch (IllegalStateException ignored) {
+            // stopped in the meantime
+        } finally {
+            t.keepAlive();
+        }
+    }
+
+    public static List<String> report() {
+        SharedBanTable t = table;
+        if (t == null) return new ArrayList<>(0);
+        List<String> lines = new ArrayList<>(2);
+        long version;
+        try {
+            version = t.getVersion();
+        } catch (IllegalStateException e) {
+            return lines;
+        }
+        lines.add("共享封禁表：版本 " + version + "，本实例封禁 " + bans.sum() + " 次，拒绝连接 " + refused.sum() + " 个");
+        return lines;
+    }
+
+    static long keyOf(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        long h;
+        if (address instanceof Inet4Address) {
+            h = mix(((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL));
+        } else {
+            long hi = 0, lo = 0;
+            for (int i = 0; i < 8; i++) hi = hi << 8 | (bytes[i] & 0xFFL);
+            for (int i = 8; i < 16; i++) lo = lo << 8 | (bytes[i] & 0xFFL);
+            h = mix(hi ^ mix(lo + 0x9E3779B97F4A7C15L));
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    /** must stay reachable for as long as {@link #base} is used, the mapping goes away with it */
+    private final MappedByteBuffer buffer;
+    private final long base;
+    private final int slots;
+    private volatile boolean closed;
+
+    SharedBanTable(Path path, int requestedSlots) throws IOException {
+        this.path = path;
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            int slots;
+            // the lock only guards creation; slot updates never take it
+            FileLock lock = channel.lock();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                ((Buffer) header).flip(); // ByteBuffer.flip() only exists since Java 9
+                if (header.remaining() == HEADER_SIZE && header.getLong(OFFSET_MAGIC) == MAGIC) {
+                    slots = header.getInt(OFFSET_SLOTS);
+                    if (slots <= 0 || Integer.bitCount(slots) != 1
+                            || channel.size() < HEADER_SIZE + (long) slots * SLOT_SIZE) {
+                        throw new IOException("共享封禁表文件已损坏：" + path);
+                    }
+                } else if (channel.size() == 0) {
+                    slots = requestedSlots;
+                    header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putLong(OFFSET_MAGIC, MAGIC).putInt(OFFSET_SLOTS, slots);
+                    channel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) slots * SLOT_SIZE - 1);
+                    channel.write(header, 0);
+                    channel.force(true);
+                } else {
+                    throw new IOException("不是共享封禁表文件：" + path);
+                }
+            } finally {
+                lock.release();
+            }
+            this.slots = slots;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+            this.base = PlatformDependent.directBufferAddress(buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getVersion() {
+        ensureOpen();
+        try {
+            return UNSAFE.getLongVolatile(null, base + OFFSET_VERSION);
+        } finally {
+            keepAlive();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) throw new IllegalStateException("共享封禁表已关闭：" + path);
+    }
+
+    /**
+     * Java 8 has no {@code Reference.reachabilityFence}; a volatile read keeps this table, and with it
+     * {@link #buffer} and the mapping behind {@link #base}, reachable up to this point.
+     */
+    private void keepAlive() {
+        if (closed) return;
+    }
+
+    /**
+     * 返回地址指纹对应槽位的绝对地址，找不到且无法占用空闲槽位时返回 -1。
+     */
+    long find(long key, long now, boolean insert) {
+        ensureOpen();
+        int mask = slots - 1;
+        int start = (int) key & mask;
+        long reusable = -1;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            long slot = base + HEADER_SIZE + (long) ((start + i) & mask) * SLOT_SIZE;
+            long current = UNSAFE.getLongVolatile(null, slot);
+            if (current == key) return slot;
+            if (current == 0) {
+                if (!insert) return -1;
+                if (UNSAFE.compareAndSwapLong(null, slot, 0, key)) return slot;
+                if (UNSAFE.getLongVolatile(null, slot) == key) return slot;
+            } else if (reusable < 0 && isIdle(slot, now)) {
+                reusable = slot;
+            }
+        }
+        if (insert && reusable >= 0) {
+            long old = UNSAFE.getLongVolatile(null, reusable);
+            if (isIdle(reusable, now) && UNSAFE.compareAndSwapLong(null, reusable, old, key)) {
+                // the stale state is already expired, so racing with a late writer is harmless
+                UNSAFE.putLongVolatile(null, reusable + SLOT_WINDOW, 0);
+                return reusable;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isIdle(long slot, long now) {
+        long window = UNSAFE.getLongVolatile(null, slot + SLOT_WINDOW);
+        return UNSAFE.getLongVolatile(null, slot + SLOT_BAN_UNTIL) <= now
+                && (window >>> 32) + IDLE_SECONDS < now / 1000;
+    }
+
+    /**
+     * 记录一次连接，返回该来源在当前这一秒内的连接数。
+     */
+    int hit(long slot, long now) {
+        ensureOpen();
+        long second = now / 1000;
+        long address = slot + SLOT_WINDOW;
+        while (true) {
+            long window = UNSAFE.getLongVolatile(null, address);
+            long next = (window >>> 32) == second ? window + 1 : second << 32 | 1;
+            if (UNSAFE.compareAndSwapLong(null, address, window, next)) {
+                return (int) next;
+            }
+        }
+    }
+
+    void ban(long slot, long until) {
+        ensureOpen();
+        long address = slot + SLOT_BAN_UNTIL;
+        while (true) {
+            long current = UNSAFE.getLongVolatile(null, address);
+            if (current >= until) return;
+            if (UNSAFE.compareAndSwapLong(null, address, current, until)) break;
+        }
+        UNSAFE.getAndAddLong(null, base + OFFSET_VERSION, 1);
+        bans.increment();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package net.andylizi.haproxydetector;
+
+import java.util.Arrays;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Unix 域套接字对端进程的凭据（{@code SO_PEERCRED}），由 {@link UnixSocketListener} 在接受连接时读取一次并保存为通道属性。
+ */
+public final class UnixPeer {
+    private static final AttributeKey<UnixPeer> PEER = AttributeKey.valueOf("haproxydetector:unix-peer");
+
+    private final int pid;
+    private final int uid;
+    private final int[] gids;
+
+    public UnixPeer(int pid, int uid, int[] gids) {
+        this.pid = pid;
+        this.uid = uid;
+        this.gids = gids.clone();
+    }
+
+    @Nullable
+    public static UnixPeer of(Channel ch) {
+        return ch.hasAttr(PEER) ? ch.attr(PEER).get() : null;
+    }
+
+    static void set(Channel ch, UnixPeer peer) {
+        ch.attr(PEER).set(peer);
+    }
+
+    public int getPid() {
+        return pid;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    public int[] getGids() {
+        return gids.clone();
+    }
+
+    /** 不复制的 {@link #getGids()}，仅供白名单匹配 */
+    int[] gids() {
+        return gids;
+    }
+
+    @Override
+    public String toString() {
+        return "UnixPeer{pid=" + pid + ", uid=" + uid + ", gids=" + Arrays.toString(gids) + '}';
+    }
+}
@@ -0,0 +1,134 @@
+package net.andylizi.haproxydetector;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.channel.unix.PeerCredentials;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 由 {@code unix-socket.*} 配置项控制的额外 Unix 域套接字监听器，供同一主机上的 HAProxy 绕过 TCP 协议栈接入。
+ * <p>
+ * 接受的连接交给平台自己的服务端子通道初始化器，与 TCP 监听器走同一条管线。
+ * 对端进程的凭据（{@code SO_PEERCRED}）在接受时读取一次，不匹配白名单中任何 {@code uid:}/{@code gid:} 规则的连接立即关闭。
+ */
+public final class UnixSocketListener {
+    @Nullable
+    private static EventLoopGroup group;
+    @Nullable
+    private static Channel serverChannel;
+    @Nullable
+    private static Path socketPath;
+
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param childHandler 平台的服务端子通道初始化器（已被本插件包装），须可共享
+     */
+    public static synchronized void start(Logger logger, Path dataDirectory, ChannelHandler childHandler)
+            throws IOException {
+        stop();
+        String path = DetectorConfig.config.getUnixSocketPath();
+        if (path == null) return;
+        if (!Epoll.isAvailable()) {
+            logger.warning("当前环境不支持 epoll，无法监听 Unix 域套接字 " + path);
+            return;
+        }
+
+        Path socket = dataDirectory.resolve(path).toAbsolutePath();
+        Files.deleteIfExists(socket); // left behind by an unclean shutdown
+        EventLoopGroup g = new EpollEventLoopGroup(DetectorConfig.config.getUnixSocketThreads(),
+                new DefaultThreadFactory("haproxy-detector-unix", true));
+        try {
+            serverChannel = new ServerBootstrap()
+                    .group(g)
+                    .channel(EpollServerDomainSocketChannel.class)
+                    .childHandler(new PeerInitializer(childHandler))
+                    .bind(new DomainSocketAddress(socket.toFile()))
+                    .syncUninterruptibly()
+                    .channel();
+        } catch (Exception e) {
+            g.shutdownGracefully();
+            throw new IOException("监听 Unix 域套接字 " + socket + " 失败", e);
+        }
+        group = g;
+        socketPath = socket;
+        logger.info("已监听 Unix 域套接字 " + socket);
+    }
+
+    public static synchronized void stop() {
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+            serverChannel = null;
+        }
+        if (group != null) {
+            group.shutdownGracefully();
+            group = null;
+        }
+        if (socketPath != null) {
+            try {
+                Files.deleteIfExists(socketPath);
+            } catch (IOException ignored) {
+            }
+            socketPath = null;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return serverChannel != null;
+    }
+
+    public static List<String> report() {
+        if (!isEnabled()) return new ArrayList<>(0);
+        List<String> lines = new ArrayList<>(1);
+        lines.add("Unix 域套接字：已接受 " + accepted.sum() + " 个连接，因凭据不符拒绝 " + rejected.sum() + " 个");
+        return lines;
+    }
+
+    @Sharable
+    static final class PeerInitializer extends ChannelInitializer<Channel> {
+        private final ChannelHandler childHandler;
+
+        PeerInitializer(ChannelHandler childHandler) {
+            this.childHandler = childHandler;
+        }
+
+        @Override
+        protected void initChannel(Channel ch) {
+            try {
+                PeerCredentials credentials = ((EpollDomainSocketChannel) ch).peerCredentials();
+                UnixPeer.set(ch, new UnixPeer(credentials.pid(), credentials.uid(), credentials.gids()));
+            } catch (IOException ignored) {
+                // no credentials, never trusted
+            }
+            if (!ProxyWhitelist.check(ListenerPolicy.of(ch).getWhitelist(), ch)) {
+                rejected.increment();
+                DetectorStats.record(DetectionOutcome.REJECTED);
+                ch.close();
+                return;
+            }
+            accepted.increment();
+            ch.pipeline().addLast(childHandler);
+        }
+    }
+
+    private UnixSocketListener() {throw new AssertionError();}
+}
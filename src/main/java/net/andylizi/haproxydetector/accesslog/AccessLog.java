@@ -0,0 +1,89 @@
+package net.andylizi.haproxydetector.accesslog;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.util.concurrent.FastThreadLocal;
+import net.andylizi.haproxydetector.DetectorConfig;
+import net.andylizi.haproxydetector.ListenerPolicy;
+import net.andylizi.haproxydetector.ProxyHeader;
+import net.andylizi.haproxydetector.ProxyHeaderParser;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 代理连接访问日志，由 {@code access-log.*} 配置项控制。
+ * <p>
+ * 每条记录包含时间、代理地址、真实客户端地址、目标地址与监听器名称，用于滥用投诉的追溯。
+ * 事件循环只把记录编码进自己的缓冲块，文件 I/O 全部由 {@link AccessLogWriter} 的后台线程完成。
+ */
+public final class AccessLog {
+    @Nullable
+    private static volatile AccessLogWriter writer;
+    private static final FastThreadLocal<LoopBuffer> buffers = new FastThreadLocal<>();
+
+    public static synchronized void start(Logger logger, Path dataDirectory) throws IOException {
+        stop();
+        DetectorConfig config = DetectorConfig.config;
+        if (!config.isAccessLogEnabled()) return;
+
+        Path directory = dataDirectory.resolve(config.getAccessLogDirectory());
+        writer = new AccessLogWriter(logger, directory, config.getAccessLogQueueChunks());
+        logger.info("已开启访问日志，写入 " + directory);
+    }
+
+    public static synchronized void stop() {
+        AccessLogWriter w = writer;
+        if (w != null) {
+            writer = null;
+            w.close();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * 记录一个代理连接。须在该连接的事件循环中调用。
+     */
+    public static void record(Channel ch, HAProxyMessage msg) {
+        LoopBuffer buffer = buffer(ch);
+        if (buffer != null) buffer.append(ch.remoteAddress(), msg, ListenerPolicy.of(ch).getName());
+    }
+
+    /**
+     * 与 {@link #record(Channel, HAProxyMessage)} 相同，地址取自 {@link ProxyHeaderParser} 的解析结果。
+     */
+    public static void record(Channel ch, ProxyHeader header) {
+        LoopBuffer buffer = buffer(ch);
+        if (buffer != null) buffer.append(ch.remoteAddress(), header, ListenerPolicy.of(ch).getName());
+    }
+
+    @Nullable
+    private static LoopBuffer buffer(Channel ch) {
+        AccessLogWriter w = writer;
+        if (w == null) return null;
+        LoopBuffer buffer = buffers.get();
+        if (buffer == null || buffer.writer != w) {
+            // first record on this loop, or the log was restarted since
+            buffer = new LoopBuffer(w, ch.eventLoop());
+            buffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    public static List<String> report() {
+        AccessLogWriter w = writer;
+        if (w == null) return new ArrayList<>(0);
+        List<String> lines = new ArrayList<>(1);
+        lines.add("访问日志：已写入 " + w.getWritten() + " 条，因积压丢弃 " + w.getDropped() + " 条");
+        return lines;
+    }
+
+    private AccessLog() {throw new AssertionError();}
+}
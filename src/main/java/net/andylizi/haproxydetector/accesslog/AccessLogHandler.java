@@ -0,0 +1,50 @@
+package net.andylizi.haproxydetector.accesslog;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+
+/**
+ * 紧跟在 HAProxy 解码器之后记录第一条 {@link HAProxyMessage}，随后即移出管线，消息原样向后传递。
+ */
+@Sharable
+public final class AccessLogHandler extends ChannelInboundHandlerAdapter {
+    public static final AccessLogHandler INSTANCE = new AccessLogHandler();
+
+    /**
+     * 访问日志启用时，将处理器放在名为 {@code decoderName} 的解码器之后。
+     */
+    public static void install(ChannelPipeline pipeline, String decoderName) {
+        if (AccessLog.isEnabled() && pipeline.get(AccessLogHandler.class) == null) {
+            pipeline.addAfter(decoderName, "haproxy-access-log", INSTANCE);
+        }
+    }
+
+    /**
+     * 访问日志启用时，将处理器放在 {@code decoder} 之后。
+     */
+    public static void install(ChannelPipeline pipeline, ChannelHandler decoder) {
+        if (AccessLog.isEnabled() && pipeline.get(AccessLogHandler.class) == null) {
+            pipeline.addAfter(pipeline.context(decoder).name(), "haproxy-access-log", INSTANCE);
+        }
+    }
+
+    private AccessLogHandler() {
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HAProxyMessage) {
+            ctx.pipeline().remove(this);
+            HAProxyMessage message = (HAProxyMessage) msg;
+            if (message.command() == HAProxyCommand.PROXY) {
+                AccessLog.record(ctx.channel(), message);
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+}
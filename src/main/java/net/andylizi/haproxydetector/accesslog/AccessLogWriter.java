@@ -0,0 +1,167 @@
+package net.andylizi.haproxydetector.accesslog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 访问日志的唯一写入线程。
+ * <p>
+ * 事件循环把写满（或到期）的块放入有界队列，队列已满时丢弃整块并计数，绝不阻塞。
+ * 写入线程每次取出队列中积攒的全部块，一次聚集写入后只调用一次 {@link FileChannel#force}（组提交）。
+ * 日志文件按写入时的 UTC 日期命名为 {@code access-yyyy-MM-dd.log}，日期变化时切换文件。
+ */
+final class AccessLogWriter implements Closeable {
+    private static final Chunk STOP = new Chunk();
+
+    private final Logger logger;
+    private final Path directory;
+    private final BlockingQueue<Chunk> queue;
+    /** 写完的块回收后复用，避免事件循环反复分配 */
+    private final BlockingQueue<Chunk> pool;
+    private final Thread thread;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    private FileChannel file;
+    private LocalDate fileDate;
+
+    AccessLogWriter(Logger logger, Path directory, int queueChunks) throws IOException {
+        this.logger = logger;
+        this.directory = directory;
+        this.queue = new ArrayBlockingQueue<>(queueChunks);
+        this.pool = new ArrayBlockingQueue<>(queueChunks);
+        Files.createDirectories(directory);
+        rotate(System.currentTimeMillis());
+
+        this.thread = new Thread(this::run, "HAProxyDetector Access Log Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Chunk acquire() {
+        Chunk chunk = pool.poll();
+        return chunk != null ? chunk : new Chunk();
+    }
+
+    boolean offer(Chunk chunk) {
+        return !closed && queue.offer(chunk);
+    }
+
+    void shed(int records) {
+        dropped.add(records);
+    }
+
+    long getWritten() {
+        return written.sum();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private void run() {
+        List<Chunk> batch = new ArrayList<>();
+        ByteBuffer[] buffers = new ByteBuffer[0];
+        boolean stop = false;
+        try {
+            while (!stop) {
+                Chunk first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch);
+
+                if (buffers.length < batch.size()) buffers = new ByteBuffer[batch.size()];
+                int count = 0, records = 0;
+                for (Chunk chunk : batch) {
+                    if (chunk == STOP) {
+                        stop = true;
+                        continue;
+                    }
+                    buffers[count++] = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+                    records += chunk.records;
+                }
+                if (count > 0) {
+                    rotateIfNeeded(System.currentTimeMillis());
+                    write(buffers, count);
+                    file.force(false);
+                    written.add(records);
+                }
+
+                for (Chunk chunk : batch) {
+                    if (chunk == STOP) continue;
+                    chunk.reset();
+                    pool.offer(chunk);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            closed = true;
+            logger.log(Level.WARNING, "写入访问日志失败，已停止记录", e);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void write(ByteBuffer[] buffers, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            file.write(buffers, offset, count - offset);
+            while (offset < count && !buffers[offset].hasRemaining()) {
+                buffers[offset++] = null;
+            }
+        }
+    }
+
+    private void rotateIfNeeded(long now) throws IOException {
+        if (!dateOf(now).equals(fileDate)) {
+            file.close();
+            rotate(now);
+        }
+    }
+
+    private void rotate(long now) throws IOException {
+        fileDate = dateOf(now);
+        file = FileChannel.open(directory.resolve(fileName(fileDate)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static LocalDate dateOf(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    static String fileName(LocalDate date) {
+        return "access-" + date + ".log";
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (queue.offer(STOP, 5, TimeUnit.SECONDS))
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package net.andylizi.haproxydetector.accesslog;
+
+/**
+ * 一组已编码的访问日志记录。填充期间只属于一个事件循环，交给写入线程后只属于写入线程。
+ */
+final class Chunk {
+    static final int SIZE = 16 * 1024;
+
+    final byte[] data = new byte[SIZE];
+    int length;
+    int records;
+
+    void reset() {
+        length = 0;
+        records = 0;
+    }
+}
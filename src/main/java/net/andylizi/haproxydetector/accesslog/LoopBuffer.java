@@ -0,0 +1,234 @@
+package net.andylizi.haproxydetector.accesslog;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import net.andylizi.haproxydetector.ProxyHeader;
+
+/**
+ * 单个事件循环的记录缓冲。只在所属事件循环中访问，编码时不做任何 I/O。
+ * <p>
+ * 当前块写满时立即交给写入线程；否则在第一条记录写入后 {@link #FLUSH_DELAY_MILLIS} 毫秒由事件循环自己交出，
+ * 因此空闲的事件循环也不会让记录滞留。
+ */
+final class LoopBuffer implements Runnable {
+    static final long FLUSH_DELAY_MILLIS = 1000;
+    /** 单条记录的上限，各字段按此截断 */
+    static final int MAX_RECORD = 320;
+    private static final int MAX_FIELD = 60;
+    private static final DateTimeFormatter SECOND_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.").withZone(ZoneOffset.UTC);
+
+    final AccessLogWriter writer;
+    private final EventLoop loop;
+    private Chunk chunk;
+    private boolean flushScheduled;
+
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] cachedPrefix = new byte[20];
+
+    LoopBuffer(AccessLogWriter writer, EventLoop loop) {
+        this.writer = writer;
+        this.loop = loop;
+        this.chunk = writer.acquire();
+    }
+
+    /**
+     * 编码一条记录：{@code 时间 代理地址 真实地址 目标地址 监听器}，以空格分隔、换行结尾。
+     */
+    void append(SocketAddress proxy, HAProxyMessage msg, String listener) {
+        byte[] data = reserve();
+        int pos = writeProxy(data, proxy);
+        pos = writeAddress(data, pos, msg.sourceAddress(), msg.sourcePort());
+        data[pos++] = ' ';
+        pos = writeAddress(data, pos, msg.destinationAddress(), msg.destinationPort());
+        finish(data, pos, listener);
+    }
+
+    /**
+     * 与 {@link #append(SocketAddress, HAProxyMessage, String)} 格式相同，地址直接由 {@link ProxyHeader} 中的数值写出。
+     */
+    void append(SocketAddress proxy, ProxyHeader header, String listener) {
+        byte[] data = reserve();
+        int pos = writeProxy(data, proxy);
+        boolean v6 = header.getFamily() == ProxyHeader.FAMILY_INET6;
+        pos = writeAddress(data, pos, v6, header.getSourceHigh(), header.getSourceLow(), header.getSourcePort());
+        data[pos++] = ' ';
+        pos = writeAddress(data, pos, v6, header.getDestinationHigh(), header.getDestinationLow(),
+                header.getDestinationPort());
+        finish(data, pos, listener);
+    }
+
+    private byte[] reserve() {
+        if (chunk.length + MAX_RECORD > Chunk.SIZE) {
+            handOff();
+        }
+        return chunk.data;
+    }
+
+    /** 写出时间与代理地址，返回真实地址的起始位置 */
+    private int writeProxy(byte[] data, SocketAddress proxy) {
+        int pos = writeTimestamp(data, chunk.length, System.currentTimeMillis());
+        data[pos++] = ' ';
+        if (proxy instanceof InetSocketAddress) {
+            InetSocketAddress addr = (InetSocketAddress) proxy;
+            pos = writeAddress(data, pos, addr.getAddress() != null
+                    ? addr.getAddress().getHostAddress() : addr.getHostString(), addr.getPort());
+        } else {
+            pos = writeField(data, pos, String.valueOf(proxy));
+        }
+        data[pos++] = ' ';
+        return pos;
+    }
+
+    private void finish(byte[] data, int pos, String listener) {
+        data[pos++] = ' ';
+        pos = writeField(data, pos, listener);
+        data[pos++] = '\n';
+
+        boolean wasEmpty = chunk.records == 0;
+        chunk.length = pos;
+        chunk.records++;
+        if (wasEmpty && !flushScheduled) {
+            flushScheduled = true;
+            loop.schedule(this, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** 定时交出未写满的块 */
+    @Override
+    public void run() {
+        flushScheduled = false;
+        if (chunk.records > 0) handOff();
+    }
+
+    private void handOff() {
+        if (writer.offer(chunk)) {
+            chunk = writer.acquire();
+        } else {
+            // writer is behind or closed: shed these records instead of waiting
+            writer.shed(chunk.records);
+            chunk.reset();
+        }
+    }
+
+    private int writeTimestamp(byte[] data, int pos, long millis) {
+        long second = Math.floorDiv(millis, 1000L);
+        if (second != cachedSecond) {
+            String prefix = SECOND_FORMAT.format(Instant.ofEpochSecond(second));
+            for (int i = 0; i < cachedPrefix.length; i++) {
+                cachedPrefix[i] = (byte) prefix.charAt(i);
+            }
+            cachedSecond = second;
+        }
+        System.arraycopy(cachedPrefix, 0, data, pos, cachedPrefix.length);
+        pos += cachedPrefix.length;
+        int ms = (int) Math.floorMod(millis, 1000L);
+        data[pos++] = (byte) ('0' + ms / 100);
+        data[pos++] = (byte) ('0' + ms / 10 % 10);
+        data[pos++] = (byte) ('0' + ms % 10);
+        data[pos++] = 'Z';
+        return pos;
+    }
+
+    private static int writeAddress(byte[] data, int pos, String host, int port) {
+        if (host == null) {
+            data[pos++] = '-';
+            return pos;
+        }
+        boolean v6 = host.indexOf(':') >= 0;
+        if (v6) data[pos++] = '[';
+        pos = writeField(data, pos, host);
+        if (v6) data[pos++] = ']';
+        data[pos++] = ':';
+        return writeInt(data, pos, port);
+    }
+
+    private static int writeAddress(byte[] data, int pos, boolean v6, long high, long low, int port) {
+        if (v6) {
+            data[pos++] = '[';
+            pos = writeIpv6(data, pos, high, low);
+            data[pos++] = ']';
+        } else {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                pos = writeInt(data, pos, (int) (low >>> shift) & 0xFF);
+                if (shift != 0) data[pos++] = '.';
+            }
+        }
+        data[pos++] = ':';
+        return writeInt(data, pos, port);
+    }
+
+    /** 按 RFC 5952 写出：小写十六进制，最长的一段（至少两组）连续零组压缩为 {@code ::} */
+    private static int writeIpv6(byte[] data, int pos, long high, long low) {
+        int zeroStart = -1, zeroLength = 0;
+        for (int i = 0, run = 0; i < 8; i++) {
+            if (group(high, low, i) == 0) {
+                if (++run > zeroLength && run >= 2) {
+                    zeroStart = i - run + 1;
+                    zeroLength = run;
+                }
+            } else {
+                run = 0;
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            if (i == zeroStart) {
+                data[pos++] = ':';
+                data[pos++] = ':';
+                i += zeroLength - 1;
+                continue;
+            }
+            if (i > 0 && i != zeroStart + zeroLength) data[pos++] = ':';
+            int g = group(high, low, i);
+            boolean started = false;
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                int digit = (g >>> shift) & 0xF;
+                if (started || digit != 0 || shift == 0) {
+                    data[pos++] = (byte) Character.forDigit(digit, 16);
+                    started = true;
+                }
+            }
+        }
+        return pos;
+    }
+
+    private static int group(long high, long low, int i) {
+        return (int) ((i < 4 ? high : low) >>> (48 - (i & 3) * 16)) & 0xFFFF;
+    }
+
+    /** 以 ASCII 写入，空白与非 ASCII 字符替换为 {@code ?}，超长截断 */
+    private static int writeField(byte[] data, int pos, String s) {
+        if (s == null || s.isEmpty()) {
+            data[pos++] = '-';
+            return pos;
+        }
+        int n = Math.min(s.length(), MAX_FIELD);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            data[pos++] = c > ' ' && c < 0x7F ? (byte) c : (byte) '?';
+        }
+        return pos;
+    }
+
+    private static int writeInt(byte[] data, int pos, int value) {
+        if (value < 0) value = 0;
+        int start = pos;
+        do {
+            data[pos++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte t = data[i];
+            data[i] = data[j];
+            data[j] = t;
+        }
+        return pos;
+    }
+}
@@ -8,19 +8,40 @@ import java.util.logging.Logger;
 
 import com.comphenix.protocol.ProtocolLibrary;
 
-import com.comphenix.protocol.utility.MinecraftReflection;
 import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
+import io.netty.util.ReferenceCountUtil;
+import net.andylizi.haproxydetector.Blocklist;
+import net.andylizi.haproxydetector.DeferAccept;
+import net.andylizi.haproxydetector.DetectorConfig;
+import net.andylizi.haproxydetector.DetectorStats;
+import net.andylizi.haproxydetector.FastLane;
+import net.andylizi.haproxydetector.FloodGuard;
+import net.andylizi.haproxydetector.JitWarmup;
 import net.andylizi.haproxydetector.MetricsId;
 import net.andylizi.haproxydetector.ProxyWhitelist;
+import net.andylizi.haproxydetector.RealAddressService;
+import net.andylizi.haproxydetector.SharedBanTable;
+import net.andylizi.haproxydetector.accesslog.AccessLog;
+import net.andylizi.haproxydetector.trace.TraceCapture;
 import org.bstats.charts.SimplePie;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bstats.bukkit.Metrics;
 
 
 import static net.andylizi.haproxydetector.ReflectionUtil.sneakyThrow;
 
-public final class BukkitMain extends JavaPlugin {
+public final class BukkitMain extends JavaPlugin implements Listener {
     static Logger logger;
 
     private InjectionStrategy injectionStrategy;
@@ -48,11 +69,66 @@ public final class BukkitMain extends JavaPlugin {
             throw new RuntimeException("加载代理白名单失败", e);
         }
 
+        try {
+            DetectorConfig.config = DetectorConfig.loadOrDefault(this.getDataFolder().toPath().resolve("config.conf"));
+        } catch (IOException e) {
+            throw new RuntimeException("加载配置失败", e);
+        }
+
         if (!ProtocolLibrary.getPlugin().isEnabled()) {
             logger.severe("缺少必要依赖 ProtocolLib，插件即将禁用");
             this.setEnabled(false);
             return;
         }
+        try {
+            NmsHandles.bootstrap();
+        } catch (Throwable t) {
+            logger.log(Level.SEVERE, "解析服务端内部成员失败，插件即将禁用", t);
+            this.setEnabled(false);
+            return;
+        }
+
+        // the warm-up injects through the real strategy, which needs the server internals resolved above
+        InjectionStrategy warmupStrategy = createInjectionStrategy();
+        JitWarmup.run(logger, false, ch -> {
+            ChannelPipeline pipeline = ch.pipeline();
+            pipeline.addBefore("packet_handler", "warmup-sink", WarmupSink.INSTANCE);
+            pipeline.replace("packet_handler", "packet_handler", NmsHandles.allocateNetworkManager());
+            warmupStrategy.doInject(ch, 0);
+        });
+        DeferAccept.start(logger);
+        FloodGuard.start(logger);
+        FastLane.start();
+
+        try {
+            TraceCapture.start(logger, this.getDataFolder().toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "开启首包捕获失败", e);
+        }
+
+        try {
+            SharedBanTable.start(logger, this.getDataFolder().toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "映射共享封禁表失败", e);
+        }
+
+        try {
+            Blocklist.start(logger, this.getDataFolder().toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "加载黑名单失败", e);
+        }
+
+        try {
+            AccessLog.start(logger, this.getDataFolder().toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "开启访问日志失败", e);
+        }
+
+        if (DetectorConfig.config.getUnixSocketPath() != null) {
+            // the server child initializer lives inside NMS and is not reachable through ProtocolLib
+            logger.warning("Spigot 不支持 unix-socket.path，该选项将被忽略");
+        }
+
         try {
             injectionStrategy = createInjectionStrategy();
             injectionStrategy.inject();
@@ -60,9 +136,12 @@ public final class BukkitMain extends JavaPlugin {
             sneakyThrow(e);
         }
 
+        getServer().getPluginManager().registerEvents(this, this);
+
         try {
             Metrics metrics = new Metrics(this, 12604);
             metrics.addCustomChart(MetricsId.createWhitelistCountChart());
+            metrics.addCustomChart(MetricsId.createProxyNodeCountChart());
             metrics.addCustomChart(new SimplePie(MetricsId.KEY_PROTOCOLLIB_VERSION,
                     () -> ProtocolLibrary.getPlugin().getDescription().getVersion()));
         } catch (Throwable t) {
@@ -70,10 +149,32 @@ public final class BukkitMain extends JavaPlugin {
         }
     }
 
-    private static InjectionStrategy createInjectionStrategy() throws ReflectiveOperationException {
+    private static InjectionStrategy createInjectionStrategy() {
         return new InjectionStrategy(logger);
     }
 
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length == 1 && "stats".equalsIgnoreCase(args[0])) {
+            for (String line : DetectorStats.report()) {
+                sender.sendMessage(line);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(PlayerJoinEvent event) {
+        Player player = event.getPlayer();
+        RealAddressService.bind(player.getUniqueId(), NmsHandles.channelOf(player));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        RealAddressService.unbind(event.getPlayer().getUniqueId());
+    }
+
     @Override
     public void onDisable() {
         if (injectionStrategy != null) {
@@ -82,14 +183,24 @@ public final class BukkitMain extends JavaPlugin {
             } catch (Throwable ignored) {
             }
         }
+        TraceCapture.stop();
+        SharedBanTable.stop();
+        FastLane.stop();
+        Blocklist.stop();
+        AccessLog.stop();
+        RealAddressService.clear();
     }
 
-    @SuppressWarnings("unchecked")
     static ChannelHandler getNetworkManager(ChannelPipeline pipeline) {
-        Class<? extends ChannelHandler> networkManagerClass = (Class<? extends ChannelHandler>) MinecraftReflection.getNetworkManagerClass();
-        ChannelHandler networkManager = null;
+        // vanilla and all common forks register it under this name
+        ChannelHandler networkManager = pipeline.get("packet_handler");
+        if (NmsHandles.NETWORK_MANAGER.isInstance(networkManager)) {
+            return networkManager;
+        }
+
+        networkManager = null;
         for (Map.Entry<String, ChannelHandler> entry : pipeline) {
-            if (networkManagerClass.isAssignableFrom(entry.getValue().getClass())) {
+            if (NmsHandles.NETWORK_MANAGER.isInstance(entry.getValue())) {
                 networkManager = entry.getValue();
                 break;
             }
@@ -101,4 +212,51 @@ public final class BukkitMain extends JavaPlugin {
 
         return networkManager;
     }
+
+    /**
+     * JIT 预热中挡在一次性 {@code NetworkManager} 之前，吞掉所有入站数据与事件：
+     * 该对象未经构造，只作为改写地址的目标。
+     */
+    @ChannelHandler.Sharable
+    private static final class WarmupSink extends ChannelInboundHandlerAdapter {
+        static final WarmupSink INSTANCE = new WarmupSink();
+
+        @Override
+        public void channelRegistered(ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void channelUnregistered(ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            ReferenceCountUtil.release(evt);
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        }
+    }
 }
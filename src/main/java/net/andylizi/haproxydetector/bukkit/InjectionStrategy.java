@@ -4,7 +4,12 @@ import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.ProtocolManager;
 import com.comphenix.protocol.reflect.FuzzyReflection;
 import io.netty.channel.*;
+import net.andylizi.haproxydetector.DeferAccept;
 import net.andylizi.haproxydetector.HAProxyDetectorHandler;
+import net.andylizi.haproxydetector.LatencyStage;
+import net.andylizi.haproxydetector.LatencyStats;
+import net.andylizi.haproxydetector.SharedBanTable;
+import net.andylizi.haproxydetector.jfr.DetectorEvents;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Proxy;
@@ -64,11 +69,12 @@ public class InjectionStrategy {
                         // current handler. otherwise `channelActive` will be called on it twice.
                         //
                         // the name doesn't really matter here.
+                        long injectStart = LatencyStats.sample() ? System.nanoTime() : 0;
                         ctx.pipeline().remove((ChannelHandler) proxy)
                                 .addFirst("protocol_lib_inbound_inject", originalHandler);
 
                         Object ret = method.invoke(originalHandler, args);
-                        doInject(ctx.channel());
+                        doInject(ctx.channel(), injectStart);
                         return ret;
                     } else {
                         return method.invoke(originalHandler, args);
@@ -85,14 +91,26 @@ public class InjectionStrategy {
         }
     }
 
-    void doInject(Channel ch) {
+    /**
+     * 在 ProtocolLib 完成自身注入后调用，把检测器放入 {@code ch} 的管线；不在事件循环中调用时会转交给事件循环。
+     *
+     * @param injectStart 开始注入的时刻，不计时为 {@code 0}
+     */
+    public void doInject(Channel ch, long injectStart) {
         // this is similar to how ProtocolLib does it.
         if (ch.eventLoop().inEventLoop()) {
+            Object event = DetectorEvents.beginInjection();
             try {
                 ChannelPipeline pipeline = ch.pipeline();
                 if (!ch.isOpen() || pipeline.get("haproxy-detector") != null)
                     return;
 
+                DeferAccept.apply(ch);
+                if (!SharedBanTable.admit(ch)) {
+                    ch.close();
+                    return;
+                }
+
                 if (pipeline.get("haproxy-decoder") != null) {
                     // remove pre-existing HAProxy decoder
                     pipeline.remove("haproxy-decoder");
@@ -104,7 +122,7 @@ public class InjectionStrategy {
                     haproxyHandler = pipeline.remove("haproxy-handler");
                 } else {
                     ChannelHandler networkManager = BukkitMain.getNetworkManager(pipeline);
-                    haproxyHandler = new HAProxyMessageHandler(networkManager);
+                    haproxyHandler = new ProxyHeaderHandler(networkManager);
                 }
 
                 HAProxyDetectorHandler detector = new HAProxyDetectorHandler(logger, haproxyHandler);
@@ -113,6 +131,12 @@ public class InjectionStrategy {
                 } catch (NoSuchElementException e) {
                     pipeline.addFirst("haproxy-detector", detector);
                 }
+                if (injectStart != 0) {
+                    long now = System.nanoTime();
+                    LatencyStats.record(LatencyStage.INJECT, now - injectStart);
+                    detector.setInjectedAt(now);
+                }
+                DetectorEvents.commitInjection(event, ch.remoteAddress(), null, 0); // nothing has been read yet
             } catch (Throwable t) { // 防止 Netty 吞掉异常
                 if (logger != null)
                     logger.log(Level.WARNING, "注入代理检测器时发生异常", t);
@@ -120,7 +144,7 @@ public class InjectionStrategy {
                     t.printStackTrace();
             }
         } else {
-            ch.eventLoop().execute(() -> this.doInject(ch));
+            ch.eventLoop().execute(() -> this.doInject(ch, injectStart));
         }
     }
 }
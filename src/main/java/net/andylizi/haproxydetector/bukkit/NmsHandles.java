@@ -0,0 +1,118 @@
+package net.andylizi.haproxydetector.bukkit;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.net.SocketAddress;
+
+import com.comphenix.protocol.reflect.FuzzyReflection;
+import com.comphenix.protocol.utility.MinecraftFields;
+import com.comphenix.protocol.utility.MinecraftReflection;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.Nullable;
+import sun.misc.Unsafe;
+
+import static net.andylizi.haproxydetector.ReflectionUtil.sneakyThrow;
+
+/**
+ * 连接路径上用到的全部服务端内部成员，在插件启用时通过 {@link #bootstrap()} 一次性解析。
+ * 任何成员缺失都会使启用直接失败，而不是等到第一个玩家连接时才暴露。
+ */
+final class NmsHandles {
+    static final Class<? extends ChannelHandler> NETWORK_MANAGER;
+    /** {@code (Object networkManager, SocketAddress address) -> void} */
+    static final MethodHandle SOCKET_ADDRESS_SETTER;
+    /** {@code (Object networkManager) -> Channel} */
+    static final MethodHandle CHANNEL_GETTER;
+
+    static {
+        Class<?> networkManager = MinecraftReflection.getNetworkManagerClass();
+        if (!ChannelHandler.class.isAssignableFrom(networkManager)) {
+            throw new IllegalStateException("NetworkManager 不是 ChannelHandler：" + networkManager.getName());
+        }
+        NETWORK_MANAGER = networkManager.asSubclass(ChannelHandler.class);
+
+        Field f = FuzzyReflection.fromClass(networkManager, true)
+                .getFieldByType("socketAddress", SocketAddress.class);
+        try {
+            f.setAccessible(true);
+        } catch (Throwable ignored) {
+        }
+
+        Field channel = FuzzyReflection.fromClass(networkManager, true).getFieldByType("channel", Channel.class);
+        try {
+            channel.setAccessible(true);
+        } catch (Throwable ignored) {
+        }
+
+        MethodHandle setter = null, getter = null;
+        try {
+            setter = MethodHandles.lookup().unreflectSetter(f)
+                    .asType(MethodType.methodType(void.class, Object.class, SocketAddress.class));
+            getter = MethodHandles.lookup().unreflectGetter(channel)
+                    .asType(MethodType.methodType(Channel.class, Object.class));
+        } catch (IllegalAccessException e) {
+            sneakyThrow(e);
+        }
+        SOCKET_ADDRESS_SETTER = setter;
+        CHANNEL_GETTER = getter;
+    }
+
+    /**
+     * 玩家连接的通道，玩家尚未完成登录时可能为 {@code null}。
+     */
+    @Nullable
+    static Channel channelOf(Player player) {
+        Object networkManager = MinecraftFields.getNetworkManager(player);
+        if (networkManager == null) return null;
+        try {
+            return (Channel) CHANNEL_GETTER.invokeExact(networkManager);
+        } catch (Throwable e) {
+            sneakyThrow(e);
+            return null;
+        }
+    }
+
+    /**
+     * 不经过构造器创建一个 {@code NetworkManager}，供 JIT 预热作为改写地址的一次性目标。
+     * 它的字段都未初始化，不能让它收到任何入站数据或事件。
+     */
+    static ChannelHandler allocateNetworkManager() {
+        try {
+            return NETWORK_MANAGER.cast(UnsafeHolder.UNSAFE.allocateInstance(NETWORK_MANAGER));
+        } catch (InstantiationException e) {
+            sneakyThrow(e);
+            throw new AssertionError();
+        }
+    }
+
+    private static final class UnsafeHolder {
+        static final Unsafe UNSAFE;
+
+        static {
+            Unsafe unsafe = null;
+            try {
+                Field f = Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                unsafe = (Unsafe) f.get(null);
+            } catch (ReflectiveOperationException e) {
+                sneakyThrow(e);
+            }
+            UNSAFE = unsafe;
+        }
+    }
+
+    private NmsHandles() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 触发类初始化。解析失败时抛出 {@link ExceptionInInitializerError}。
+     */
+    static void bootstrap() {
+    }
+}
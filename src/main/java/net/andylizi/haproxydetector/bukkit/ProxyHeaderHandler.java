@@ -0,0 +1,42 @@
+package net.andylizi.haproxydetector.bukkit;
+
+import java.net.SocketAddress;
+import java.util.logging.Level;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import net.andylizi.haproxydetector.LatencyStage;
+import net.andylizi.haproxydetector.LatencyStats;
+import net.andylizi.haproxydetector.ProxiedConnection;
+import net.andylizi.haproxydetector.ProxyHeaderDecoder;
+import net.andylizi.haproxydetector.accesslog.AccessLog;
+
+import static net.andylizi.haproxydetector.ReflectionUtil.sneakyThrow;
+
+/**
+ * 解析 PROXY 协议头并直接改写 {@code NetworkManager} 中的远程地址，取代 {@code HAProxyMessageDecoder} 加消息处理器的组合。
+ */
+class ProxyHeaderHandler extends ProxyHeaderDecoder {
+    private final ChannelHandler networkManager;
+
+    public ProxyHeaderHandler(ChannelHandler networkManager) {
+        this.networkManager = networkManager;
+    }
+
+    @Override
+    protected void proxied(ChannelHandlerContext ctx, ProxiedConnection connection) {
+        SocketAddress realAddress = connection.getRealAddress();
+        // the access log keeps the durable record, keep the console quiet then
+        BukkitMain.logger.log(AccessLog.isEnabled() ? Level.FINE : Level.INFO, "通过代理设置真实远程地址 {0} -> {1}",
+                new Object[] { ctx.channel().remoteAddress(), realAddress });
+        try {
+            NmsHandles.SOCKET_ADDRESS_SETTER.invokeExact((Object) networkManager, realAddress);
+        } catch (Throwable e) {
+            sneakyThrow(e);
+        }
+        if (ctx.channel().hasAttr(LatencyStats.DECIDED_AT)) {
+            Long decidedAt = ctx.channel().attr(LatencyStats.DECIDED_AT).getAndSet(null);
+            if (decidedAt != null) LatencyStats.recordSince(LatencyStage.APPLY, decidedAt);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.andylizi.haproxydetector.bungee;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.util.AttributeKey;
+import net.md_5.bungee.api.config.ListenerInfo;
+import net.md_5.bungee.api.connection.PendingConnection;
+import org.jetbrains.annotations.Nullable;
+
+import static net.andylizi.haproxydetector.ReflectionUtil.sneakyThrow;
+
+/**
+ * 连接路径上用到的全部 BungeeCord 内部成员，在插件启用时通过 {@link #bootstrap()} 一次性解析。
+ * 任何必需成员缺失都会使启用直接失败。
+ */
+final class BungeeHandles {
+    static final AttributeKey<ListenerInfo> LISTENER;
+    static final ChannelInitializer<Channel> SERVER_CHILD;
+    static final Field INIT_MAP;
+    /** {@code (PendingConnection) -> Channel}，经由 {@code InitialHandler.ch.getHandle()} */
+    private static final MethodHandle CONNECTION_CHANNEL;
+    /** {@code (ListenerInfo) -> boolean}；旧版本 BungeeCord 没有此方法，此时为 {@code null} */
+    @Nullable
+    private static final MethodHandle IS_PROXY_PROTOCOL;
+
+    static {
+        AttributeKey<ListenerInfo> listener = null;
+        ChannelInitializer<Channel> serverChild = null;
+        Field initMap = null;
+        MethodHandle isProxyProtocol = null;
+        MethodHandle connectionChannel = null;
+        try {
+            Class<?> pipelineUtilsClass = Class.forName("net.md_5.bungee.netty.PipelineUtils", true,
+                    Thread.currentThread().getContextClassLoader());
+            @SuppressWarnings("unchecked") AttributeKey<ListenerInfo> l =
+                    (AttributeKey<ListenerInfo>) pipelineUtilsClass.getField("LISTENER").get(null);
+            listener = l;
+            @SuppressWarnings("unchecked") ChannelInitializer<Channel> s =
+                    (ChannelInitializer<Channel>) pipelineUtilsClass.getField("SERVER_CHILD").get(null);
+            serverChild = s;
+
+            initMap = ChannelInitializer.class.getDeclaredField("initMap");
+            initMap.setAccessible(true);
+
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            Class<?> initialHandlerClass = Class.forName("net.md_5.bungee.connection.InitialHandler", true, loader);
+            Class<?> channelWrapperClass = Class.forName("net.md_5.bungee.netty.ChannelWrapper", true, loader);
+            Field ch = initialHandlerClass.getDeclaredField("ch");
+            ch.setAccessible(true);
+            connectionChannel = MethodHandles.filterReturnValue(MethodHandles.lookup().unreflectGetter(ch),
+                    MethodHandles.publicLookup().findVirtual(channelWrapperClass, "getHandle",
+                            MethodType.methodType(Channel.class)))
+                    .asType(MethodType.methodType(Channel.class, PendingConnection.class));
+
+            try {
+                isProxyProtocol = MethodHandles.publicLookup().findVirtual(ListenerInfo.class, "isProxyProtocol",
+                        MethodType.methodType(boolean.class));
+            } catch (NoSuchMethodException ignored) {
+            }
+        } catch (ReflectiveOperationException e) {
+            sneakyThrow(e);
+        }
+        LISTENER = listener;
+        SERVER_CHILD = serverChild;
+        INIT_MAP = initMap;
+        IS_PROXY_PROTOCOL = isProxyProtocol;
+        CONNECTION_CHANNEL = connectionChannel;
+    }
+
+    private BungeeHandles() {
+        throw new AssertionError();
+    }
+
+    /**
+     * 触发类初始化。解析失败时抛出 {@link ExceptionInInitializerError}。
+     */
+    static void bootstrap() {
+    }
+
+    /**
+     * 登录中的玩家连接的通道。
+     */
+    static Channel channelOf(PendingConnection connection) {
+        try {
+            return (Channel) CONNECTION_CHANNEL.invokeExact(connection);
+        } catch (Throwable e) {
+            sneakyThrow(e);
+            return null;
+        }
+    }
+
+    static boolean hasProxyProtocolOption() {
+        return IS_PROXY_PROTOCOL != null;
+    }
+
+    /**
+     * 该监听器是否开启了 {@code proxy_protocol}；不支持此选项的旧版本始终返回 {@code true}。
+     */
+    static boolean isProxyProtocol(ListenerInfo info) {
+        if (IS_PROXY_PROTOCOL == null) return true;
+        try {
+            return (boolean) IS_PROXY_PROTOCOL.invokeExact(info);
+        } catch (Throwable e) {
+            sneakyThrow(e);
+            return false;
+        }
+    }
+}
@@ -17,15 +17,10 @@
 package net.andylizi.haproxydetector.bungee;
 
 import java.io.IOException;
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodType;
-import java.lang.reflect.Field;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -33,45 +28,46 @@ import java.util.stream.Stream;
 import com.google.common.collect.ForwardingSet;
 import io.netty.channel.*;
 import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
-import io.netty.util.AttributeKey;
+import net.andylizi.haproxydetector.Blocklist;
+import net.andylizi.haproxydetector.DeferAccept;
+import net.andylizi.haproxydetector.DetectorConfig;
+import net.andylizi.haproxydetector.DetectorStats;
+import net.andylizi.haproxydetector.FastLane;
+import net.andylizi.haproxydetector.FloodGuard;
 import net.andylizi.haproxydetector.HAProxyDetectorHandler;
+import net.andylizi.haproxydetector.JitWarmup;
+import net.andylizi.haproxydetector.LatencyStage;
+import net.andylizi.haproxydetector.LatencyStats;
+import net.andylizi.haproxydetector.ListenerPolicy;
 import net.andylizi.haproxydetector.MetricsId;
 import net.andylizi.haproxydetector.ProxyWhitelist;
+import net.andylizi.haproxydetector.RealAddressService;
+import net.andylizi.haproxydetector.SharedBanTable;
+import net.andylizi.haproxydetector.UnixSocketListener;
+import net.andylizi.haproxydetector.accesslog.AccessLog;
+import net.andylizi.haproxydetector.jfr.DetectorEvents;
+import net.andylizi.haproxydetector.trace.TraceCapture;
+import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.config.ListenerInfo;
+import net.md_5.bungee.api.connection.PendingConnection;
+import net.md_5.bungee.api.event.LoginEvent;
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
+import net.md_5.bungee.api.plugin.Command;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.event.EventHandler;
+import net.md_5.bungee.event.EventPriority;
 import org.bstats.bungeecord.Metrics;
 
 import static net.andylizi.haproxydetector.ReflectionUtil.sneakyThrow;
 
 public final class BungeeMain extends Plugin implements Listener {
     static Logger logger;
-    static Predicate<ListenerInfo> proxyProtocolChecker;
-    static AttributeKey<ListenerInfo> listenerAttr;
-    static Field initMapField;
-    ChannelInitializer<Channel> serverChild;
     Set<ChannelHandlerContext> originalInitMap;
 
     @Override
     public void onLoad() {
         logger = getLogger();
-
-        try {
-            MethodHandle handle = MethodHandles.lookup().findVirtual(ListenerInfo.class, "isProxyProtocol",
-                    MethodType.methodType(boolean.class));
-            proxyProtocolChecker = (info) -> {
-                try {
-                    return (boolean) handle.invokeExact(info);
-                } catch (Throwable e) {
-                    sneakyThrow(e);
-                    return false;
-                }
-            };
-        } catch (NoSuchMethodException ignored) {
-            proxyProtocolChecker = null;
-        } catch (ReflectiveOperationException e) {
-            sneakyThrow(e);
-        }
     }
 
     @Override
@@ -94,9 +90,51 @@ public final class BungeeMain extends Plugin implements Listener {
         }
 
         try {
-            Class<?> pipelineUtilsClass = Class.forName("net.md_5.bungee.netty.PipelineUtils", true,
-                    Thread.currentThread().getContextClassLoader());
-            listenerAttr = (AttributeKey<ListenerInfo>) pipelineUtilsClass.getField("LISTENER").get(null);
+            DetectorConfig.config = DetectorConfig.loadOrDefault(this.getDataFolder().toPath().resolve("config.conf"));
+        } catch (IOException e) {
+            throw new RuntimeException("加载配置失败", e);
+        }
+        for (ListenerPolicy policy : DetectorConfig.config.getListenerPolicies()) {
+            logger.info("监听器策略：" + policy);
+        }
+
+        JitWarmup.run(logger, true, ch -> injectDetector(logger, ch, true, 0));
+        DeferAccept.start(logger);
+        FloodGuard.start(logger);
+        FastLane.start();
+
+        try {
+            TraceCapture.start(logger, this.getDataFolder().toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "开启首包捕获失败", e);
+        }
+
+        try {
+            SharedBanTable.start(logger, this.getDataFolder().toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "映射共享封禁表失败", e);
+        }
+
+        try {
+            Blocklist.start(logger, this.getDataFolder().toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "加载黑名单失败", e);
+        }
+
+        try {
+            AccessLog.start(logger, this.getDataFolder().toPath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "开启访问日志失败", e);
+        }
+
+        if (DetectorConfig.config.isBackendProxyProtocol()) {
+            // BungeeCord builds backend connections with an inline initializer that has no
+            // replaceable holder, so there is nothing for us to wrap here
+            logger.warning("BungeeCord 不支持 backend.proxy-protocol，该选项将被忽略");
+        }
+
+        try {
+            BungeeHandles.bootstrap();
 
             // Here, we need to hijack the channel initializer for BC listeners.
             //
@@ -105,46 +143,108 @@ public final class BungeeMain extends Plugin implements Listener {
             //
             // Instead of hijacking `SERVER_CHILD` itself, we're going to replace its `initMap`,
             // whose `add` method will be called internally every time before `initChannel`.
-            this.serverChild = (ChannelInitializer<Channel>) pipelineUtilsClass.getField(
-                    "SERVER_CHILD").get(null);
-            initMapField = ChannelInitializer.class.getDeclaredField("initMap");
-            initMapField.setAccessible(true);
-
-            Set<ChannelHandlerContext> originalInitMap = (Set<ChannelHandlerContext>) initMapField.get(serverChild);
+            this.originalInitMap = (Set<ChannelHandlerContext>) BungeeHandles.INIT_MAP.get(BungeeHandles.SERVER_CHILD);
             Set<ChannelHandlerContext> myInitMap = new DetectorInitSet(originalInitMap);
-            initMapField.set(serverChild, myInitMap);
+            BungeeHandles.INIT_MAP.set(BungeeHandles.SERVER_CHILD, myInitMap);
         } catch (Throwable e) {
             sneakyThrow(e);
             return;
         }
 
-        if (proxyProtocolChecker != null) {
+        if (DetectorConfig.config.getUnixSocketPath() != null) {
+            startUnixSocket();
+        }
+
+        if (BungeeHandles.hasProxyProtocolOption()) {
             if (Stream.concat(getProxy().getConfigurationAdapter().getListeners().stream(),
-                    getProxy().getConfig().getListeners().stream()).noneMatch(proxyProtocolChecker)) {
+                    getProxy().getConfig().getListeners().stream()).noneMatch(BungeeHandles::isProxyProtocol)) {
                 logger.warning("代理协议已禁用，插件可能无法正常工作！");
             }
         }
 
+        getProxy().getPluginManager().registerCommand(this, new StatsCommand());
+        getProxy().getPluginManager().registerListener(this, this);
+
         try {
             Metrics metrics = new Metrics(this, 12605);
             metrics.addCustomChart(MetricsId.createWhitelistCountChart());
+            metrics.addCustomChart(MetricsId.createProxyNodeCountChart());
         } catch (Throwable t) {
             logger.log(Level.WARNING, "启动统计上报失败", t);
         }
     }
 
+    /**
+     * Unix 域套接字上的连接没有所属的 BungeeCord 监听器，借用第一个开启了 {@code proxy_protocol} 的监听器配置。
+     */
+    private void startUnixSocket() {
+        ListenerInfo listener = getProxy().getConfig().getListeners().stream()
+                .filter(BungeeHandles::isProxyProtocol).findFirst().orElse(null);
+        if (listener == null) {
+            logger.warning("没有开启 proxy_protocol 的监听器，无法为 Unix 域套接字提供监听器配置");
+            return;
+        }
+        ChannelInitializer<Channel> childHandler = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.attr(BungeeHandles.LISTENER).set(listener);
+                ch.pipeline().addLast(BungeeHandles.SERVER_CHILD);
+            }
+        };
+        try {
+            UnixSocketListener.start(logger, this.getDataFolder().toPath(), childHandler);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "监听 Unix 域套接字失败", e);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onLogin(LoginEvent event) {
+        PendingConnection connection = event.getConnection();
+        RealAddressService.bind(connection.getUniqueId(), BungeeHandles.channelOf(connection));
+    }
+
+    @EventHandler(priority = EventPriority.HIGHEST)
+    public void onDisconnect(PlayerDisconnectEvent event) {
+        RealAddressService.unbind(event.getPlayer().getUniqueId());
+    }
+
     @Override
     public void onDisable() {
-        if (initMapField != null && serverChild != null && originalInitMap != null) {
+        TraceCapture.stop();
+        SharedBanTable.stop();
+        FastLane.stop();
+        Blocklist.stop();
+        AccessLog.stop();
+        UnixSocketListener.stop();
+        RealAddressService.clear();
+        if (originalInitMap != null) {
             try {
-                initMapField.set(serverChild, originalInitMap);
+                BungeeHandles.INIT_MAP.set(BungeeHandles.SERVER_CHILD, originalInitMap);
                 originalInitMap = null;
-                serverChild = null;
             } catch (Throwable ignored) {
             }
         }
     }
 
+    static class StatsCommand extends Command {
+        StatsCommand() {
+            super("haproxydetector", "haproxydetector.stats", "hapd");
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void execute(CommandSender sender, String[] args) {
+            if (args.length == 1 && "stats".equalsIgnoreCase(args[0])) {
+                for (String line : DetectorStats.report()) {
+                    sender.sendMessage(line);
+                }
+            } else {
+                sender.sendMessage("用法：/haproxydetector stats");
+            }
+        }
+    }
+
     static class DetectorInitSet extends ForwardingSet<ChannelHandlerContext> {
         private final Set<ChannelHandlerContext> delegate;
 
@@ -162,7 +262,8 @@ public final class BungeeMain extends Plugin implements Listener {
             if (super.add(ctx)) {
                 // Delay our logic until after the original one was executed
                 final Channel channel = ctx.channel();
-                ctx.executor().execute(() -> initChannel(channel));
+                final long injectStart = LatencyStats.sample() ? System.nanoTime() : 0;
+                ctx.executor().execute(() -> initChannel(channel, injectStart));
                 return true;
             } else {
                 return false;
@@ -174,23 +275,51 @@ public final class BungeeMain extends Plugin implements Listener {
             return standardAddAll(collection);
         }
 
-        private void initChannel(Channel ch) {
-            if (proxyProtocolChecker != null && !proxyProtocolChecker.test(ch.attr(listenerAttr).get())) {
-                return; // only proceed if listener has proxy protocol enabled
-            }
+        private void initChannel(Channel ch, long injectStart) {
+            injectDetector(logger, ch, BungeeHandles.isProxyProtocol(ch.attr(BungeeHandles.LISTENER).get()),
+                    injectStart);
+        }
+    }
 
-            ChannelPipeline pipeline = ch.pipeline();
-            if (!ch.isOpen() || pipeline.get("haproxy-detector") != null)
+    /**
+     * 平台初始化新连接的管线之后调用：先经过共享封禁表准入，监听器开启了 {@code proxy_protocol} 时
+     * 再以检测器替换平台放入的 HAProxy 解码器。
+     *
+     * @param injectStart 开始注入的时刻，不计时为 {@code 0}
+     */
+    public static void injectDetector(Logger logger, Channel ch, boolean proxyProtocol, long injectStart) {
+        if (!SharedBanTable.admit(ch)) {
+            ch.close();
+            return;
+        }
+
+        if (!proxyProtocol) {
+            return; // only proceed if listener has proxy protocol enabled
+        }
+        DeferAccept.apply(ch);
+
+        ChannelPipeline pipeline = ch.pipeline();
+        if (!ch.isOpen() || pipeline.get("haproxy-detector") != null)
+            return;
+
+        Object event = DetectorEvents.beginInjection();
+        ChannelHandler oldHandler;
+        if ((oldHandler = pipeline.get("haproxy-decoder")) != null
+                || (oldHandler = pipeline.get(HAProxyMessageDecoder.class)) != null) {
+            ListenerPolicy policy = ListenerPolicy.of(ch);
+            if (policy.applyWithoutDetection(ch, oldHandler))
                 return;
 
-            HAProxyDetectorHandler detectorHandler = new HAProxyDetectorHandler(logger, null);
-            ChannelHandler oldHandler;
-            if ((oldHandler = pipeline.get("haproxy-decoder")) != null
-                    || (oldHandler = pipeline.get(HAProxyMessageDecoder.class)) != null) {
-                pipeline.replace(oldHandler, "haproxy-detector", detectorHandler);
-            } else {
-                throw new NoSuchElementException("未启用 HAProxy 支持");
+            HAProxyDetectorHandler detectorHandler = new HAProxyDetectorHandler(logger, null, policy.getWhitelist());
+            pipeline.replace(oldHandler, "haproxy-detector", detectorHandler);
+            DetectorEvents.commitInjection(event, ch.remoteAddress(), null, 0); // nothing has been read yet
+            if (injectStart != 0) {
+                long now = System.nanoTime();
+                LatencyStats.record(LatencyStage.INJECT, now - injectStart);
+                detectorHandler.setInjectedAt(now);
             }
+        } else {
+            throw new NoSuchElementException("未启用 HAProxy 支持");
         }
     }
 }
@@ -0,0 +1,13 @@
+package net.andylizi.haproxydetector.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("net.andylizi.haproxydetector.AddressRewrite")
+@Label("Real Address Rewrite")
+@Description("将连接的远程地址改写为 PROXY 协议头中的真实地址")
+final class AddressRewriteEvent extends DetectorEvent {
+    @Label("Real Address")
+    String realAddress;
+}
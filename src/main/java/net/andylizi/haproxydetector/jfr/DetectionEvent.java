@@ -0,0 +1,13 @@
+package net.andylizi.haproxydetector.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("net.andylizi.haproxydetector.Detection")
+@Label("Proxy Detection")
+@Description("检测器对一个连接作出判定")
+final class DetectionEvent extends DetectorEvent {
+    @Label("Outcome")
+    String outcome;
+}
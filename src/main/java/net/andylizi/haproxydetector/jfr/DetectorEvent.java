@@ -0,0 +1,23 @@
+package net.andylizi.haproxydetector.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * 所有检测器 JFR 事件的公共字段，持续时间由事件本身的 begin/commit 记录。
+ */
+@Category("HAProxyDetector")
+@StackTrace(false)
+abstract class DetectorEvent extends jdk.jfr.Event {
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("PROXY Version")
+    String protocolVersion;
+
+    @Label("Bytes Inspected")
+    @DataAmount
+    int bytesInspected;
+}
@@ -0,0 +1,69 @@
+package net.andylizi.haproxydetector.jfr;
+
+import java.net.SocketAddress;
+
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import net.andylizi.haproxydetector.DetectionOutcome;
+import net.andylizi.haproxydetector.ReflectionUtil;
+
+/**
+ * 检测器的 Java Flight Recorder 事件入口。
+ * <p>
+ * 构建目标为 Java 8，运行时未必提供 {@code jdk.jfr}，因此本类不直接引用任何事件类型。
+ * {@code begin*} 方法在 JFR 不可用或对应事件未启用时返回 {@code null}，此时调用方无需再调用
+ * {@code commit*}；除此之外不产生任何开销。
+ */
+public final class DetectorEvents {
+    private static final boolean AVAILABLE = ReflectionUtil.hasClass("jdk.jfr.Event");
+
+    public static Object beginDetection() {
+        return AVAILABLE ? JfrRecorder.beginDetection() : null;
+    }
+
+    public static void commitDetection(Object token, SocketAddress remote, HAProxyProtocolVersion version,
+                                       int bytesInspected, DetectionOutcome outcome) {
+        if (token != null) {
+            JfrRecorder.commitDetection(token, String.valueOf(remote), nameOf(version), bytesInspected, outcome.name());
+        }
+    }
+
+    public static Object beginWhitelistLookup() {
+        return AVAILABLE ? JfrRecorder.beginWhitelistLookup() : null;
+    }
+
+    public static void commitWhitelistLookup(Object token, SocketAddress remote, HAProxyProtocolVersion version,
+                                             int bytesInspected, boolean matched) {
+        if (token != null) {
+            JfrRecorder.commitWhitelistLookup(token, String.valueOf(remote), nameOf(version), bytesInspected, matched);
+        }
+    }
+
+    public static Object beginInjection() {
+        return AVAILABLE ? JfrRecorder.beginInjection() : null;
+    }
+
+    public static void commitInjection(Object token, SocketAddress remote, HAProxyProtocolVersion version,
+                                       int bytesInspected) {
+        if (token != null) {
+            JfrRecorder.commitInjection(token, String.valueOf(remote), nameOf(version), bytesInspected);
+        }
+    }
+
+    public static Object beginAddressRewrite() {
+        return AVAILABLE ? JfrRecorder.beginAddressRewrite() : null;
+    }
+
+    public static void commitAddressRewrite(Object token, SocketAddress remote, HAProxyProtocolVersion version,
+                                            int bytesInspected, SocketAddress realAddress) {
+        if (token != null) {
+            JfrRecorder.commitAddressRewrite(token, String.valueOf(remote), nameOf(version), bytesInspected,
+                    String.valueOf(realAddress));
+        }
+    }
+
+    private static String nameOf(HAProxyProtocolVersion version) {
+        return version == null ? null : version.name();
+    }
+
+    private DetectorEvents() {throw new AssertionError();}
+}
@@ -0,0 +1,11 @@
+package net.andylizi.haproxydetector.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("net.andylizi.haproxydetector.Injection")
+@Label("Pipeline Injection")
+@Description("向新连接的管线注入检测器")
+final class InjectionEvent extends DetectorEvent {
+}
@@ -0,0 +1,82 @@
+package net.andylizi.haproxydetector.jfr;
+
+/**
+ * 直接引用 JFR 事件类型的部分。只有在确认运行时提供 {@code jdk.jfr} 之后才会被加载。
+ * <p>
+ * 每种事件保留一个永不提交的实例，仅用于 {@code isEnabled()} 检查。
+ */
+final class JfrRecorder {
+    private static final DetectionEvent DETECTION = new DetectionEvent();
+    private static final WhitelistLookupEvent WHITELIST_LOOKUP = new WhitelistLookupEvent();
+    private static final InjectionEvent INJECTION = new InjectionEvent();
+    private static final AddressRewriteEvent ADDRESS_REWRITE = new AddressRewriteEvent();
+
+    static Object beginDetection() {
+        if (!DETECTION.isEnabled()) return null;
+        DetectionEvent event = new DetectionEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitDetection(Object token, String remote, String version, int bytes, String outcome) {
+        DetectionEvent event = (DetectionEvent) token;
+        event.end();
+        event.remoteAddress = remote;
+        event.protocolVersion = version;
+        event.bytesInspected = bytes;
+        event.outcome = outcome;
+        event.commit();
+    }
+
+    static Object beginWhitelistLookup() {
+        if (!WHITELIST_LOOKUP.isEnabled()) return null;
+        WhitelistLookupEvent event = new WhitelistLookupEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitWhitelistLookup(Object token, String remote, String version, int bytes, boolean matched) {
+        WhitelistLookupEvent event = (WhitelistLookupEvent) token;
+        event.end();
+        event.remoteAddress = remote;
+        event.protocolVersion = version;
+        event.bytesInspected = bytes;
+        event.matched = matched;
+        event.commit();
+    }
+
+    static Object beginInjection() {
+        if (!INJECTION.isEnabled()) return null;
+        InjectionEvent event = new InjectionEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitInjection(Object token, String remote, String version, int bytes) {
+        InjectionEvent event = (InjectionEvent) token;
+        event.end();
+        event.remoteAddress = remote;
+        event.protocolVersion = version;
+        event.bytesInspected = bytes;
+        event.commit();
+    }
+
+    static Object beginAddressRewrite() {
+        if (!ADDRESS_REWRITE.isEnabled()) return null;
+        AddressRewriteEvent event = new AddressRewriteEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitAddressRewrite(Object token, String remote, String version, int bytes, String realAddress) {
+        AddressRewriteEvent event = (AddressRewriteEvent) token;
+        event.end();
+        event.remoteAddress = remote;
+        event.protocolVersion = version;
+        event.bytesInspected = bytes;
+        event.realAddress = realAddress;
+        event.commit();
+    }
+
+    private JfrRecorder() {throw new AssertionError();}
+}
@@ -0,0 +1,13 @@
+package net.andylizi.haproxydetector.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("net.andylizi.haproxydetector.WhitelistLookup")
+@Label("Whitelist Lookup")
+@Description("检查代理来源地址是否在白名单中")
+final class WhitelistLookupEvent extends DetectorEvent {
+    @Label("Matched")
+    boolean matched;
+}
@@ -0,0 +1,44 @@
+package net.andylizi.haproxydetector.trace;
+
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import net.andylizi.haproxydetector.ProxyWhitelist;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 单个被采样连接的捕获缓冲区，只会在该连接的事件循环中访问。
+ */
+public final class ConnectionCapture {
+    private final TraceWriter writer;
+    private final byte[] data;
+    private int length;
+    private int[] segments = new int[4];
+    private int segmentCount;
+
+    ConnectionCapture(TraceWriter writer, int maxBytes) {
+        this.writer = writer;
+        this.data = new byte[maxBytes];
+    }
+
+    public void append(ByteBuf buf) {
+        int n = Math.min(buf.readableBytes(), Math.min(data.length - length, TraceRecord.MAX_SEGMENT_LENGTH));
+        if (n <= 0 || segmentCount == TraceRecord.MAX_SEGMENTS) return;
+        buf.getBytes(buf.readerIndex(), data, length, n);
+        length += n;
+        if (segmentCount == segments.length) {
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+        }
+        segments[segmentCount++] = n;
+    }
+
+    /**
+     * @param whitelist 接受该连接的监听器所用的白名单，即检测器作出判定时使用的那一份
+     */
+    public void finish(@Nullable ProxyWhitelist whitelist, Channel ch) {
+        if (segmentCount == 0) return;
+        writer.submit(new TraceRecord(ProxyWhitelist.check(whitelist, ch),
+                Arrays.copyOf(segments, segmentCount), Arrays.copyOf(data, length)));
+    }
+}
@@ -0,0 +1,50 @@
+package net.andylizi.haproxydetector.trace;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import net.andylizi.haproxydetector.DetectorConfig;
+
+/**
+ * 可选的首包捕获模式，由 {@code capture.*} 配置项控制。
+ */
+public final class TraceCapture {
+    private static volatile TraceWriter writer;
+
+    public static void start(Logger logger, Path dataDirectory) throws IOException {
+        stop();
+        DetectorConfig config = DetectorConfig.config;
+        if (!config.isCaptureEnabled()) return;
+
+        String name = "capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".trace";
+        Path path = dataDirectory.resolve("captures").resolve(name);
+        writer = new TraceWriter(logger, path, config.getCaptureQueueSize());
+        logger.info("已开启首包捕获，写入 " + path);
+    }
+
+    public static void stop() {
+        TraceWriter w = writer;
+        if (w != null) {
+            writer = null;
+            w.close();
+        }
+    }
+
+    /**
+     * 按采样率决定是否捕获新连接，不捕获时返回 {@code null}。
+     */
+    public static ConnectionCapture sample() {
+        TraceWriter w = writer;
+        if (w == null) return null;
+        DetectorConfig config = DetectorConfig.config;
+        int rate = config.getCaptureSampleRate();
+        if (rate != 1 && ThreadLocalRandom.current().nextInt(rate) != 0) return null;
+        return new ConnectionCapture(w, config.getCaptureMaxBytes());
+    }
+
+    private TraceCapture() {throw new AssertionError();}
+}
@@ -0,0 +1,65 @@
+package net.andylizi.haproxydetector.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * 顺序读取捕获文件中的记录。
+ */
+public final class TraceReader implements Closeable {
+    private final DataInputStream in;
+
+    public TraceReader(Path path) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        byte[] magic = new byte[TraceRecord.MAGIC.length];
+        try {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            magic = null;
+        }
+        if (!Arrays.equals(magic, TraceRecord.MAGIC)) {
+            in.close();
+            throw new IOException("不是有效的捕获文件：" + path);
+        }
+    }
+
+    /**
+     * 读取下一条记录，到达文件末尾时返回 {@code null}。末尾不完整的记录（例如写入中途断电）会被忽略。
+     */
+    public TraceRecord next() throws IOException {
+        int flags = in.read();
+        if (flags < 0) return null;
+        try {
+            int count = in.readUnsignedByte();
+            int[] lengths = new int[count];
+            byte[][] segments = new byte[count][];
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                lengths[i] = in.readUnsignedShort();
+                segments[i] = new byte[lengths[i]];
+                in.readFully(segments[i]);
+                total += lengths[i];
+            }
+            byte[] data = new byte[total];
+            int offset = 0;
+            for (byte[] segment : segments) {
+                System.arraycopy(segment, 0, data, offset, segment.length);
+                offset += segment.length;
+            }
+            return new TraceRecord((flags & TraceRecord.FLAG_WHITELISTED) != 0, lengths, data);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,68 @@
+package net.andylizi.haproxydetector.trace;
+
+import java.util.Arrays;
+
+/**
+ * 一条捕获记录：连接最初收到的若干字节及其分段边界。
+ * <p>
+ * 文件格式：8 字节魔数 {@code HAPDTRC1}，之后是连续的记录。每条记录为
+ * {@code [u8 标志][u8 分段数]} 加上每个分段的 {@code [u16 长度][数据]}。
+ * 标志位 0 表示来源地址在捕获时位于代理白名单中。
+ */
+public final class TraceRecord {
+    static final byte[] MAGIC = {'H', 'A', 'P', 'D', 'T', 'R', 'C', '1'};
+    static final int FLAG_WHITELISTED = 1;
+    static final int MAX_SEGMENTS = 255;
+    static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    private final boolean whitelisted;
+    private final int[] segmentLengths;
+    private final byte[] data;
+
+    public TraceRecord(boolean whitelisted, int[] segmentLengths, byte[] data) {
+        int total = 0;
+        for (int len : segmentLengths) total += len;
+        if (total != data.length) throw new IllegalArgumentException("分段长度之和与数据长度不一致");
+        if (segmentLengths.length > MAX_SEGMENTS) throw new IllegalArgumentException("分段过多");
+        this.whitelisted = whitelisted;
+        this.segmentLengths = segmentLengths;
+        this.data = data;
+    }
+
+    public boolean isWhitelisted() {
+        return whitelisted;
+    }
+
+    public int getSegmentCount() {
+        return segmentLengths.length;
+    }
+
+    public int getSegmentLength(int index) {
+        return segmentLengths[index];
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    byte[] encode() {
+        byte[] out = new byte[2 + segmentLengths.length * 2 + data.length];
+        out[0] = (byte) (whitelisted ? FLAG_WHITELISTED : 0);
+        out[1] = (byte) segmentLengths.length;
+        int pos = 2;
+        int offset = 0;
+        for (int len : segmentLengths) {
+            out[pos++] = (byte) (len >>> 8);
+            out[pos++] = (byte) len;
+            System.arraycopy(data, offset, out, pos, len);
+            pos += len;
+            offset += len;
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceRecord{whitelisted=" + whitelisted + ", segments=" + Arrays.toString(segmentLengths) + '}';
+    }
+}
@@ -0,0 +1,93 @@
+package net.andylizi.haproxydetector.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 在后台线程中将捕获记录写入文件。
+ * <p>
+ * 事件循环只负责把编码好的记录放入有界队列；队列已满时直接丢弃并计数，绝不阻塞。
+ */
+public final class TraceWriter implements Closeable {
+    private static final byte[] STOP = new byte[0];
+
+    private final Logger logger;
+    private final BlockingQueue<byte[]> queue;
+    private final OutputStream out;
+    private final Thread thread;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    public TraceWriter(Logger logger, Path path, int queueSize) throws IOException {
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        Files.createDirectories(path.getParent());
+        this.out = new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024);
+        out.write(TraceRecord.MAGIC);
+
+        this.thread = new Thread(this::run, "HAProxyDetector Trace Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void submit(TraceRecord record) {
+        if (closed || !queue.offer(record.encode())) {
+            dropped.increment();
+        }
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                byte[] record = queue.poll(1, TimeUnit.SECONDS);
+                if (record == null) {
+                    out.flush();
+                    continue;
+                }
+                if (record == STOP) break;
+                out.write(record);
+                written.increment();
+            }
+            out.flush();
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            closed = true;
+            logger.log(Level.WARNING, "写入捕获文件失败，已停止捕获", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (queue.offer(STOP, 5, TimeUnit.SECONDS))
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
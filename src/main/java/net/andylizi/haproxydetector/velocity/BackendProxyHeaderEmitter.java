@@ -0,0 +1,60 @@
+package net.andylizi.haproxydetector.velocity;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
+
+import com.velocitypowered.api.proxy.ServerConnection;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import net.andylizi.haproxydetector.ProxyHeaderEmitter;
+
+import static net.andylizi.haproxydetector.ReflectionUtil.sneakyThrow;
+
+/**
+ * 通过后端连接上的 {@code MinecraftConnection} 找到所属玩家，以其真实地址作为 PROXY 协议头的来源。
+ */
+final class BackendProxyHeaderEmitter extends ProxyHeaderEmitter {
+    static final BackendProxyHeaderEmitter INSTANCE = new BackendProxyHeaderEmitter();
+
+    private static final Class<?> MINECRAFT_CONNECTION;
+    private static final MethodHandle GET_ASSOCIATION;
+
+    static {
+        Class<?> cls = null;
+        MethodHandle handle = null;
+        try {
+            cls = Class.forName("com.velocitypowered.proxy.connection.MinecraftConnection");
+            handle = MethodHandles.publicLookup().findVirtual(cls, "getAssociation",
+                            MethodType.methodType(Class.forName(
+                                    "com.velocitypowered.proxy.connection.ConnectionAssociation")))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            sneakyThrow(e);
+        }
+        MINECRAFT_CONNECTION = cls;
+        GET_ASSOCIATION = handle;
+    }
+
+    private BackendProxyHeaderEmitter() {
+    }
+
+    @Override
+    protected InetSocketAddress clientAddress(ChannelHandlerContext ctx) {
+        ChannelHandler connection = ctx.pipeline().get("handler");
+        if (connection == null || !MINECRAFT_CONNECTION.isInstance(connection)) return null;
+
+        Object association;
+        try {
+            association = GET_ASSOCIATION.invokeExact((Object) connection);
+        } catch (Throwable e) {
+            sneakyThrow(e);
+            return null;
+        }
+        if (association instanceof ServerConnection) {
+            return ((ServerConnection) association).getPlayer().getRemoteAddress();
+        }
+        return null;
+    }
+}
@@ -7,8 +7,27 @@ import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.ProtocolDetectionResult;
 import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
 import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import net.andylizi.haproxydetector.BlocklistInspector;
+import net.andylizi.haproxydetector.CumulationLimiter;
+import net.andylizi.haproxydetector.DeferAccept;
+import net.andylizi.haproxydetector.DetectionOutcome;
+import net.andylizi.haproxydetector.DetectorConfig;
+import net.andylizi.haproxydetector.DetectorStats;
+import net.andylizi.haproxydetector.FloodGuard;
+import net.andylizi.haproxydetector.HealthCheck;
+import net.andylizi.haproxydetector.LatencyStage;
+import net.andylizi.haproxydetector.LatencyStats;
+import net.andylizi.haproxydetector.ProxyChecksumVerifier;
+import net.andylizi.haproxydetector.ProxyNodeStats;
 import net.andylizi.haproxydetector.ProxyWhitelist;
+import net.andylizi.haproxydetector.RealAddressRecorder;
+import net.andylizi.haproxydetector.SharedBanTable;
+import net.andylizi.haproxydetector.accesslog.AccessLogHandler;
+import net.andylizi.haproxydetector.jfr.DetectorEvents;
+import net.andylizi.haproxydetector.trace.ConnectionCapture;
+import net.andylizi.haproxydetector.trace.TraceCapture;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 import java.net.SocketAddress;
@@ -20,24 +39,110 @@ public class HAProxyDetectorHandler extends ByteToMessageDecoder {
     }
 
     private final Logger logger;
+    @Nullable
+    private final ProxyWhitelist whitelist;
+    private boolean received;
+    private long injectedAt;
+    private ConnectionCapture capture = TraceCapture.sample();
+    @Nullable
+    private FloodGuard floodGuard;
 
     public HAProxyDetectorHandler(@NotNull Logger logger) {
+        this(logger, ProxyWhitelist.whitelist);
+    }
+
+    public HAProxyDetectorHandler(@NotNull Logger logger, @Nullable ProxyWhitelist whitelist) {
         this.logger = logger;
+        this.whitelist = whitelist;
+    }
+
+    void setInjectedAt(long nanos) {
+        this.injectedAt = nanos;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        CumulationLimiter.install(ctx.pipeline(), ctx.name());
+        floodGuard = FloodGuard.of(ctx.channel());
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!received && injectedAt != 0) {
+            LatencyStats.recordSince(LatencyStage.FIRST_BYTES, injectedAt);
+        }
+        received = true;
+        if (capture != null && msg instanceof ByteBuf) {
+            capture.append((ByteBuf) msg);
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        if (capture != null) {
+            capture.finish(whitelist, ctx.channel());
+            capture = null;
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (!received && DetectorConfig.config.isHealthCheckConnectClose()) {
+            DetectorStats.record(DetectionOutcome.HEALTH_CHECK);
+        }
+        super.channelInactive(ctx);
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        Object event = DetectorEvents.beginDetection();
+        int bytesInspected = in.readableBytes();
+        DetectorConfig config = DetectorConfig.config;
+        byte[] probe = config.getHealthCheckProbe();
+        if (probe != null) {
+            int match = HealthCheck.matchProbe(in, probe);
+            if (match == HealthCheck.PARTIAL) {
+                return;
+            } else if (match == HealthCheck.MATCH) {
+                decided(event, ctx, null, bytesInspected, DetectionOutcome.HEALTH_CHECK);
+                HealthCheck.complete(ctx, in, config.getHealthCheckResponse());
+                return;
+            }
+        }
+
+        if (floodGuard != null && floodGuard.isEngaged() && !FloodGuard.isProxyPrefix(in)) {
+            floodGuard.recordDirect(); // keeps the flood window going
+            dropped(event, ctx, in, bytesInspected);
+            return;
+        }
+
+        long detectStart = injectedAt != 0 ? System.nanoTime() : 0;
         ProtocolDetectionResult<HAProxyProtocolVersion> detectionResult = HAProxyMessageDecoder.detectProtocol(in);
+        if (detectStart != 0) LatencyStats.recordSince(LatencyStage.DETECT, detectStart);
         switch (detectionResult.state()) {
             case NEEDS_MORE_DATA:
                 return;
             case INVALID:
+                if (floodGuard != null && floodGuard.recordDirect()) {
+                    dropped(event, ctx, in, bytesInspected);
+                    return;
+                }
+                decided(event, ctx, null, bytesInspected, DetectionOutcome.DIRECT);
                 ctx.pipeline().remove(this);
                 break;
             case DETECTED:
             default:
                 SocketAddress addr = ctx.channel().remoteAddress();
-                if (!ProxyWhitelist.check(addr)) {
+                HAProxyProtocolVersion version = detectionResult.detectedProtocol();
+                Object lookupEvent = DetectorEvents.beginWhitelistLookup();
+                long lookupStart = injectedAt != 0 ? System.nanoTime() : 0;
+                boolean whitelisted = ProxyWhitelist.check(whitelist, ctx.channel());
+                if (lookupStart != 0) LatencyStats.recordSince(LatencyStage.WHITELIST, lookupStart);
+                DetectorEvents.commitWhitelistLookup(lookupEvent, addr, version, bytesInspected, whitelisted);
+                if (!whitelisted) {
+                    decided(event, ctx, version, bytesInspected, DetectionOutcome.REJECTED);
+                    SharedBanTable.reportOffender(addr);
                     try {
                         ProxyWhitelist.getWarningFor(addr).ifPresent(logger::info);
                     } finally {
@@ -46,13 +151,55 @@ public class HAProxyDetectorHandler extends ByteToMessageDecoder {
                     return;
                 }
 
+                if (version == HAProxyProtocolVersion.V2 && config.isVerifyCrc32c()) {
+                    int checksum = ProxyChecksumVerifier.verify(in);
+                    if (checksum == ProxyChecksumVerifier.NEEDS_MORE_DATA) {
+                        return;
+                    } else if (checksum == ProxyChecksumVerifier.INVALID) {
+                        logger.warn("来自 {} 的 PROXY 协议头 CRC32C 校验失败，关闭连接", addr);
+                        decided(event, ctx, version, bytesInspected, DetectionOutcome.CORRUPTED);
+                        in.skipBytes(in.readableBytes());
+                        ctx.close();
+                        return;
+                    }
+                }
+
+                if (config.isHealthCheckLocal() && version == HAProxyProtocolVersion.V2) {
+                    if (in.readableBytes() <= 12)
+                        return; // the command byte hasn't arrived yet
+                    if (HealthCheck.isLocalCommand(in)) {
+                        decided(event, ctx, version, bytesInspected, DetectionOutcome.HEALTH_CHECK);
+                        HealthCheck.complete(ctx, in, null);
+                        return;
+                    }
+                }
+                decided(event, ctx, version, bytesInspected, DetectionOutcome.PROXIED);
+
                 ChannelPipeline pipeline = ctx.pipeline();
                 try {
                     pipeline.replace(this, "haproxy-decoder", new HAProxyMessageDecoder());
                 } catch (IllegalArgumentException ignored) {
                     pipeline.remove(this);
                 }
+                RealAddressRecorder.install(pipeline, "haproxy-decoder");
+                AccessLogHandler.install(pipeline, "haproxy-decoder");
+                BlocklistInspector.install(pipeline, "haproxy-decoder");
                 break;
         }
     }
+
+    private static void dropped(Object event, ChannelHandlerContext ctx, ByteBuf in, int bytesInspected) {
+        decided(event, ctx, null, bytesInspected, DetectionOutcome.DROPPED);
+        in.skipBytes(in.readableBytes());
+        ctx.close();
+    }
+
+    private static void decided(Object event, ChannelHandlerContext ctx, HAProxyProtocolVersion version,
+                                int bytesInspected, DetectionOutcome outcome) {
+        DetectorStats.record(outcome);
+        if (version != null && outcome != DetectionOutcome.REJECTED) {
+            ProxyNodeStats.record(ctx.channel().remoteAddress(), version, bytesInspected, outcome);
+        }
+        DetectorEvents.commitDetection(event, ctx.channel().remoteAddress(), version, bytesInspected, outcome);
+    }
 }
@@ -1,30 +1,58 @@
 package net.andylizi.haproxydetector.velocity;
 
 import com.google.inject.Inject;
+import com.velocitypowered.api.command.CommandManager;
+import com.velocitypowered.api.command.CommandSource;
+import com.velocitypowered.api.command.SimpleCommand;
+import com.velocitypowered.api.event.PostOrder;
 import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.connection.LoginEvent;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
+import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 // 使用 resources/velocity-plugin.json 提供元数据，无需 @Plugin 注解
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
+import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.config.ProxyConfig;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import net.andylizi.haproxydetector.Blocklist;
+import net.andylizi.haproxydetector.DeferAccept;
+import net.andylizi.haproxydetector.DetectorConfig;
+import net.andylizi.haproxydetector.DetectorStats;
+import net.andylizi.haproxydetector.FastLane;
+import net.andylizi.haproxydetector.FloodGuard;
+import net.andylizi.haproxydetector.JitWarmup;
+import net.andylizi.haproxydetector.LatencyStage;
+import net.andylizi.haproxydetector.LatencyStats;
+import net.andylizi.haproxydetector.ListenerPolicy;
 import net.andylizi.haproxydetector.MetricsId;
 import net.andylizi.haproxydetector.ProxyWhitelist;
+import net.andylizi.haproxydetector.RealAddressService;
 import net.andylizi.haproxydetector.ReflectionUtil;
+import net.andylizi.haproxydetector.SharedBanTable;
+import net.andylizi.haproxydetector.UnixSocketListener;
+import net.andylizi.haproxydetector.accesslog.AccessLog;
+import net.andylizi.haproxydetector.jfr.DetectorEvents;
+import net.andylizi.haproxydetector.trace.TraceCapture;
+import net.kyori.adventure.text.Component;
 import org.bstats.velocity.Metrics;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.file.Path;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 
 import static net.andylizi.haproxydetector.ReflectionUtil.sneakyThrow;
 
@@ -62,23 +90,119 @@ public final class VelocityMain {
         }
         ProxyWhitelist.whitelist = whitelist;
 
-        inject();
+        DetectorConfig.config = DetectorConfig.loadOrDefault(this.dataDirectory.resolve("config.conf"));
+        for (ListenerPolicy policy : DetectorConfig.config.getListenerPolicies()) {
+            logger.info("监听器策略：" + policy);
+        }
+        java.util.logging.Logger julLogger = java.util.logging.Logger.getLogger("HAProxyDetector");
+        JitWarmup.run(julLogger, true, ch -> injectDetector(NOPLogger.NOP_LOGGER, ch, 0));
+        DeferAccept.start(julLogger);
+        FloodGuard.start(julLogger);
+        FastLane.start();
+        try {
+            TraceCapture.start(julLogger, this.dataDirectory);
+        } catch (IOException e) {
+            logger.warn("开启首包捕获失败", e);
+        }
+        try {
+            SharedBanTable.start(julLogger, this.dataDirectory);
+        } catch (IOException e) {
+            logger.warn("映射共享封禁表失败", e);
+        }
+        try {
+            Blocklist.start(julLogger, this.dataDirectory);
+        } catch (IOException e) {
+            logger.warn("加载黑名单失败", e);
+        }
+
+        try {
+            AccessLog.start(julLogger, this.dataDirectory);
+        } catch (IOException e) {
+            logger.warn("开启访问日志失败", e);
+        }
+
+        DetectorInitializer<Channel> initializer = inject();
+        try {
+            UnixSocketListener.start(julLogger, this.dataDirectory, initializer);
+        } catch (IOException e) {
+            logger.warn("监听 Unix 域套接字失败", e);
+        }
+
+        CommandManager commandManager = server.getCommandManager();
+        commandManager.register(commandManager.metaBuilder("haproxydetector").aliases("hapd").build(),
+                new StatsCommand());
 
         try {
             Metrics metrics = metricsFactory.make(this, 14442);
             metrics.addCustomChart(MetricsId.createWhitelistCountChart());
+            metrics.addCustomChart(MetricsId.createProxyNodeCountChart());
         } catch (Throwable t) {
             logger.warn("启动统计上报失败", t);
         }
     }
 
+    @Subscribe
+    public void onProxyShutdown(ProxyShutdownEvent event) {
+        TraceCapture.stop();
+        SharedBanTable.stop();
+        FastLane.stop();
+        Blocklist.stop();
+        AccessLog.stop();
+        UnixSocketListener.stop();
+        RealAddressService.clear();
+    }
+
+    @Subscribe(order = PostOrder.FIRST)
+    public void onLogin(LoginEvent event) {
+        Player player = event.getPlayer();
+        RealAddressService.bind(player.getUniqueId(), channelOf(player));
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onDisconnect(DisconnectEvent event) {
+        RealAddressService.unbind(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * 玩家连接的通道，即 {@code ConnectedPlayer.getConnection().getChannel()}。
+     */
+    static Channel channelOf(Player player) {
+        try {
+            return (Channel) PlayerChannel.GETTER.invokeExact(player);
+        } catch (Throwable e) {
+            sneakyThrow(e);
+            return null;
+        }
+    }
+
+    private static final class PlayerChannel {
+        /** {@code (Player) -> Channel} */
+        static final MethodHandle GETTER;
+
+        static {
+            MethodHandle handle = null;
+            try {
+                Class<?> playerType = Class.forName("com.velocitypowered.proxy.connection.client.ConnectedPlayer");
+                Class<?> connectionType = Class.forName("com.velocitypowered.proxy.connection.MinecraftConnection");
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                handle = MethodHandles.filterReturnValue(
+                        lookup.findVirtual(playerType, "getConnection", MethodType.methodType(connectionType)),
+                        lookup.findVirtual(connectionType, "getChannel", MethodType.methodType(Channel.class)))
+                        .asType(MethodType.methodType(Channel.class, Player.class));
+            } catch (ReflectiveOperationException e) {
+                sneakyThrow(e);
+            }
+            GETTER = handle;
+        }
+    }
+
     private boolean isProxyEnabled() throws ReflectiveOperationException {
         ProxyConfig config = this.server.getConfiguration();
         Method isProxyProtocol = config.getClass().getMethod("isProxyProtocol");
         return (boolean) isProxyProtocol.invoke(config);
     }
 
-    private void inject() throws ReflectiveOperationException {
+    private DetectorInitializer<Channel> inject() throws ReflectiveOperationException {
         Class<?> cmType = Class.forName("com.velocitypowered.proxy.network.ConnectionManager");
         Field cmField = ReflectionUtil.getFirstDeclaringFieldByType(this.server.getClass(), cmType);
         cmField.setAccessible(true);
@@ -101,6 +225,41 @@ public final class VelocityMain {
         } catch (Throwable e) {
             sneakyThrow(e);
         }
+
+        if (DetectorConfig.config.isBackendProxyProtocol()) {
+            Object backendHolder = cmType.getMethod("getBackendChannelInitializer").invoke(connectionManager);
+            @SuppressWarnings("unchecked") ChannelInitializer<Channel> originalBackendInitializer =
+                (ChannelInitializer<Channel>) backendHolder.getClass().getMethod("get").invoke(backendHolder);
+            MethodHandle setBackend = MethodHandles.lookup().unreflect(
+                backendHolder.getClass().getMethod("set", ChannelInitializer.class));
+            try {
+                logger.info("正在替换后端通道初始化器，将向后端服务器发送 PROXY 协议头；可以安全忽略下一条警告。");
+                setBackend.invoke(backendHolder, new BackendInitializer<>(originalBackendInitializer));
+            } catch (Throwable e) {
+                sneakyThrow(e);
+            }
+        }
+        return newInitializer;
+    }
+
+    static class StatsCommand implements SimpleCommand {
+        @Override
+        public void execute(Invocation invocation) {
+            CommandSource source = invocation.source();
+            String[] args = invocation.arguments();
+            if (args.length == 1 && "stats".equalsIgnoreCase(args[0])) {
+                for (String line : DetectorStats.report()) {
+                    source.sendMessage(Component.text(line));
+                }
+            } else {
+                source.sendMessage(Component.text("用法：/haproxydetector stats"));
+            }
+        }
+
+        @Override
+        public boolean hasPermission(Invocation invocation) {
+            return invocation.source().hasPermission("haproxydetector.stats");
+        }
     }
 
     static class DetectorInitializer<C extends Channel> extends ChannelInitializer<C> {
@@ -128,23 +287,71 @@ public final class VelocityMain {
 
         @Override
         public void initChannel(C ch) {
+            long injectStart = LatencyStats.sample() ? System.nanoTime() : 0;
             try {
                 INIT_CHANNEL.invoke(this.delegate, ch);
             } catch (Throwable e) {
                 sneakyThrow(e);
                 return;
             }
+            injectDetector(logger, ch, injectStart);
+        }
+    }
+
+    /**
+     * Velocity 初始化新连接的管线之后调用：经过共享封禁表准入后，以检测器替换平台放入的 HAProxy 解码器。
+     *
+     * @param injectStart 开始注入的时刻，不计时为 {@code 0}
+     */
+    public static void injectDetector(Logger logger, Channel ch, long injectStart) {
+        ChannelPipeline pipeline = ch.pipeline();
+        if (!ch.isOpen() || pipeline.get("haproxy-detector") != null)
+            return;
 
-            ChannelPipeline pipeline = ch.pipeline();
-            if (!ch.isOpen() || pipeline.get("haproxy-detector") != null)
+        Object event = DetectorEvents.beginInjection();
+        DeferAccept.apply(ch);
+        if (!SharedBanTable.admit(ch)) {
+            ch.close();
+            return;
+        }
+
+        try {
+            HAProxyMessageDecoder decoder = pipeline.get(HAProxyMessageDecoder.class);
+            ListenerPolicy policy = ListenerPolicy.of(ch);
+            if (policy.applyWithoutDetection(ch, Objects.requireNonNull(decoder)))
                 return;
 
+            HAProxyDetectorHandler detector = new HAProxyDetectorHandler(logger, policy.getWhitelist());
+            pipeline.replace(decoder, "haproxy-detector", detector);
+            DetectorEvents.commitInjection(event, ch.remoteAddress(), null, 0); // nothing has been read yet
+            if (injectStart != 0) {
+                long now = System.nanoTime();
+                LatencyStats.record(LatencyStage.INJECT, now - injectStart);
+                detector.setInjectedAt(now);
+            }
+        } catch (NoSuchElementException | NullPointerException e) {
+            throw new RuntimeException("未启用 HAProxy 支持", e);
+        }
+    }
+
+    static class BackendInitializer<C extends Channel> extends ChannelInitializer<C> {
+        private final ChannelInitializer<C> delegate;
+
+        BackendInitializer(@NotNull ChannelInitializer<C> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void initChannel(C ch) {
             try {
-                HAProxyMessageDecoder decoder = pipeline.get(HAProxyMessageDecoder.class);
-                pipeline.replace(decoder, "haproxy-detector", new HAProxyDetectorHandler(logger));
-            } catch (NoSuchElementException | NullPointerException e) {
-                throw new RuntimeException("未启用 HAProxy 支持", e);
+                DetectorInitializer.INIT_CHANNEL.invoke(this.delegate, ch);
+            } catch (Throwable e) {
+                sneakyThrow(e);
+                return;
             }
+
+            // must come first so that the header precedes everything the encoders produce
+            ch.pipeline().addFirst("haproxy-encoder", BackendProxyHeaderEmitter.INSTANCE);
         }
     }
 }
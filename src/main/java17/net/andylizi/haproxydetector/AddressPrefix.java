@@ -0,0 +1,17 @@
+package net.andylizi.haproxydetector;
+
+import java.util.Arrays;
+
+/**
+ * Java 17 版本：整字节部分用 {@link Arrays#mismatch} 批量比较。
+ */
+final class AddressPrefix {
+    static boolean matches(byte[] network, int prefix, byte[] other) {
+        int full = prefix / Byte.SIZE;
+        if (Arrays.mismatch(network, 0, full, other, 0, full) >= 0) return false;
+        int rest = prefix % Byte.SIZE;
+        return rest == 0 || ((network[full] ^ other[full]) & (0xFF00 >>> rest) & 0xFF) == 0;
+    }
+
+    private AddressPrefix() {throw new AssertionError();}
+}
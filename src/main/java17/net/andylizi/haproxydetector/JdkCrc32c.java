@@ -0,0 +1,24 @@
+package net.andylizi.haproxydetector;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Java 17 版本：直接调用 {@link CRC32C}，不经过方法句柄。
+ */
+final class JdkCrc32c {
+    static boolean isAvailable() {
+        return true;
+    }
+
+    static Checksum create() {
+        return new CRC32C();
+    }
+
+    static void update(Checksum crc, ByteBuffer buffer) {
+        crc.update(buffer);
+    }
+
+    private JdkCrc32c() {throw new AssertionError();}
+}
@@ -0,0 +1,31 @@
+package net.andylizi.haproxydetector;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Java 17 版本：普通的 {@code long[]}，通过 {@link VarHandle} 以 opaque 模式发布，所属线程读取自己的槽位不需要屏障。
+ */
+final class LongSlots {
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] slots;
+
+    LongSlots(int length) {
+        this.slots = new long[length];
+    }
+
+    long get(int i) {
+        return (long) SLOT.getOpaque(slots, i);
+    }
+
+    void increment(int i) {
+        SLOT.setOpaque(slots, i, slots[i] + 1);
+    }
+
+    void max(int i, long value) {
+        if (value > slots[i]) {
+            SLOT.setOpaque(slots, i, value);
+        }
+    }
+}
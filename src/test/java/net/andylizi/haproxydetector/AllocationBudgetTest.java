@@ -0,0 +1,217 @@
+package net.andylizi.haproxydetector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import net.andylizi.haproxydetector.bukkit.InjectionStrategy;
+import net.andylizi.haproxydetector.bungee.BungeeMain;
+import net.andylizi.haproxydetector.velocity.VelocityMain;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.slf4j.helpers.NOPLogger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 每个连接在检测路径上分配的字节数不得超过 {@code allocation-budget.properties} 中的预算。
+ * <p>
+ * 按三个平台的管线搭建 {@link EmbeddedChannel} 并调用各自注入检测器的代码，对每种结果（直连、v1、v2、拒绝）各推送一大批连接，
+ * 用线程分配计数器测量，并减去不含检测器的同一管线的开销。预算可用
+ * {@code -Dhaproxydetector.allocation.<平台>.<结果>=<字节>} 临时覆盖。
+ */
+class AllocationBudgetTest {
+    private static final int WARMUP = 10_000;
+    private static final int MEASURED = 10_000;
+
+    private static final byte[] HANDSHAKE = {
+            0x10, 0x00, (byte) 0xF9, 0x05, 0x09, 'l', 'o', 'c', 'a', 'l', 'h', 'o', 's', 't', 0x63, (byte) 0xDD, 0x01
+    };
+    private static final InetSocketAddress PROXY = new InetSocketAddress("10.0.0.1", 40000);
+    private static final InetSocketAddress STRANGER = new InetSocketAddress("203.0.113.1", 40000);
+    private static final InetSocketAddress PLAYER = new InetSocketAddress("198.51.100.1", 40000);
+
+    /** every record is dropped, so only building the messages is counted */
+    private static final Logger LOGGER = Logger.getLogger("AllocationBudgetTest");
+
+    private static ProxyWhitelist previousWhitelist;
+    private static DetectorConfig previousConfig;
+    private static Properties budgets;
+
+    enum Outcome {
+        DIRECT(PLAYER, HANDSHAKE),
+        V1(PROXY, concat("PROXY TCP4 203.0.113.9 10.0.0.1 40000 25565\r\n".getBytes(StandardCharsets.US_ASCII),
+                HANDSHAKE)),
+        V2(PROXY, concat(v2(), HANDSHAKE)),
+        REJECTED(STRANGER, concat(v2(), HANDSHAKE));
+
+        final SocketAddress remote;
+        final byte[] input;
+
+        Outcome(SocketAddress remote, byte[] input) {
+            this.remote = remote;
+            this.input = input;
+        }
+    }
+
+    /** 各平台注入检测器的生产代码 */
+    enum Platform {
+        /** Paper 的管线已有 {@code haproxy-handler}，{@code InjectionStrategy} 把它交给检测器 */
+        BUKKIT(ch -> new InjectionStrategy(LOGGER).doInject(ch, 0)),
+        /** {@code BungeeMain.DetectorInitSet}：替换平台放入的 HAProxy 解码器 */
+        BUNGEE(ch -> BungeeMain.injectDetector(LOGGER, ch, true, 0)),
+        /** {@code VelocityMain.DetectorInitializer} */
+        VELOCITY(ch -> VelocityMain.injectDetector(NOPLogger.NOP_LOGGER, ch, 0));
+
+        final Consumer<EmbeddedChannel> inject;
+
+        Platform(Consumer<EmbeddedChannel> inject) {
+            this.inject = inject;
+        }
+    }
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        previousWhitelist = ProxyWhitelist.whitelist;
+        previousConfig = DetectorConfig.config;
+        ProxyWhitelist.whitelist = new ProxyWhitelist(Arrays.asList(new CIDR(PROXY.getAddress(), 8)));
+        DetectorConfig.config = new DetectorConfig(new Properties());
+        LOGGER.setLevel(Level.OFF);
+        LOGGER.setUseParentHandlers(false);
+
+        budgets = new Properties();
+        try (InputStream in = AllocationBudgetTest.class.getResourceAsStream("allocation-budget.properties")) {
+            budgets.load(Objects.requireNonNull(in, "allocation-budget.properties"));
+        }
+    }
+
+    @AfterAll
+    static void tearDown() {
+        ProxyWhitelist.whitelist = previousWhitelist;
+        DetectorConfig.config = previousConfig;
+    }
+
+    @ParameterizedTest
+    @EnumSource(Platform.class)
+    void perConnection(Platform platform) {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        for (Outcome outcome : Outcome.values()) {
+            // warm up both paths so that only the steady state is measured
+            measure(threads, platform, outcome, WARMUP, true);
+            measure(threads, platform, outcome, WARMUP, false);
+            long bytes = measure(threads, platform, outcome, MEASURED, true)
+                    - measure(threads, platform, outcome, MEASURED, false);
+
+            String key = platform.name().toLowerCase() + "." + outcome.name().toLowerCase();
+            long budget = Long.parseLong(System.getProperty("haproxydetector.allocation." + key,
+                    budgets.getProperty(key, "0")).trim());
+            System.out.println("allocation " + key + ": " + bytes + " bytes/connection (budget " + budget + ")");
+            assertTrue(bytes <= budget, key + " allocates " + bytes + " bytes per connection, budget is " + budget);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "thread allocation counter unavailable");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "thread allocation counter unsupported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /**
+     * @return 平均每个连接分配的字节数
+     */
+    private static long measure(com.sun.management.ThreadMXBean threads, Platform platform, Outcome outcome,
+                                int connections, boolean detector) {
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < connections; i++) {
+            EmbeddedChannel ch = open(platform, outcome.remote, detector);
+            if (detector) {
+                platform.inject.accept(ch);
+            }
+            ch.writeInbound(Unpooled.wrappedBuffer(outcome.input));
+            ch.finishAndReleaseAll();
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / connections;
+    }
+
+    /**
+     * 平台自己搭好的管线：Paper 为 timeout、{@code haproxy-handler} 加上游戏处理器，BungeeCord 与 Velocity
+     * 在最前面放有 HAProxy 解码器。不注入检测器时去掉 HAProxy 处理器，使基线只包含通道本身。
+     */
+    private static EmbeddedChannel open(Platform platform, SocketAddress remote, boolean detector) {
+        EmbeddedChannel ch = new EmbeddedChannel() {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return remote;
+            }
+        };
+        ChannelPipeline pipeline = ch.pipeline();
+        pipeline.addLast("timeout", new ChannelInboundHandlerAdapter());
+        if (platform == Platform.BUKKIT) {
+            if (detector) {
+                pipeline.addLast("haproxy-handler", new PaperHandler());
+            }
+        } else {
+            pipeline.addFirst("haproxy-decoder", new HAProxyMessageDecoder());
+        }
+        pipeline.addLast("packet_handler", new ChannelInboundHandlerAdapter());
+        return ch;
+    }
+
+    /**
+     * 代替 Paper 的 {@code haproxy-handler}：消费 {@link HAProxyMessage}，其余消息原样传递。
+     * 检测器会把它从管线中取下再放回，因此标为可共享。
+     */
+    @ChannelHandler.Sharable
+    private static final class PaperHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HAProxyMessage) {
+                ((HAProxyMessage) msg).release();
+                return;
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    private static byte[] v2() {
+        byte[] header = new byte[28];
+        System.arraycopy(new byte[]{0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A},
+                0, header, 0, 12);
+        header[12] = 0x21; // v2 PROXY
+        header[13] = 0x11; // TCP over IPv4
+        header[15] = 12;
+        byte[] body = {(byte) 203, 0, 113, 9, 10, 0, 0, 1, (byte) 0x9C, 0x40, 0x63, (byte) 0xDD};
+        System.arraycopy(body, 0, header, 16, body.length);
+        return header;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+}
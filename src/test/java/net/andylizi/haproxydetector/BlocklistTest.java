@@ -0,0 +1,144 @@
+package net.andylizi.haproxydetector;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlocklistTest {
+    private static final Logger LOGGER = Logger.getLogger("BlocklistTest");
+
+    @TempDir
+    Path dir;
+
+    private Blocklist load(String... lines) throws IOException {
+        Path source = dir.resolve("blocklist.txt");
+        Files.write(source, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return Blocklist.open(LOGGER, source, dir.resolve("blocklist.txt.idx"), false);
+    }
+
+    private static InetAddress ip(String s) throws IOException {
+        return InetAddress.getByName(s);
+    }
+
+    @Test
+    void lookup() throws IOException {
+        try (Blocklist b = load(
+                "# comment",
+                "203.0.113.7",
+                "198.51.100.0/24",
+                "198.51.101.0/24  # merged with the previous line",
+                "10.0.0.0/8",
+                "255.255.255.255",
+                "::ffff:192.0.2.0/120",
+                "2001:db8:1::/48",
+                "2001:db8::/32",
+                "2400:cb00::1",
+                "not an address",
+                "1.2.3.4/33")) {
+            assertTrue(b.contains(ip("203.0.113.7")));
+            assertFalse(b.contains(ip("203.0.113.8")));
+            assertTrue(b.contains(ip("198.51.100.1")));
+            assertTrue(b.contains(ip("198.51.101.255")));
+            assertFalse(b.contains(ip("198.51.102.0")));
+            assertTrue(b.contains(ip("10.200.3.4")));
+            assertFalse(b.contains(ip("11.0.0.0")));
+            assertTrue(b.contains(ip("255.255.255.255")));
+            assertTrue(b.contains(ip("192.0.2.77")));
+            assertTrue(b.contains(ip("2001:db8:ffff::1")));
+            assertFalse(b.contains(ip("2001:db9::1")));
+            assertTrue(b.contains(ip("2400:cb00::1")));
+            assertFalse(b.contains(ip("2400:cb00::2")));
+            assertFalse(b.contains(ip("127.0.0.1")));
+        }
+    }
+
+    @Test
+    void randomRanges() throws IOException {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>();
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            long addr = random.nextInt() & 0xFFFFFFFFL;
+            int prefix = 8 + random.nextInt(25);
+            long mask = (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+            long start = addr & mask;
+            ranges.add(new long[]{start, start | (~mask & 0xFFFFFFFFL)});
+            lines.add(((start >>> 24) & 0xFF) + "." + ((start >>> 16) & 0xFF) + "." + ((start >>> 8) & 0xFF) + "."
+                    + (start & 0xFF) + "/" + prefix);
+        }
+        try (Blocklist b = load(lines.toArray(new String[0]))) {
+            for (int i = 0; i < 20000; i++) {
+                long addr = random.nextInt() & 0xFFFFFFFFL;
+                if (i % 2 == 0) {
+                    long[] r = ranges.get(random.nextInt(ranges.size()));
+                    addr = r[0] + (long) (random.nextDouble() * (r[1] - r[0]));
+                }
+                boolean expected = false;
+                for (long[] r : ranges) {
+                    if (addr >= r[0] && addr <= r[1]) {
+                        expected = true;
+                        break;
+                    }
+                }
+                byte[] bytes = {(byte) (addr >>> 24), (byte) (addr >>> 16), (byte) (addr >>> 8), (byte) addr};
+                assertEquals(expected, b.contains(InetAddress.getByAddress(bytes)), "address " + addr);
+            }
+        }
+    }
+
+    @Test
+    void inspector() throws IOException {
+        Path source = dir.resolve("blocklist.txt");
+        Files.write(source, Arrays.asList("203.0.113.0/24"), StandardCharsets.UTF_8);
+        DetectorConfig previous = DetectorConfig.config;
+        try {
+            Path config = dir.resolve("config.conf");
+            Files.write(config, Arrays.asList("blocklist.path=blocklist.txt", "blocklist.check-interval=0"),
+                    StandardCharsets.UTF_8);
+            DetectorConfig.config = DetectorConfig.load(config);
+            Blocklist.start(LOGGER, dir);
+
+            EmbeddedChannel blocked = new EmbeddedChannel();
+            blocked.pipeline().addLast("haproxy-decoder", new ChannelInboundHandlerAdapter());
+            BlocklistInspector.install(blocked.pipeline(), "haproxy-decoder");
+            HAProxyMessage message = decode("203.0.113.9");
+            assertFalse(blocked.writeInbound(message));
+            assertFalse(blocked.isOpen());
+            assertEquals(0, message.refCnt());
+
+            EmbeddedChannel allowed = new EmbeddedChannel();
+            allowed.pipeline().addLast("haproxy-decoder", new ChannelInboundHandlerAdapter());
+            BlocklistInspector.install(allowed.pipeline(), "haproxy-decoder");
+            assertTrue(allowed.writeInbound(decode("198.51.100.9")));
+            assertNull(allowed.pipeline().get(BlocklistInspector.class));
+            assertTrue(allowed.finishAndReleaseAll());
+        } finally {
+            Blocklist.stop();
+            DetectorConfig.config = previous;
+        }
+    }
+
+    private static HAProxyMessage decode(String source) {
+        EmbeddedChannel decoder = new EmbeddedChannel(new HAProxyMessageDecoder());
+        decoder.writeInbound(Unpooled.copiedBuffer("PROXY TCP4 " + source + " 10.0.0.1 40000 25565\r\n",
+                StandardCharsets.US_ASCII));
+        return decoder.readInbound();
+    }
+}
@@ -0,0 +1,38 @@
+package net.andylizi.haproxydetector;
+
+import java.util.function.IntSupplier;
+
+import io.netty.buffer.ByteBuf;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 单次 CRC32C 校验的耗时，默认不运行：{@code mvn test -Pbenchmark}。
+ */
+@Tag("benchmark")
+class Crc32cBenchmark {
+    private static final int ITERATIONS = 2_000_000;
+
+    @Test
+    void verify() {
+        ByteBuf header = ProxyChecksumVerifierTest.header(true, false);
+        try {
+            System.out.println("CRC32C 实现：" + (Crc32c.isIntrinsic() ? "JDK" : "查表"));
+            int length = header.readableBytes();
+            measure("verify", () -> ProxyChecksumVerifier.verify(header));
+            measure("jdk/" + length + "B", () -> Crc32c.checksum(header, 0, length));
+            measure("table/" + length + "B", () -> Crc32c.checksumTable(header, 0, length));
+        } finally {
+            header.release();
+        }
+    }
+
+    private static void measure(String name, IntSupplier task) {
+        int sink = 0;
+        for (int i = 0; i < ITERATIONS; i++) sink += task.getAsInt(); // warm-up
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) sink += task.getAsInt();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-12s %6.1f ns/op (%d)%n", name, (double) elapsed / ITERATIONS, sink & 1);
+    }
+}
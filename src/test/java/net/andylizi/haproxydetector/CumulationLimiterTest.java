@@ -0,0 +1,142 @@
+package net.andylizi.haproxydetector;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CumulationLimiterTest {
+    private static final byte[] V2_SIGNATURE = {
+            0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A
+    };
+
+    /** 签名加上最大的声明长度，随后不再发送完整的协议头 */
+    private static ByteBuf stalledHeader() {
+        return Unpooled.buffer().writeBytes(V2_SIGNATURE).writeByte(0x21).writeByte(0x11).writeShort(0xFFFF);
+    }
+
+    @Test
+    void channelLimit() {
+        long before = CumulationLimiter.getBufferedBytes();
+        EmbeddedChannel ch = new EmbeddedChannel(new CumulationLimiter(1024, 0), new HAProxyMessageDecoder());
+        ch.writeInbound(stalledHeader());
+        ch.writeInbound(Unpooled.wrappedBuffer(new byte[1000]));
+        assertTrue(ch.isOpen());
+        assertEquals(before + 1016, CumulationLimiter.getBufferedBytes());
+
+        ByteBuf last = Unpooled.wrappedBuffer(new byte[100]);
+        ch.writeInbound(last);
+        assertFalse(ch.isOpen());
+        assertEquals(0, last.refCnt());
+        assertEquals(before, CumulationLimiter.getBufferedBytes());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void globalLimit() {
+        long before = CumulationLimiter.getBufferedBytes();
+        EmbeddedChannel first = new EmbeddedChannel(new CumulationLimiter(0, before + 40), new HAProxyMessageDecoder());
+        EmbeddedChannel second = new EmbeddedChannel(new CumulationLimiter(0, before + 40), new HAProxyMessageDecoder());
+        first.writeInbound(stalledHeader());
+        second.writeInbound(stalledHeader());
+        assertTrue(first.isOpen());
+        second.writeInbound(Unpooled.wrappedBuffer(new byte[16]));
+        assertFalse(second.isOpen());
+        assertTrue(first.isOpen());
+
+        // the closed channel gave its share back
+        first.writeInbound(Unpooled.wrappedBuffer(new byte[16]));
+        assertTrue(first.isOpen());
+        first.finishAndReleaseAll();
+        second.finishAndReleaseAll();
+        assertEquals(before, CumulationLimiter.getBufferedBytes());
+    }
+
+    @Test
+    void countedPerThread() throws Exception {
+        long before = CumulationLimiter.getBufferedBytes();
+        // stands in for an event loop, which owns its channels
+        DefaultEventExecutor loop = new DefaultEventExecutor(new DefaultThreadFactory("limiter-test"));
+        try {
+            EmbeddedChannel ch = loop.submit(() -> {
+                EmbeddedChannel c = new EmbeddedChannel(new CumulationLimiter(0, 1 << 20), new HAProxyMessageDecoder());
+                c.writeInbound(stalledHeader());
+                return c;
+            }).get();
+            // not flushed yet, still visible to other threads
+            assertEquals(before + 16, CumulationLimiter.getBufferedBytes());
+
+            // crossing the flush threshold moves this thread's share into the shared total
+            EmbeddedChannel big = new EmbeddedChannel(new CumulationLimiter(0, 1 << 20), new HAProxyMessageDecoder());
+            big.writeInbound(stalledHeader());
+            // still short of the 65551 bytes the header declares
+            big.writeInbound(Unpooled.wrappedBuffer(new byte[CumulationLimiter.FLUSH_BYTES - 16]));
+            assertTrue(big.isOpen());
+            assertEquals(before + 16 + CumulationLimiter.FLUSH_BYTES, CumulationLimiter.getBufferedBytes());
+            big.finishAndReleaseAll();
+            loop.submit(ch::finishAndReleaseAll).get();
+            assertEquals(before, CumulationLimiter.getBufferedBytes());
+        } finally {
+            loop.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+    }
+
+    @Test
+    void retiredWithThread() throws Exception {
+        long before = CumulationLimiter.getBufferedBytes();
+        int threads = CumulationLimiter.pending.size();
+
+        // an event loop that shuts down with a connection still pending
+        DefaultEventExecutor loop = new DefaultEventExecutor(new DefaultThreadFactory("limiter-test"));
+        EmbeddedChannel ch = loop.submit(() -> {
+            EmbeddedChannel c = new EmbeddedChannel(new CumulationLimiter(0, 1 << 20), new HAProxyMessageDecoder());
+            c.writeInbound(stalledHeader());
+            return c;
+        }).get();
+        loop.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+        // a plain thread, which never removes its thread-locals
+        Thread plain = new Thread(() -> {
+            EmbeddedChannel c = new EmbeddedChannel(new CumulationLimiter(0, 1 << 20), new HAProxyMessageDecoder());
+            c.writeInbound(stalledHeader());
+            c.finishAndReleaseAll();
+        });
+        plain.start();
+        plain.join();
+
+        // the pending connection is still counted, but neither thread keeps a counter
+        assertEquals(before + 16, CumulationLimiter.getBufferedBytes());
+        assertEquals(threads, CumulationLimiter.pending.size());
+
+        // released elsewhere, so the main thread's counter isn't left negative for later tests
+        Thread cleanup = new DefaultThreadFactory("limiter-test").newThread(ch::finishAndReleaseAll);
+        cleanup.start();
+        cleanup.join();
+        assertEquals(before, CumulationLimiter.getBufferedBytes());
+        assertEquals(threads, CumulationLimiter.pending.size());
+    }
+
+    @Test
+    void removedOnceDecoded() {
+        long before = CumulationLimiter.getBufferedBytes();
+        EmbeddedChannel ch = new EmbeddedChannel(new CumulationLimiter(1024, 0), new HAProxyMessageDecoder());
+        ch.writeInbound(ProxyChecksumVerifierTest.header(false, false));
+        HAProxyMessage message = ch.readInbound();
+        assertNotNull(message);
+        message.release();
+        assertNull(ch.pipeline().get(CumulationLimiter.class));
+        assertEquals(before, CumulationLimiter.getBufferedBytes());
+
+        // game traffic is no longer counted against the limit
+        ch.writeInbound(Unpooled.wrappedBuffer(new byte[4096]));
+        assertTrue(ch.isOpen());
+        ch.finishAndReleaseAll();
+    }
+}
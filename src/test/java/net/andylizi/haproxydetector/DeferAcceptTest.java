@@ -0,0 +1,93 @@
+package net.andylizi.haproxydetector;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeferAcceptTest {
+    private static final byte[] HANDSHAKE = {0x10, 0x00, (byte) 0xF9, 0x05, 0x09, 'l', 'o', 'c', 'a', 'l', 'h', 'o',
+            's', 't', 0x63, (byte) 0xDD, 0x01};
+    // v2 signature, PROXY over TCP4, then a length field promising far more than will ever arrive
+    private static final byte[] V2_PREFIX = {0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A,
+            0x21, 0x11, (byte) 0xFF, (byte) 0xF0};
+
+    private final DetectorConfig previousConfig = DetectorConfig.config;
+
+    @AfterEach
+    void restore() {
+        DetectorConfig.config = previousConfig;
+    }
+
+    private static void configure(String... pairs) {
+        Properties props = new Properties();
+        for (int i = 0; i < pairs.length; i += 2) {
+            props.setProperty(pairs[i], pairs[i + 1]);
+        }
+        DetectorConfig.config = new DetectorConfig(props);
+    }
+
+    private static EmbeddedChannel channel() {
+        EmbeddedChannel ch = new EmbeddedChannel();
+        ch.freezeTime();
+        ch.pipeline().addLast("haproxy-detector", new HAProxyDetectorHandler(null, null, null));
+        return ch;
+    }
+
+    @Test
+    void deadlineFollowsDeferAccept() {
+        configure("detection.defer-accept", "5");
+        assertEquals(5, DetectorConfig.config.getDetectionDeadlineSeconds());
+        configure("detection.defer-accept", "5", "detection.deadline", "2");
+        assertEquals(2, DetectorConfig.config.getDetectionDeadlineSeconds());
+        configure();
+        assertEquals(0, DetectorConfig.config.getDetectionDeadlineSeconds());
+    }
+
+    @Test
+    void idleConnectionClosed() {
+        configure("detection.deadline", "3");
+        EmbeddedChannel ch = channel();
+        ch.advanceTimeBy(2, TimeUnit.SECONDS);
+        ch.runScheduledPendingTasks();
+        assertTrue(ch.isOpen());
+        ch.advanceTimeBy(1, TimeUnit.SECONDS);
+        ch.runScheduledPendingTasks();
+        assertFalse(ch.isOpen());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void stalledHeaderClosed() {
+        configure("detection.deadline", "3");
+        EmbeddedChannel ch = channel();
+        ch.writeInbound(Unpooled.wrappedBuffer(V2_PREFIX));
+        assertNull(ch.pipeline().get("haproxy-detector"));
+        assertNotNull(ch.pipeline().get(HAProxyMessageDecoder.class));
+        ch.advanceTimeBy(2, TimeUnit.SECONDS);
+        ch.runScheduledPendingTasks();
+        assertTrue(ch.isOpen());
+        ch.advanceTimeBy(1, TimeUnit.SECONDS);
+        ch.runScheduledPendingTasks();
+        assertFalse(ch.isOpen());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void decidedConnectionKept() {
+        configure("detection.deadline", "3");
+        EmbeddedChannel ch = channel();
+        ch.writeInbound(Unpooled.wrappedBuffer(HANDSHAKE));
+        assertNull(ch.pipeline().get("haproxy-detector"));
+        ch.advanceTimeBy(10, TimeUnit.SECONDS);
+        ch.runScheduledPendingTasks();
+        assertTrue(ch.isOpen());
+        ch.finishAndReleaseAll();
+    }
+}
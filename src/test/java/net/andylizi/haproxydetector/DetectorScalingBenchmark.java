@@ -0,0 +1,196 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 检测与白名单路径随事件循环数的扩展性，默认不运行：{@code mvn test -Pbenchmark}。
+ * <p>
+ * 每个线程模拟一个事件循环，在自己的 {@link EmbeddedChannel} 上轮流推送直连、PROXY v1、PROXY v2
+ * 与来自不断变化地址的被拒绝连接。对每个线程数报告总吞吐量、相对单线程的扩展效率、单连接延迟分位与线程间吞吐量的差异。
+ * <p>
+ * 对照组用同样的管线但以一个只丢弃数据的处理器代替检测器，它的扩展效率反映硬件、分配与 GC 的上限；
+ * “争用指数”为检测器效率与对照组效率之比，明显低于 1 说明检测路径上仍有线程间共享的热点状态（争用或伪共享）。
+ * 线程数与每轮时长可用 {@code -Dbenchmark.threads=1,2,4,8,16,32} 与 {@code -Dbenchmark.seconds=3} 调整。
+ */
+@Tag("benchmark")
+class DetectorScalingBenchmark {
+    private static final byte[] HANDSHAKE = {
+            0x10, 0x00, (byte) 0xF9, 0x05, 0x09, 'l', 'o', 'c', 'a', 'l', 'h', 'o', 's', 't', 0x63, (byte) 0xDD, 0x01
+    };
+    private static final byte[] V1 = concat(
+            "PROXY TCP4 203.0.113.9 10.0.0.1 40000 25565\r\n".getBytes(StandardCharsets.US_ASCII), HANDSHAKE);
+    private static final byte[] V2 = concat(new byte[]{
+            0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A,
+            0x21, 0x11, 0x00, 0x0C,
+            (byte) 203, 0, 113, 9, 10, 0, 0, 1, (byte) 0x9C, 0x40, 0x63, (byte) 0xDD
+    }, HANDSHAKE);
+    private static final InetSocketAddress PROXY = new InetSocketAddress("10.0.0.1", 40000);
+    private static final InetSocketAddress PLAYER = new InetSocketAddress("198.51.100.1", 40000);
+    /** rejected connections come from many addresses, as during a scan */
+    private static final InetSocketAddress[] STRANGERS = new InetSocketAddress[256];
+
+    static {
+        for (int i = 0; i < STRANGERS.length; i++) {
+            STRANGERS[i] = new InetSocketAddress("203.0.113." + i, 40000);
+        }
+    }
+
+    /** every record is dropped, so only the detector's own work is measured */
+    private static final Logger LOGGER = Logger.getLogger("DetectorScalingBenchmark");
+
+    @Test
+    void scaling() throws InterruptedException {
+        int[] threadCounts = Arrays.stream(System.getProperty("benchmark.threads", "1,2,4,8,16,32").split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        long nanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("benchmark.seconds", 3));
+
+        ProxyWhitelist previousWhitelist = ProxyWhitelist.whitelist;
+        Level previousLevel = LOGGER.getLevel();
+        ProxyWhitelist.whitelist = new ProxyWhitelist(Arrays.asList(new CIDR(PROXY.getAddress(), 8)));
+        LOGGER.setLevel(Level.OFF);
+        try {
+            System.out.println("可用处理器：" + Runtime.getRuntime().availableProcessors());
+            // warm-up, results discarded
+            run(Math.max(threadCounts[0], 1), nanos, true);
+            run(Math.max(threadCounts[0], 1), nanos, false);
+
+            System.out.println("线程  吞吐量(连接/秒)  效率   p50/p99/p99.9(μs)     线程差异  对照效率  争用指数");
+            double base = 0, controlBase = 0;
+            for (int threads : threadCounts) {
+                Result control = run(threads, nanos, false);
+                Result detector = run(threads, nanos, true);
+                if (base == 0) {
+                    base = detector.throughput / threads;
+                    controlBase = control.throughput / threads;
+                }
+                double efficiency = detector.throughput / (base * threads);
+                double controlEfficiency = control.throughput / (controlBase * threads);
+                System.out.printf("%4d  %14.0f  %5.2f  %6.1f/%6.1f/%7.1f  %7.2f  %8.2f  %8.2f%n",
+                        threads, detector.throughput, efficiency,
+                        micros(detector.latency.getValueAtPercentile(0.5)),
+                        micros(detector.latency.getValueAtPercentile(0.99)),
+                        micros(detector.latency.getValueAtPercentile(0.999)),
+                        detector.spread, controlEfficiency, efficiency / controlEfficiency);
+            }
+        } finally {
+            ProxyWhitelist.whitelist = previousWhitelist;
+            LOGGER.setLevel(previousLevel);
+        }
+    }
+
+    private static Result run(int threads, long nanos, boolean detector) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        long[] counts = new long[threads];
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        // FastThreadLocalThreads, like Netty's event loops
+        ThreadFactory factory = new DefaultThreadFactory("bench-loop");
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            factory.newThread(() -> {
+                try {
+                    ready.countDown();
+                    go.await();
+                    long deadline = System.nanoTime() + nanos;
+                    long n = 0;
+                    // no shared writes while running, each thread publishes its count once at the end
+                    while ((n & 0xFF) != 0 || System.nanoTime() - deadline < 0) {
+                        long start = System.nanoTime();
+                        connect(detector, (int) n + index);
+                        latency.record(System.nanoTime() - start);
+                        n++;
+                    }
+                    counts[index] = n;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        long total = 0, min = Long.MAX_VALUE, max = 0;
+        for (long count : counts) {
+            total += count;
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        return new Result(total * 1e9 / elapsed, latency.snapshot(), min == 0 ? 0 : (double) max / min);
+    }
+
+    private static void connect(boolean detector, int i) {
+        SocketAddress remote;
+        byte[] input;
+        switch (i & 3) {
+            case 0: remote = PLAYER; input = HANDSHAKE; break;
+            case 1: remote = PROXY; input = V1; break;
+            case 2: remote = PROXY; input = V2; break;
+            default: remote = STRANGERS[(i >>> 2) & 0xFF]; input = V2; break;
+        }
+        EmbeddedChannel ch = new EmbeddedChannel() {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return remote;
+            }
+        };
+        ChannelHandler handler = detector ? new HAProxyDetectorHandler(LOGGER, null) : new Sink();
+        ch.pipeline().addLast("haproxy-detector", handler);
+        ch.pipeline().addLast("packet_handler", new Sink());
+        ch.writeInbound(Unpooled.wrappedBuffer(input));
+        ch.finishAndReleaseAll();
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static final class Sink extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private static final class Result {
+        final double throughput;
+        final LatencyHistogram.Snapshot latency;
+        /** busiest thread over the slowest one */
+        final double spread;
+
+        Result(double throughput, LatencyHistogram.Snapshot latency, double spread) {
+            this.throughput = throughput;
+            this.latency = latency;
+            this.spread = spread;
+        }
+    }
+}
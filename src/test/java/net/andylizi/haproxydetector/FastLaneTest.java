@@ -0,0 +1,131 @@
+package net.andylizi.haproxydetector;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FastLaneTest {
+    private static final InetSocketAddress PLAYER = new InetSocketAddress("198.51.100.7", 50000);
+
+    private final DetectorConfig previousConfig = DetectorConfig.config;
+
+    @AfterEach
+    void restore() {
+        FastLane.stop();
+        Blocklist.stop();
+        SharedBanTable.stop();
+        RealAddressService.clear();
+        DetectorConfig.config = previousConfig;
+    }
+
+    private static void configure(String... pairs) {
+        Properties props = new Properties();
+        for (int i = 0; i < pairs.length; i += 2) {
+            props.setProperty(pairs[i], pairs[i + 1]);
+        }
+        DetectorConfig.config = new DetectorConfig(props);
+        FastLane.start();
+    }
+
+    @Test
+    void expiry() {
+        FastLane lane = new FastLane(1024, 30);
+        long key = SharedBanTable.keyOf(PLAYER.getAddress());
+        assertFalse(lane.get(key, 0));
+        lane.put(key, 0);
+        assertTrue(lane.get(key, 29));
+        assertFalse(lane.get(key, 30));
+        lane.put(key, 20);
+        assertTrue(lane.get(key, 49));
+        assertEquals(1, lane.size(20));
+    }
+
+    @Test
+    void bounded() throws UnknownHostException {
+        FastLane lane = new FastLane(FastLane.MAX_PROBES, 30);
+        for (int i = 0; i < 100; i++) {
+            InetAddress address = InetAddress.getByAddress(new byte[]{(byte) 198, 51, 100, (byte) i});
+            lane.put(SharedBanTable.keyOf(address), i);
+        }
+        assertEquals(FastLane.MAX_PROBES, lane.size(99));
+        // the most recent logins survive
+        assertTrue(lane.get(SharedBanTable.keyOf(InetAddress.getByAddress(new byte[]{(byte) 198, 51, 100, 99})), 99));
+        assertFalse(lane.get(SharedBanTable.keyOf(InetAddress.getByAddress(new byte[]{(byte) 198, 51, 100, 0})), 99));
+    }
+
+    @Test
+    void recordedOnProxiedLogin() {
+        configure();
+        EmbeddedChannel ch = new EmbeddedChannel();
+        RealAddressService.record(ch, new ProxiedConnection(new InetSocketAddress("10.0.0.1", 40000), PLAYER, 2, false));
+        assertFalse(FastLane.contains(PLAYER));
+        RealAddressService.bind(UUID.randomUUID(), ch);
+        assertTrue(FastLane.contains(PLAYER));
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    void skipsFloodGuard() {
+        configure("flood-guard.direct-rate", "1");
+        assertNotNull(FloodGuard.of(channel(PLAYER)));
+        FastLane.record(PLAYER);
+        assertNull(FloodGuard.of(channel(PLAYER)));
+        assertNotNull(FloodGuard.of(channel(new InetSocketAddress("198.51.100.8", 50000))));
+    }
+
+    @Test
+    void skipsRateLimit(@TempDir Path dir) throws IOException {
+        configure("shared-table.path", "bans.dat", "shared-table.slots", "1024", "shared-table.rate-limit", "1");
+        SharedBanTable.start(Logger.getLogger("FastLaneTest"), dir);
+        InetSocketAddress stranger = new InetSocketAddress("198.51.100.8", 50000);
+        assertTrue(SharedBanTable.admit(channel(stranger)));
+        assertFalse(SharedBanTable.admit(channel(stranger)));
+
+        FastLane.record(PLAYER);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(SharedBanTable.admit(channel(PLAYER)));
+        }
+    }
+
+    @Test
+    void keepsBlocklist(@TempDir Path dir) throws IOException {
+        Files.write(dir.resolve("blocklist.txt"), Arrays.asList("198.51.100.0/24"), StandardCharsets.UTF_8);
+        configure("blocklist.path", "blocklist.txt", "blocklist.check-interval", "0");
+        Blocklist.start(Logger.getLogger("FastLaneTest"), dir);
+        FastLane.record(PLAYER);
+        assertTrue(Blocklist.check(PLAYER.getAddress()));
+    }
+
+    @Test
+    void disabled() {
+        configure("fast-lane.ttl", "0");
+        FastLane.record(PLAYER);
+        assertFalse(FastLane.contains(PLAYER));
+        assertTrue(FastLane.report().isEmpty());
+    }
+
+    private static EmbeddedChannel channel(SocketAddress remote) {
+        return new EmbeddedChannel() {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return remote;
+            }
+        };
+    }
+}
@@ -0,0 +1,124 @@
+package net.andylizi.haproxydetector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import net.andylizi.haproxydetector.trace.TraceRecord;
+import net.andylizi.haproxydetector.trace.TraceReplay;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FloodGuardTest {
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("0.0.0.0", 25565);
+    private static final long COOL_DOWN = TimeUnit.SECONDS.toNanos(10);
+    private static final byte[] HANDSHAKE = {0x10, 0x00, (byte) 0xF9, 0x05, 0x09, 'l', 'o', 'c', 'a', 'l', 'h', 'o',
+            's', 't', 0x63, (byte) 0xDD, 0x01};
+
+    private final DetectorConfig previousConfig = DetectorConfig.config;
+
+    @AfterEach
+    void restore() {
+        DetectorConfig.config = previousConfig;
+    }
+
+    @Test
+    void engageAndRecover() {
+        FloodGuard guard = new FloodGuard("测试", 5, COOL_DOWN);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertFalse(guard.recordDirect(t0));
+        }
+        // 4 per second is below the threshold
+        assertFalse(guard.recordDirect(t0 + FloodGuard.WINDOW * 2));
+
+        long t1 = t0 + FloodGuard.WINDOW * 2;
+        for (int i = 0; i < 10; i++) {
+            guard.recordDirect(t1);
+        }
+        assertTrue(guard.recordDirect(t1 + FloodGuard.WINDOW));
+        assertTrue(guard.isEngaged(t1 + FloodGuard.WINDOW + COOL_DOWN - 1));
+        assertFalse(guard.isEngaged(t1 + FloodGuard.WINDOW + COOL_DOWN));
+    }
+
+    @Test
+    void proxyPrefix() {
+        assertTrue(FloodGuard.isProxyPrefix(Unpooled.EMPTY_BUFFER));
+        assertTrue(FloodGuard.isProxyPrefix(Unpooled.copiedBuffer("PROX", StandardCharsets.US_ASCII)));
+        assertTrue(FloodGuard.isProxyPrefix(Unpooled.copiedBuffer("PROXY TCP4 ", StandardCharsets.US_ASCII)));
+        assertFalse(FloodGuard.isProxyPrefix(Unpooled.copiedBuffer("PROXI", StandardCharsets.US_ASCII)));
+        assertTrue(FloodGuard.isProxyPrefix(Unpooled.wrappedBuffer(new byte[]{0x0D, 0x0A, 0x0D})));
+        assertFalse(FloodGuard.isProxyPrefix(Unpooled.wrappedBuffer(HANDSHAKE)));
+    }
+
+    @Test
+    void detectorDropsDirectConnections() {
+        Properties props = new Properties();
+        props.setProperty("flood-guard.direct-rate", "1");
+        DetectorConfig.config = new DetectorConfig(props);
+        FloodGuard guard = DetectorConfig.config.getFloodGuard(DetectorConfig.config.getListenerPolicy(LOCAL));
+        assertNotNull(guard);
+        long t0 = System.nanoTime();
+        guard.recordDirect(t0);
+        guard.recordDirect(t0);
+        assertTrue(guard.recordDirect(t0 + FloodGuard.WINDOW));
+
+        long dropped = DetectorStats.get(DetectionOutcome.DROPPED);
+        EmbeddedChannel direct = channel();
+        direct.writeInbound(Unpooled.wrappedBuffer(HANDSHAKE));
+        assertFalse(direct.isOpen());
+        assertNull(direct.readInbound());
+        direct.finishAndReleaseAll();
+        assertEquals(dropped + 1, DetectorStats.get(DetectionOutcome.DROPPED));
+
+        // a PROXY header still gets through to the decoder
+        EmbeddedChannel proxied = channel();
+        proxied.writeInbound(Unpooled.copiedBuffer("PROXY TCP4 ", StandardCharsets.US_ASCII));
+        assertTrue(proxied.isOpen());
+        proxied.finishAndReleaseAll();
+        assertEquals(dropped + 1, DetectorStats.get(DetectionOutcome.DROPPED));
+    }
+
+    @Test
+    void replayedAsDropped() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("flood-guard.direct-rate", "1");
+        DetectorConfig.config = new DetectorConfig(props);
+        FloodGuard guard = DetectorConfig.config.getFloodGuard(DetectorConfig.config.getListenerPolicy(LOCAL));
+        long t0 = System.nanoTime();
+        guard.recordDirect(t0);
+        guard.recordDirect(t0);
+        assertTrue(guard.recordDirect(t0 + FloodGuard.WINDOW));
+
+        byte[] v1 = "PROXY TCP4 1.2.3.4 5.6.7.8 1234 25565\r\n".getBytes(StandardCharsets.US_ASCII);
+        TraceReplay.Result result = TraceReplay.replay(Arrays.asList(
+                new TraceRecord(false, new int[]{HANDSHAKE.length}, HANDSHAKE),
+                new TraceRecord(true, new int[]{v1.length}, v1)), 1);
+        assertEquals(1, result.get(DetectionOutcome.DROPPED));
+        assertEquals(1, result.get(DetectionOutcome.PROXIED));
+    }
+
+    private static EmbeddedChannel channel() {
+        EmbeddedChannel ch = new EmbeddedChannel() {
+            @Override
+            protected SocketAddress localAddress0() {
+                return LOCAL;
+            }
+
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return new InetSocketAddress("192.0.2.3", 40000);
+            }
+        };
+        ch.pipeline().addLast("haproxy-detector", new HAProxyDetectorHandler(null, null, null));
+        return ch;
+    }
+}
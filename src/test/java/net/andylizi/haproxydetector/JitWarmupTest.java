@@ -0,0 +1,71 @@
+package net.andylizi.haproxydetector;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import io.netty.channel.ChannelHandlerContext;
+import net.andylizi.haproxydetector.bungee.BungeeMain;
+import net.andylizi.haproxydetector.velocity.VelocityMain;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JitWarmupTest {
+    private static final Logger LOGGER = Logger.getLogger("JitWarmupTest");
+
+    private final DetectorConfig previousConfig = DetectorConfig.config;
+
+    @AfterEach
+    void restore() {
+        DetectorConfig.config = previousConfig;
+    }
+
+    private static void configure(boolean enabled) {
+        Properties props = new Properties();
+        props.setProperty("jit-warmup.enabled", Boolean.toString(enabled));
+        props.setProperty("jit-warmup.connections", "400");
+        props.setProperty("jit-warmup.max-millis", "60000");
+        DetectorConfig.config = new DetectorConfig(props);
+    }
+
+    @Test
+    void leavesNoTrace() {
+        configure(true);
+        AtomicInteger proxied = new AtomicInteger();
+        long[] before = DetectorStats.snapshot();
+        long buffered = CumulationLimiter.getBufferedBytes();
+
+        DetectorConfig config = DetectorConfig.config;
+
+        int connections = JitWarmup.run(LOGGER, false, ch -> ch.pipeline().addAfter("timeout",
+                "haproxy-detector", new HAProxyDetectorHandler(null, new ProxyHeaderDecoder() {
+                    @Override
+                    protected void proxied(ChannelHandlerContext ctx, ProxiedConnection connection) {
+                        assertEquals("198.51.100.7", connection.getRealAddress().getHostString());
+                        proxied.incrementAndGet();
+                    }
+                }, ListenerPolicy.of(ch).getWhitelist())));
+        assertEquals(400, connections);
+        assertSame(config, DetectorConfig.config);
+        // v1 and v2 from the whitelisted proxy, but not the stranger
+        assertEquals(200, proxied.get());
+        assertArrayEquals(before, DetectorStats.snapshot());
+        assertEquals(buffered, CumulationLimiter.getBufferedBytes());
+    }
+
+    @Test
+    void platformInjectors() {
+        configure(true);
+        assertEquals(400, JitWarmup.run(LOGGER, true, ch -> BungeeMain.injectDetector(LOGGER, ch, true, 0)));
+        assertEquals(400, JitWarmup.run(LOGGER, true, ch -> VelocityMain.injectDetector(NOPLogger.NOP_LOGGER, ch, 0)));
+    }
+
+    @Test
+    void disabled() {
+        configure(false);
+        assertEquals(0, JitWarmup.run(LOGGER, true, ch -> fail()));
+    }
+}
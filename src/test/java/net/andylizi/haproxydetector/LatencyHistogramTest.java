@@ -0,0 +1,35 @@
+package net.andylizi.haproxydetector;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void buckets() {
+        for (long v = 0; v < 1 << 20; v++) {
+            int bucket = LatencyHistogram.bucketOf(v);
+            assertTrue(v <= LatencyHistogram.upperBoundOf(bucket), "value " + v);
+            if (bucket > 0) assertTrue(v > LatencyHistogram.upperBoundOf(bucket - 1), "value " + v);
+        }
+        assertTrue(LatencyHistogram.bucketOf(Long.MAX_VALUE) < LatencyHistogram.BUCKETS);
+    }
+
+    @Test
+    void percentiles() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Thread other = new Thread(() -> histogram.record(5_000_000L));
+        other.start();
+        other.join();
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(5_000_000L, snapshot.getMax());
+        long p50 = snapshot.getValueAtPercentile(0.5);
+        assertTrue(p50 >= 500_000L && p50 <= 500_000L * 5 / 4, "p50 " + p50);
+        assertEquals(5_000_000L, snapshot.getValueAtPercentile(1.0));
+    }
+}
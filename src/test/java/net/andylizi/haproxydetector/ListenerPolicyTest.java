@@ -0,0 +1,113 @@
+package net.andylizi.haproxydetector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListenerPolicyTest {
+    @TempDir
+    Path dataDirectory;
+
+    private DetectorConfig load(String... lines) throws IOException {
+        Path path = dataDirectory.resolve("config.conf");
+        Files.write(path, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return DetectorConfig.load(path);
+    }
+
+    @Test
+    void parse() throws IOException {
+        Files.write(dataDirectory.resolve("internal.conf"), Arrays.asList("10.1.0.0/16"), StandardCharsets.UTF_8);
+        DetectorConfig config = load(
+                "listener.public.bind=*:25565",
+                "listener.public.mode=direct-only",
+                "listener.internal.bind=10.0.0.5:25577",
+                "listener.internal.mode=proxy-required",
+                "listener.internal.whitelist=internal.conf",
+                "listener.v6.bind=[::1]:25578");
+        assertEquals(3, config.getListenerPolicies().size());
+
+        ListenerPolicy policy = config.getListenerPolicy(new InetSocketAddress("0.0.0.0", 25565));
+        assertEquals("public", policy.getName());
+        assertEquals(ListenerPolicy.Mode.DIRECT_ONLY, policy.getMode());
+
+        policy = config.getListenerPolicy(new InetSocketAddress("10.0.0.5", 25577));
+        assertEquals(ListenerPolicy.Mode.PROXY_REQUIRED, policy.getMode());
+        assertTrue(ProxyWhitelist.check(policy.getWhitelist(), new InetSocketAddress("10.1.2.3", 1)));
+        assertFalse(ProxyWhitelist.check(policy.getWhitelist(), new InetSocketAddress("127.0.0.1", 1)));
+
+        assertEquals(ListenerPolicy.Mode.DETECT, config.getListenerPolicy(new InetSocketAddress("::1", 25578)).getMode());
+
+        // a wildcard bind cannot be matched by a host-specific entry
+        policy = config.getListenerPolicy(new InetSocketAddress("0.0.0.0", 25577));
+        assertEquals("default", policy.getName());
+        assertEquals(ListenerPolicy.Mode.DETECT, policy.getMode());
+    }
+
+    @Test
+    void specificHostWins() throws IOException {
+        // "any" sorts before "lan", so name order would pick the wildcard entry
+        DetectorConfig config = load(
+                "listener.any.bind=*:25565",
+                "listener.any.mode=direct-only",
+                "listener.lan.bind=10.0.0.5:25565",
+                "listener.lan.mode=proxy-required");
+        assertEquals("lan", config.getListenerPolicy(new InetSocketAddress("10.0.0.5", 25565)).getName());
+        assertEquals("any", config.getListenerPolicy(new InetSocketAddress("10.0.0.6", 25565)).getName());
+        assertEquals("any", config.getListenerPolicy(new InetSocketAddress("0.0.0.0", 25565)).getName());
+    }
+
+    @Test
+    void duplicateBind() {
+        assertThrows(IllegalArgumentException.class, () -> load(
+                "listener.a.bind=*:25565",
+                "listener.b.bind=0.0.0.0:25565"));
+    }
+
+    @Test
+    void invalidMode() {
+        assertThrows(IllegalArgumentException.class, () -> load(
+                "listener.a.bind=*:25565",
+                "listener.a.mode=sometimes"));
+    }
+
+    @Test
+    void applyWithoutDetection() {
+        ListenerPolicy directOnly = new ListenerPolicy("a", null, 25565, ListenerPolicy.Mode.DIRECT_ONLY, null);
+        ChannelInboundHandlerAdapter decoder = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        assertTrue(directOnly.applyWithoutDetection(channel, decoder));
+        assertNull(channel.pipeline().get(ChannelInboundHandlerAdapter.class));
+
+        ProxyWhitelist whitelist = new ProxyWhitelist(Arrays.asList(
+                new CIDR(new InetSocketAddress("10.0.0.1", 0).getAddress(), 32)));
+        ListenerPolicy proxyRequired = new ListenerPolicy("b", null, 25577, ListenerPolicy.Mode.PROXY_REQUIRED, whitelist);
+        EmbeddedChannel rejected = new EmbeddedChannel(decoder);
+        assertTrue(proxyRequired.applyWithoutDetection(rejected, decoder));
+        assertFalse(rejected.isOpen()); // EmbeddedChannel has no inet remote address
+
+        ChannelInboundHandlerAdapter acceptedDecoder = new ChannelInboundHandlerAdapter();
+        EmbeddedChannel accepted = new EmbeddedChannel(acceptedDecoder) {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return new InetSocketAddress("10.0.0.1", 40000);
+            }
+        };
+        assertTrue(proxyRequired.applyWithoutDetection(accepted, acceptedDecoder));
+        assertTrue(accepted.isOpen());
+        assertNotNull(accepted.pipeline().get(RealAddressRecorder.class));
+
+        ListenerPolicy detect = new ListenerPolicy("c", null, 25578, ListenerPolicy.Mode.DETECT, null);
+        assertFalse(detect.applyWithoutDetection(channel, decoder));
+    }
+}
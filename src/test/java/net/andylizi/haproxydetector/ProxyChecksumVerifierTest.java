@@ -0,0 +1,104 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyChecksumVerifierTest {
+    @Test
+    void knownVector() {
+        ByteBuf buf = Unpooled.copiedBuffer("123456789", StandardCharsets.US_ASCII);
+        assertEquals(0xE3069283, Crc32c.checksum(buf, 0, buf.readableBytes()));
+        assertEquals(0xE3069283, Crc32c.checksumTable(buf, 0, buf.readableBytes()));
+    }
+
+    @Test
+    void jdkMatchesTable() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            byte[] bytes = new byte[random.nextInt(600)];
+            random.nextBytes(bytes);
+            ByteBuf heap = Unpooled.wrappedBuffer(bytes);
+            ByteBuf direct = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+            CompositeByteBuf composite = Unpooled.compositeBuffer();
+            int split = bytes.length / 2;
+            composite.addComponent(true, Unpooled.wrappedBuffer(bytes, 0, split));
+            composite.addComponent(true, Unpooled.directBuffer().writeBytes(bytes, split, bytes.length - split));
+
+            int expected = Crc32c.checksumTable(heap, 0, bytes.length);
+            assertEquals(expected, Crc32c.checksum(heap, 0, bytes.length));
+            assertEquals(expected, Crc32c.checksum(direct, 0, bytes.length));
+            assertEquals(expected, Crc32c.checksum(composite, 0, bytes.length));
+            direct.release();
+            composite.release();
+        }
+    }
+
+    @Test
+    void verify() {
+        ByteBuf valid = header(true, false);
+        assertEquals(ProxyChecksumVerifier.VALID, ProxyChecksumVerifier.verify(valid));
+        assertEquals(0, valid.readerIndex());
+        valid.release();
+
+        ByteBuf corrupted = header(true, true);
+        assertEquals(ProxyChecksumVerifier.INVALID, ProxyChecksumVerifier.verify(corrupted));
+        corrupted.release();
+
+        ByteBuf absent = header(false, false);
+        assertEquals(ProxyChecksumVerifier.ABSENT, ProxyChecksumVerifier.verify(absent));
+        absent.release();
+
+        ByteBuf partial = header(true, false);
+        assertEquals(ProxyChecksumVerifier.NEEDS_MORE_DATA,
+                ProxyChecksumVerifier.verify(partial.slice(0, partial.readableBytes() - 1)));
+        partial.release();
+    }
+
+    @Test
+    void handler() {
+        EmbeddedChannel valid = new EmbeddedChannel(new ProxyChecksumVerifier(), new HAProxyMessageDecoder());
+        ByteBuf header = header(true, false);
+        assertFalse(valid.writeInbound(header.readRetainedSlice(10)));
+        assertTrue(valid.writeInbound(header));
+        assertNull(valid.pipeline().get(ProxyChecksumVerifier.class));
+        HAProxyMessage message = valid.readInbound();
+        assertEquals("203.0.113.9", message.sourceAddress());
+        message.release();
+        assertFalse(valid.finishAndReleaseAll());
+
+        EmbeddedChannel corrupted = new EmbeddedChannel(new ProxyChecksumVerifier(), new HAProxyMessageDecoder());
+        assertFalse(corrupted.writeInbound(header(true, true)));
+        assertFalse(corrupted.isOpen());
+    }
+
+    /** 带一个 NOOP TLV，可选附带 CRC32C TLV 的 v2 协议头 */
+    static ByteBuf header(boolean crc, boolean corrupt) {
+        ByteBuf buf = ProxyHeaderEmitter.encode(ByteBufAllocator.DEFAULT,
+                new InetSocketAddress("203.0.113.9", 40000), new InetSocketAddress("10.0.0.1", 25565));
+        buf.writeByte(0x04).writeShort(2).writeShort(0); // PP2_TYPE_NOOP
+        int crcValue = 0;
+        if (crc) {
+            buf.writeByte(0x03).writeShort(4);
+            crcValue = buf.writerIndex();
+            buf.writeInt(0);
+        }
+        buf.setShort(14, buf.readableBytes() - 16);
+        if (crc) {
+            int sum = Crc32c.checksum(buf, 0, buf.readableBytes());
+            buf.setInt(crcValue, corrupt ? ~sum : sum);
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,98 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyHeaderEmitterTest {
+    private static HAProxyMessage roundTrip(InetSocketAddress source, InetSocketAddress destination) {
+        ByteBuf header = ProxyHeaderEmitter.encode(ByteBufAllocator.DEFAULT, source, destination);
+        EmbeddedChannel channel = new EmbeddedChannel(new HAProxyMessageDecoder());
+        assertTrue(channel.writeInbound(header));
+        HAProxyMessage message = channel.readInbound();
+        assertFalse(channel.finish());
+        return message;
+    }
+
+    @Test
+    void ipv4() {
+        HAProxyMessage message = roundTrip(new InetSocketAddress("203.0.113.7", 51234),
+                new InetSocketAddress("10.0.0.2", 25565));
+        try {
+            assertEquals(HAProxyProtocolVersion.V2, message.protocolVersion());
+            assertEquals(HAProxyCommand.PROXY, message.command());
+            assertEquals(HAProxyProxiedProtocol.TCP4, message.proxiedProtocol());
+            assertEquals("203.0.113.7", message.sourceAddress());
+            assertEquals(51234, message.sourcePort());
+            assertEquals("10.0.0.2", message.destinationAddress());
+            assertEquals(25565, message.destinationPort());
+        } finally {
+            message.release();
+        }
+    }
+
+    @Test
+    void mixedFamilies() {
+        HAProxyMessage message = roundTrip(new InetSocketAddress("203.0.113.7", 51234),
+                new InetSocketAddress("2001:db8::1", 25565));
+        try {
+            assertEquals(HAProxyProxiedProtocol.TCP6, message.proxiedProtocol());
+            assertEquals(new InetSocketAddress("::ffff:203.0.113.7", 0).getAddress(),
+                    new InetSocketAddress(message.sourceAddress(), 0).getAddress());
+            assertEquals(new InetSocketAddress("2001:db8::1", 0).getAddress(),
+                    new InetSocketAddress(message.destinationAddress(), 0).getAddress());
+        } finally {
+            message.release();
+        }
+    }
+
+    @Test
+    void prependsOnce() {
+        InetSocketAddress client = new InetSocketAddress("198.51.100.1", 40000);
+        InetSocketAddress backend = new InetSocketAddress("10.0.0.3", 25566);
+        EmbeddedChannel channel = new EmbeddedChannel() {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return backend;
+            }
+        };
+        channel.pipeline().addFirst(new ProxyHeaderEmitter() {
+            @Override
+            protected InetSocketAddress clientAddress(ChannelHandlerContext ctx) {
+                return client;
+            }
+        });
+
+        assertTrue(channel.writeOutbound(Unpooled.wrappedBuffer(new byte[]{1}), Unpooled.wrappedBuffer(new byte[]{2})));
+        assertNull(channel.pipeline().get(ProxyHeaderEmitter.class));
+
+        ByteBuf header = channel.readOutbound();
+        EmbeddedChannel decoder = new EmbeddedChannel(new HAProxyMessageDecoder());
+        assertTrue(decoder.writeInbound(header));
+        HAProxyMessage message = decoder.readInbound();
+        assertEquals("198.51.100.1", message.sourceAddress());
+        assertEquals(25566, message.destinationPort());
+        message.release();
+        assertFalse(decoder.finish());
+
+        for (int expected = 1; expected <= 2; expected++) {
+            ByteBuf payload = channel.readOutbound();
+            assertEquals(expected, payload.readByte());
+            payload.release();
+        }
+        assertFalse(channel.finish());
+    }
+}
@@ -0,0 +1,257 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyHeaderParserTest {
+    private static final byte[] V2_SIGNATURE = {
+            0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A
+    };
+
+    @Test
+    void v1() throws UnknownHostException {
+        ProxyHeader header = new ProxyHeader();
+        ByteBuf buf = Unpooled.copiedBuffer("PROXY TCP6 2001:db8::1:2 ::ffff:10.0.0.1 40000 25565\r\nrest",
+                StandardCharsets.US_ASCII);
+        assertEquals(buf.readableBytes() - 4, ProxyHeaderParser.parse(buf, header));
+        assertEquals(1, header.getVersion());
+        assertEquals(new InetSocketAddress(InetAddress.getByName("2001:db8::1:2"), 40000), header.sourceAddress());
+        assertEquals(new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 25565), header.destinationAddress());
+
+        ByteBuf partial = Unpooled.copiedBuffer("PROXY TCP4 1.2.3.4", StandardCharsets.US_ASCII);
+        assertEquals(ProxyHeaderParser.NEEDS_MORE_DATA, ProxyHeaderParser.parse(partial, header));
+    }
+
+    @Test
+    void v2() {
+        ProxyHeader header = new ProxyHeader();
+        ByteBuf buf = ProxyChecksumVerifierTest.header(true, false);
+        assertEquals(buf.readableBytes(), ProxyHeaderParser.parse(buf, header));
+        assertEquals(2, header.getVersion());
+        assertTrue(header.hasTlvs());
+        assertEquals(new InetSocketAddress("203.0.113.9", 40000), header.sourceAddress());
+        assertEquals(new InetSocketAddress("10.0.0.1", 25565), header.destinationAddress());
+        buf.release();
+    }
+
+    @Test
+    void decoder() {
+        InetSocketAddress[] applied = new InetSocketAddress[1];
+        EmbeddedChannel ch = new EmbeddedChannel(new ProxyHeaderDecoder() {
+            @Override
+            protected void proxied(ChannelHandlerContext ctx, ProxiedConnection connection) {
+                applied[0] = connection.getRealAddress();
+            }
+        });
+        ch.writeInbound(Unpooled.copiedBuffer("PROXY TCP6 2001:db8::9 ::1 40000 25565\r\nhello",
+                StandardCharsets.US_ASCII));
+        assertEquals(new InetSocketAddress("2001:db8::9", 40000), applied[0]);
+        assertNull(ch.pipeline().get(ProxyHeaderDecoder.class));
+        ByteBuf rest = ch.readInbound();
+        assertEquals("hello", rest.toString(StandardCharsets.US_ASCII));
+        rest.release();
+        assertFalse(ch.finish());
+
+        EmbeddedChannel invalid = new EmbeddedChannel(new ProxyHeaderDecoder() {
+            @Override
+            protected void proxied(ChannelHandlerContext ctx, ProxiedConnection connection) {
+                fail();
+            }
+        });
+        invalid.writeInbound(Unpooled.copiedBuffer("PROXY TCP4 1.2.3 4.5.6.7 1 2\r\n", StandardCharsets.US_ASCII));
+        assertFalse(invalid.isOpen());
+    }
+
+    /**
+     * 随机生成并变异协议头，与 Netty 的解码结果逐一比较。
+     */
+    @Test
+    void fuzzAgainstNetty() throws UnknownHostException {
+        Random random = new Random(20261019);
+        ProxyHeader header = new ProxyHeader();
+        for (int i = 0; i < 50_000; i++) {
+            byte[] input = random.nextBoolean() ? v1(random) : v2(random);
+            if (random.nextInt(3) == 0) mutate(random, input);
+            compare(input, header);
+        }
+    }
+
+    private static boolean isV2(byte versionCommand, byte[] input) {
+        return input.length > 12 && input[12] == versionCommand
+                && Arrays.equals(Arrays.copyOf(input, 12), V2_SIGNATURE);
+    }
+
+    private static void compare(byte[] input, ProxyHeader header) throws UnknownHostException {
+        String description = describe(input);
+        int result = ProxyHeaderParser.parse(Unpooled.wrappedBuffer(input), header);
+
+        EmbeddedChannel netty = new EmbeddedChannel(new HAProxyMessageDecoder());
+        HAProxyMessage message;
+        try {
+            netty.writeInbound(Unpooled.wrappedBuffer(input));
+            message = netty.readInbound();
+        } catch (DecoderException e) {
+            assertEquals(ProxyHeaderParser.INVALID, result, description + " rejected by Netty: " + e);
+            return;
+        } finally {
+            netty.finishAndReleaseAll();
+        }
+        if (message == null) {
+            if (isV2((byte) 0xFF, input)) {
+                // Netty reads version byte 0xFF as its own "not yet known" marker and waits forever,
+                // we reject it once the declared length is in
+                assertTrue(result <= 0, description);
+                return;
+            }
+            assertEquals(ProxyHeaderParser.NEEDS_MORE_DATA, result, description);
+            return;
+        }
+
+        try {
+            assertTrue(result > 0, description + " accepted by Netty as " + message);
+            assertEquals(message.protocolVersion() == HAProxyProtocolVersion.V1 ? 1 : 2, header.getVersion(), description);
+            assertEquals(message.command() == HAProxyCommand.LOCAL, header.isLocal(), description);
+            HAProxyProxiedProtocol.AddressFamily family = message.proxiedProtocol().addressFamily();
+            boolean inet = family == HAProxyProxiedProtocol.AddressFamily.AF_IPv4
+                    || family == HAProxyProxiedProtocol.AddressFamily.AF_IPv6;
+            if (message.command() == HAProxyCommand.PROXY && inet) {
+                assertEquals(new InetSocketAddress(InetAddress.getByName(message.sourceAddress()), message.sourcePort()),
+                        header.sourceAddress(), description);
+                assertEquals(new InetSocketAddress(InetAddress.getByName(message.destinationAddress()),
+                        message.destinationPort()), header.destinationAddress(), description);
+                assertEquals(!message.tlvs().isEmpty(), header.hasTlvs(), description);
+            } else {
+                assertNull(header.sourceAddress(), description);
+            }
+        } finally {
+            message.release();
+        }
+    }
+
+    private static byte[] v1(Random random) {
+        StringBuilder sb = new StringBuilder("PROXY ");
+        int kind = random.nextInt(10);
+        if (kind == 0) {
+            sb.append("UNKNOWN");
+            if (random.nextBoolean()) sb.append(" 1.2.3.4 5.6.7.8 1 2");
+        } else if (kind < 6) {
+            sb.append("TCP4 ").append(ipv4(random)).append(' ').append(ipv4(random));
+            sb.append(' ').append(port(random)).append(' ').append(port(random));
+        } else {
+            sb.append("TCP6 ").append(ipv6(random)).append(' ').append(ipv6(random));
+            sb.append(' ').append(port(random)).append(' ').append(port(random));
+        }
+        if (random.nextInt(20) == 0) sb.append(' ');
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String ipv4(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) sb.append('.');
+            int octet = random.nextInt(10) == 0 ? random.nextInt(300) : random.nextInt(256);
+            if (random.nextInt(20) == 0) sb.append('0');
+            sb.append(octet);
+        }
+        return sb.toString();
+    }
+
+    private static String ipv6(Random random) {
+        int[] groups = new int[8];
+        for (int i = 0; i < 8; i++) {
+            groups[i] = random.nextInt(4) == 0 ? 0 : random.nextInt(0x10000);
+        }
+        boolean embedded = random.nextInt(5) == 0;
+        int count = embedded ? 6 : 8;
+        StringBuilder sb = new StringBuilder();
+        int gapStart = -1, gapLength = 0;
+        if (random.nextBoolean()) {
+            gapStart = random.nextInt(count);
+            gapLength = 1 + random.nextInt(count - gapStart);
+        }
+        for (int i = 0; i < count; i++) {
+            if (i == gapStart) {
+                sb.append("::");
+                i += gapLength - 1;
+                continue;
+            }
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':') sb.append(':');
+            String hex = Integer.toHexString(groups[i]);
+            sb.append(random.nextBoolean() ? hex : hex.toUpperCase());
+        }
+        if (embedded) {
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ':') sb.append(':');
+            sb.append(ipv4(random));
+        }
+        return sb.toString();
+    }
+
+    private static String port(Random random) {
+        int port = random.nextInt(10) == 0 ? random.nextInt(70000) : random.nextInt(65536);
+        return random.nextInt(20) == 0 ? "0" + port : Integer.toString(port);
+    }
+
+    private static byte[] v2(Random random) {
+        int[] families = {0x00, 0x11, 0x12, 0x21, 0x22, 0x31, 0x32};
+        int family = random.nextInt(10) == 0 ? random.nextInt(256) : families[random.nextInt(families.length)];
+        int verCmd = random.nextInt(10) == 0 ? random.nextInt(256) : 0x20 | random.nextInt(2);
+        int addressLength;
+        switch (family >>> 4) {
+            case 1: addressLength = 12; break;
+            case 2: addressLength = 36; break;
+            case 3: addressLength = 216; break;
+            default: addressLength = 0; break;
+        }
+        if (random.nextInt(10) == 0) addressLength = random.nextInt(40);
+        int tlvs = random.nextInt(3) == 0 ? 3 + random.nextInt(20) : 0;
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeBytes(V2_SIGNATURE).writeByte(verCmd).writeByte(family).writeShort(addressLength + tlvs);
+        byte[] address = new byte[addressLength];
+        random.nextBytes(address);
+        buf.writeBytes(address);
+        if (tlvs > 0) {
+            buf.writeByte(0x04).writeShort(tlvs - 3).writeZero(tlvs - 3);
+        }
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    private static void mutate(Random random, byte[] input) {
+        int n = 1 + random.nextInt(3);
+        for (int i = 0; i < n; i++) {
+            int index = random.nextInt(input.length);
+            switch (random.nextInt(3)) {
+                case 0: input[index] = (byte) random.nextInt(256); break;
+                case 1: input[index] = (byte) " :.0aF\r\n".charAt(random.nextInt(8)); break;
+                default: input[index] = (byte) ('0' + random.nextInt(10)); break;
+            }
+        }
+    }
+
+    private static String describe(byte[] input) {
+        if (input.length > 0 && input[0] == 'P') {
+            return '"' + new String(input, StandardCharsets.ISO_8859_1).replace("\r", "\\r").replace("\n", "\\n") + '"';
+        }
+        return io.netty.buffer.ByteBufUtil.hexDump(input);
+    }
+}
@@ -0,0 +1,88 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolException;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProxyNodeStatsTest {
+    private static final InetSocketAddress NODE_A = new InetSocketAddress("10.0.0.1", 40000);
+    private static final InetSocketAddress NODE_B = new InetSocketAddress("10.0.0.2", 40000);
+
+    @BeforeEach
+    void reset() {
+        ProxyNodeStats.reset();
+    }
+
+    private static EmbeddedChannel channel(SocketAddress remote) {
+        return new EmbeddedChannel() {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return remote;
+            }
+        };
+    }
+
+    @Test
+    void detector() {
+        ProxyWhitelist whitelist = new ProxyWhitelist(Arrays.asList(new CIDR(NODE_A.getAddress(), 8)));
+        for (int i = 0; i < 3; i++) {
+            EmbeddedChannel ch = channel(i == 2 ? NODE_B : NODE_A);
+            ch.pipeline().addLast("haproxy-detector", new HAProxyDetectorHandler(null, null, whitelist));
+            ch.writeInbound(Unpooled.copiedBuffer("PROXY TCP4 203.0.113.9 10.0.0.1 40000 25565\r\n",
+                    StandardCharsets.US_ASCII));
+            ch.finishAndReleaseAll();
+        }
+        ProxyNodeStats.Node a = ProxyNodeStats.node(NODE_A);
+        assertEquals(2, a.connections.sum());
+        assertEquals(2, a.v1.sum());
+        assertEquals(0, a.v2.sum());
+        assertEquals(2 * 45, a.bytesInspected.sum());
+        assertEquals(2, ProxyNodeStats.getNodeCount());
+
+        List<String> report = ProxyNodeStats.report();
+        assertTrue(report.get(1).contains("10.0.0.1"), report.toString());
+        assertTrue(report.get(2).contains("10.0.0.2"), report.toString());
+    }
+
+    @Test
+    void decodeFailure() {
+        EmbeddedChannel ch = channel(NODE_A);
+        HAProxyMessageDecoder decoder = new HAProxyMessageDecoder();
+        ch.pipeline().addLast("haproxy-decoder", decoder);
+        RealAddressRecorder.install(ch.pipeline(), decoder);
+        // a real event loop deregisters the channel only after the exception has gone down the pipeline,
+        // while EmbeddedChannel tears the pipeline down inside close(), so fire it by hand
+        ch.pipeline().fireExceptionCaught(new HAProxyProtocolException("invalid header"));
+        assertThrows(HAProxyProtocolException.class, ch::checkException);
+        ch.finishAndReleaseAll();
+        assertEquals(1, ProxyNodeStats.node(NODE_A).failures.sum());
+    }
+
+    @Test
+    void bounded() throws UnknownHostException {
+        for (int i = 0; i < ProxyNodeStats.MAX_NODES + 10; i++) {
+            InetAddress address = InetAddress.getByAddress(new byte[]{10, 1, (byte) (i >> 8), (byte) i});
+            ProxyNodeStats.record(new InetSocketAddress(address, 1), HAProxyProtocolVersion.V2, 28,
+                    DetectionOutcome.PROXIED);
+        }
+        assertEquals(ProxyNodeStats.MAX_NODES, ProxyNodeStats.getNodeCount());
+        ProxyNodeStats.Node other = ProxyNodeStats.node(new InetSocketAddress("10.2.0.1", 1));
+        assertNull(other.address);
+        assertEquals(10, other.connections.sum());
+        assertEquals(ProxyNodeStats.TOP_N + 1, ProxyNodeStats.report().size());
+    }
+}
@@ -0,0 +1,67 @@
+package net.andylizi.haproxydetector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyMessageEncoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import io.netty.handler.codec.haproxy.HAProxySSLTLV;
+import io.netty.handler.codec.haproxy.HAProxyTLV;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RealAddressRecorderTest {
+    @Test
+    void v1HeaderLength() {
+        String header = "PROXY TCP6 2001:db8::9 2001:db8::1 7 25565\r\n";
+        assertEquals(header.length(), decodedLength(Unpooled.copiedBuffer(header, StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void v2HeaderLength() {
+        assertRoundTrip(HAProxyProxiedProtocol.TCP4, "203.0.113.9", "10.0.0.1", Collections.emptyList());
+        assertRoundTrip(HAProxyProxiedProtocol.TCP6, "2001:db8::9", "2001:db8::1", Collections.emptyList());
+    }
+
+    @Test
+    void v2HeaderLengthWithTlvs() {
+        HAProxyTLV authority = new HAProxyTLV(HAProxyTLV.Type.PP2_TYPE_AUTHORITY,
+                Unpooled.copiedBuffer("play.example.org", StandardCharsets.US_ASCII));
+        HAProxyTLV version = new HAProxyTLV(HAProxyTLV.Type.PP2_TYPE_SSL_VERSION,
+                Unpooled.copiedBuffer("TLSv1.3", StandardCharsets.US_ASCII));
+        HAProxySSLTLV ssl = new HAProxySSLTLV(0, (byte) 0x01, Collections.singletonList(version));
+        assertRoundTrip(HAProxyProxiedProtocol.TCP4, "203.0.113.9", "10.0.0.1", Arrays.asList(authority, ssl));
+    }
+
+    private static void assertRoundTrip(HAProxyProxiedProtocol protocol, String source, String destination,
+                                        List<HAProxyTLV> tlvs) {
+        EmbeddedChannel encoder = new EmbeddedChannel(HAProxyMessageEncoder.INSTANCE);
+        assertTrue(encoder.writeOutbound(new HAProxyMessage(HAProxyProtocolVersion.V2, HAProxyCommand.PROXY,
+                protocol, source, destination, 40000, 25565, tlvs)));
+        ByteBuf encoded = encoder.readOutbound();
+        assertEquals(encoded.readableBytes(), decodedLength(encoded));
+        encoder.finishAndReleaseAll();
+    }
+
+    private static int decodedLength(ByteBuf header) {
+        EmbeddedChannel ch = new EmbeddedChannel(new HAProxyMessageDecoder());
+        assertTrue(ch.writeInbound(header));
+        HAProxyMessage message = ch.readInbound();
+        try {
+            return RealAddressRecorder.headerLength(message);
+        } finally {
+            message.release();
+            ch.finishAndReleaseAll();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package net.andylizi.haproxydetector;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RealAddressServiceTest {
+    private static final InetSocketAddress PROXY = new InetSocketAddress("127.0.0.1", 51000);
+
+    @AfterEach
+    void clear() {
+        RealAddressService.clear();
+    }
+
+    private static EmbeddedChannel channel() {
+        return new EmbeddedChannel() {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return PROXY;
+            }
+        };
+    }
+
+    @Test
+    void lookup() {
+        EmbeddedChannel ch = channel();
+        ch.pipeline().addLast("haproxy-decoder", new HAProxyMessageDecoder());
+        RealAddressRecorder.install(ch.pipeline(), "haproxy-decoder");
+        ch.writeInbound(Unpooled.copiedBuffer("PROXY TCP4 203.0.113.9 10.0.0.1 40000 25565\r\n",
+                StandardCharsets.US_ASCII));
+        assertNull(ch.pipeline().get(RealAddressRecorder.class));
+
+        ProxiedConnection connection = RealAddressService.get(ch);
+        assertNotNull(connection);
+        assertEquals(PROXY, connection.getProxyAddress());
+        InetSocketAddress real = new InetSocketAddress("203.0.113.9", 40000);
+        assertEquals(real, connection.getRealAddress());
+        assertEquals(1, connection.getVersion());
+        assertFalse(connection.hasTlvs());
+
+        UUID player = UUID.randomUUID();
+        assertNull(RealAddressService.get(player));
+        assertSame(connection, RealAddressService.bind(player, ch));
+        assertSame(connection, RealAddressService.get(player));
+
+        ch.finishAndReleaseAll();
+        assertNull(RealAddressService.get(player));
+        // bound after the channel had already closed
+        assertSame(connection, RealAddressService.bind(player, ch));
+        assertNull(RealAddressService.get(player));
+    }
+
+    @Test
+    void sameRealAddress() {
+        // two pending connections reporting the same ip:port, e.g. behind a proxy that reuses ports
+        ProxiedConnection a = new ProxiedConnection(PROXY, new InetSocketAddress("203.0.113.9", 40000), 2, false);
+        ProxiedConnection b = new ProxiedConnection(PROXY, new InetSocketAddress("203.0.113.9", 40000), 2, false);
+        EmbeddedChannel chA = channel();
+        EmbeddedChannel chB = channel();
+        RealAddressService.record(chA, a);
+        RealAddressService.record(chB, b);
+
+        UUID playerA = UUID.randomUUID();
+        UUID playerB = UUID.randomUUID();
+        assertSame(a, RealAddressService.bind(playerA, chA));
+        assertSame(b, RealAddressService.bind(playerB, chB));
+        assertSame(a, RealAddressService.get(playerA));
+        assertSame(b, RealAddressService.get(playerB));
+
+        chA.finishAndReleaseAll();
+        assertNull(RealAddressService.get(playerA));
+        assertSame(b, RealAddressService.get(playerB));
+        chB.finishAndReleaseAll();
+    }
+
+    @Test
+    void direct() {
+        EmbeddedChannel ch = channel();
+        assertNull(RealAddressService.get(ch));
+        assertFalse(ch.hasAttr(io.netty.util.AttributeKey.valueOf("haproxydetector:proxied-connection")));
+        assertNull(RealAddressService.bind(UUID.randomUUID(), ch));
+        assertNull(RealAddressService.bind(UUID.randomUUID(), null));
+        ch.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,143 @@
+package net.andylizi.haproxydetector;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedBanTableTest {
+    private static final InetSocketAddress LISTENER = new InetSocketAddress("0.0.0.0", 25577);
+    private static final InetSocketAddress STRANGER = new InetSocketAddress("203.0.113.7", 40000);
+    /** trusted only by the listener's own whitelist, not the global one */
+    private static final InetSocketAddress BALANCER = new InetSocketAddress("10.9.0.1", 40000);
+
+    private final DetectorConfig previousConfig = DetectorConfig.config;
+
+    @AfterEach
+    void restore() {
+        SharedBanTable.stop();
+        DetectorConfig.config = previousConfig;
+    }
+
+    private static void start(Path dir) throws IOException {
+        Files.write(dir.resolve("balancers.conf"), Arrays.asList("10.9.0.0/16"), StandardCharsets.UTF_8);
+        Path config = dir.resolve("config.conf");
+        Files.write(config, Arrays.asList(
+                "shared-table.path=bans.dat",
+                "shared-table.slots=1024",
+                "shared-table.rate-limit=2",
+                "shared-table.ban-seconds=10",
+                "listener.lb.bind=*:25577",
+                "listener.lb.whitelist=balancers.conf"), StandardCharsets.UTF_8);
+        DetectorConfig.config = DetectorConfig.load(config);
+        SharedBanTable.start(Logger.getLogger("SharedBanTableTest"), dir);
+    }
+
+    @Test
+    void rateLimited(@TempDir Path dir) throws IOException {
+        start(dir);
+        long now = System.currentTimeMillis();
+        assertTrue(SharedBanTable.admit(channel(STRANGER), now));
+        assertTrue(SharedBanTable.admit(channel(STRANGER), now));
+        assertFalse(SharedBanTable.admit(channel(STRANGER), now));
+        // banned now, so a new second doesn't help
+        assertFalse(SharedBanTable.admit(channel(STRANGER), now + 1000));
+    }
+
+    @Test
+    void banExpires(@TempDir Path dir) throws IOException {
+        start(dir);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            SharedBanTable.admit(channel(STRANGER), now);
+        }
+        assertFalse(SharedBanTable.admit(channel(STRANGER), now + 9_000));
+        assertTrue(SharedBanTable.admit(channel(STRANGER), now + 10_000));
+    }
+
+    @Test
+    void listenerWhitelistExempt(@TempDir Path dir) throws IOException {
+        start(dir);
+        assertFalse(ProxyWhitelist.check(BALANCER));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(SharedBanTable.admit(channel(BALANCER), now));
+        }
+    }
+
+    @Test
+    void sharedBetweenMappings(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("bans.dat");
+        SharedBanTable a = new SharedBanTable(file, 1024);
+        SharedBanTable b = new SharedBanTable(file, 4096); // size is taken from the existing file
+        try {
+            long now = System.currentTimeMillis();
+            long key = SharedBanTable.keyOf(InetAddress.getByName("203.0.113.7"));
+            assertEquals(-1, b.find(key, now, false));
+
+            long slotA = a.find(key, now, true);
+            assertTrue(slotA >= 0);
+            a.ban(slotA, now + 60_000);
+            assertEquals(1, b.getVersion());
+
+            long slotB = b.find(key, now, false);
+            assertTrue(slotB >= 0);
+            assertEquals(1, b.hit(slotB, now));
+            assertEquals(2, a.hit(slotA, now));
+            assertEquals(1, a.hit(slotA, now + 1000));
+
+            b.ban(slotB, now + 1000); // shorter bans never shorten an existing one
+            assertEquals(1, a.getVersion());
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void closed(@TempDir Path dir) throws IOException {
+        SharedBanTable table = new SharedBanTable(dir.resolve("bans.dat"), 1024);
+        long now = System.currentTimeMillis();
+        long key = SharedBanTable.keyOf(InetAddress.getByName("203.0.113.7"));
+        long slot = table.find(key, now, true);
+        table.close();
+        assertThrows(IllegalStateException.class, () -> table.find(key, now, false));
+        assertThrows(IllegalStateException.class, () -> table.hit(slot, now));
+        assertThrows(IllegalStateException.class, () -> table.ban(slot, now + 1000));
+        assertThrows(IllegalStateException.class, table::getVersion);
+    }
+
+    @Test
+    void keys() throws IOException {
+        assertNotEquals(SharedBanTable.keyOf(InetAddress.getByName("10.0.0.1")),
+                SharedBanTable.keyOf(InetAddress.getByName("10.0.0.2")));
+        assertNotEquals(SharedBanTable.keyOf(InetAddress.getByName("2001:db8::1")),
+                SharedBanTable.keyOf(InetAddress.getByName("2001:db8::1:0:0:0")));
+    }
+
+    private static EmbeddedChannel channel(SocketAddress remote) {
+        return new EmbeddedChannel() {
+            @Override
+            protected SocketAddress localAddress0() {
+                return LISTENER;
+            }
+
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return remote;
+            }
+        };
+    }
+}
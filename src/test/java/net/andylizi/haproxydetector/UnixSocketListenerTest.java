@@ -0,0 +1,98 @@
+package net.andylizi.haproxydetector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class UnixSocketListenerTest {
+    private static final Logger LOGGER = Logger.getLogger("UnixSocketListenerTest");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void whitelistRules() throws IOException {
+        Path file = dir.resolve("whitelist.conf");
+        Files.write(file, Arrays.asList("127.0.0.1", "uid:1001", "gid:998"), StandardCharsets.UTF_8);
+        ProxyWhitelist whitelist = ProxyWhitelist.load(file).orElseThrow(AssertionError::new);
+        assertEquals(3, whitelist.size());
+        assertTrue(whitelist.matches(new UnixPeer(1, 1001, new int[]{1001})));
+        assertTrue(whitelist.matches(new UnixPeer(1, 1002, new int[]{1002, 998})));
+        assertFalse(whitelist.matches(new UnixPeer(1, 0, new int[]{0})));
+
+        Files.write(file, Arrays.asList("uid:haproxy"), StandardCharsets.UTF_8);
+        assertThrows(IllegalArgumentException.class, () -> ProxyWhitelist.load(file));
+    }
+
+    @Test
+    void peerCredentials() throws Exception {
+        assumeTrue(Epoll.isAvailable(), "epoll unavailable");
+        int uid = (Integer) Files.getAttribute(dir, "unix:uid");
+        assertTrue(connect(uid, "uid:" + uid));
+        assertFalse(connect(uid, "uid:" + (uid + 1)));
+    }
+
+    /**
+     * 以给定的白名单规则启动监听器并连接一次，返回连接是否被交给子通道初始化器。
+     */
+    private boolean connect(int uid, String rule) throws Exception {
+        ProxyWhitelist previousWhitelist = ProxyWhitelist.whitelist;
+        DetectorConfig previous = DetectorConfig.config;
+        EventLoopGroup client = new EpollEventLoopGroup(1);
+        try {
+            Files.write(dir.resolve("whitelist.conf"), Arrays.asList(rule), StandardCharsets.UTF_8);
+            ProxyWhitelist.whitelist = ProxyWhitelist.load(dir.resolve("whitelist.conf")).orElse(null);
+            Files.write(dir.resolve("config.conf"), Arrays.asList("unix-socket.path=test.sock"), StandardCharsets.UTF_8);
+            DetectorConfig.config = DetectorConfig.load(dir.resolve("config.conf"));
+
+            BlockingQueue<UnixPeer> peers = new ArrayBlockingQueue<>(1);
+            UnixSocketListener.start(LOGGER, dir, new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    peers.add(UnixPeer.of(ch));
+                }
+            });
+            assertTrue(UnixSocketListener.isEnabled());
+
+            Channel ch = new Bootstrap().group(client).channel(EpollDomainSocketChannel.class)
+                    .handler(new ChannelInboundHandlerAdapter())
+                    .connect(new DomainSocketAddress(dir.resolve("test.sock").toFile())).sync().channel();
+            UnixPeer peer = peers.poll(500, TimeUnit.MILLISECONDS);
+            if (peer != null) {
+                assertTrue(ch.isActive());
+                assertEquals(uid, peer.getUid());
+            } else {
+                assertTrue(ch.closeFuture().await(1, TimeUnit.SECONDS));
+            }
+            ch.close().sync();
+            return peer != null;
+        } finally {
+            UnixSocketListener.stop();
+            client.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            DetectorConfig.config = previous;
+            ProxyWhitelist.whitelist = previousWhitelist;
+        }
+    }
+}
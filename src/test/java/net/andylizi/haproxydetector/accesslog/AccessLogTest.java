@@ -0,0 +1,87 @@
+package net.andylizi.haproxydetector.accesslog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import net.andylizi.haproxydetector.DetectorConfig;
+import net.andylizi.haproxydetector.ProxiedConnection;
+import net.andylizi.haproxydetector.ProxyHeaderDecoder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessLogTest {
+    private static final Logger LOGGER = Logger.getLogger("AccessLogTest");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void records() throws IOException, InterruptedException {
+        DetectorConfig previous = DetectorConfig.config;
+        try {
+            Path config = dir.resolve("config.conf");
+            Files.write(config, Arrays.asList("access-log.enabled=true", "access-log.directory=logs"),
+                    StandardCharsets.UTF_8);
+            DetectorConfig.config = DetectorConfig.load(config);
+            AccessLog.start(LOGGER, dir);
+
+            EmbeddedChannel ch = new EmbeddedChannel() {
+                @Override
+                protected SocketAddress remoteAddress0() {
+                    return new InetSocketAddress("127.0.0.1", 51000);
+                }
+            };
+            ch.pipeline().addLast("haproxy-decoder", new ChannelInboundHandlerAdapter());
+            AccessLogHandler.install(ch.pipeline(), "haproxy-decoder");
+            assertTrue(ch.writeInbound(decode("PROXY TCP4 203.0.113.9 10.0.0.1 40000 25565\r\n")));
+            assertNull(ch.pipeline().get(AccessLogHandler.class));
+
+            ch.pipeline().addFirst(new ProxyHeaderDecoder() {
+                @Override
+                protected void proxied(ChannelHandlerContext ctx, ProxiedConnection connection) {
+                }
+            });
+            ch.writeInbound(Unpooled.copiedBuffer("PROXY TCP6 2001:db8:0:0:1:0:0:9 ::1 40000 25565\r\n",
+                    StandardCharsets.US_ASCII));
+
+            Thread.sleep(LoopBuffer.FLUSH_DELAY_MILLIS + 100);
+            ch.runScheduledPendingTasks();
+            assertTrue(ch.finishAndReleaseAll());
+            AccessLog.stop();
+
+            Path file = dir.resolve("logs").resolve(AccessLogWriter.fileName(LocalDate.now(ZoneOffset.UTC)));
+            List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+            assertEquals(2, lines.size());
+            assertTrue(lines.get(0).matches("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z "
+                    + "127\\.0\\.0\\.1:51000 203\\.0\\.113\\.9:40000 10\\.0\\.0\\.1:25565 default"), lines.get(0));
+            assertTrue(lines.get(1).endsWith(" 127.0.0.1:51000 [2001:db8::1:0:0:9]:40000 [::1]:25565 default"),
+                    lines.get(1));
+        } finally {
+            AccessLog.stop();
+            DetectorConfig.config = previous;
+        }
+    }
+
+    private static HAProxyMessage decode(String header) {
+        EmbeddedChannel decoder = new EmbeddedChannel(new HAProxyMessageDecoder());
+        decoder.writeInbound(Unpooled.copiedBuffer(header, StandardCharsets.US_ASCII));
+        return decoder.readInbound();
+    }
+}
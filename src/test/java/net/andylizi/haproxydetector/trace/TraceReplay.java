@@ -0,0 +1,169 @@
+package net.andylizi.haproxydetector.trace;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import net.andylizi.haproxydetector.CIDR;
+import net.andylizi.haproxydetector.DetectionOutcome;
+import net.andylizi.haproxydetector.DetectorStats;
+import net.andylizi.haproxydetector.HAProxyDetectorHandler;
+import net.andylizi.haproxydetector.ProxyWhitelist;
+
+/**
+ * 将捕获文件中的记录以最快速度逐条送入检测器管线，统计吞吐量与各判定结果的数量。
+ * <p>
+ * 位于测试源码中，不随插件发布：可通过 {@link TraceReplayTest} 在构建中运行，也可以在测试类路径上直接运行
+ * {@code TraceReplay <捕获文件> [重复次数]}。
+ */
+public final class TraceReplay {
+    static final InetSocketAddress TRUSTED = new InetSocketAddress("127.0.0.1", 40000);
+    static final InetSocketAddress UNTRUSTED = new InetSocketAddress("203.0.113.1", 40000);
+
+    /**
+     * 各判定结果的数量，另计重放结束时仍未作出判定与解码出错的连接。
+     */
+    public static final class Result {
+        final Map<DetectionOutcome, Long> counts = new EnumMap<>(DetectionOutcome.class);
+        long pending;
+        long decodeErrors;
+        long connections;
+        long bytes;
+        long nanos;
+
+        public long get(DetectionOutcome outcome) {
+            return counts.getOrDefault(outcome, 0L);
+        }
+
+        public long getPending() {
+            return pending;
+        }
+
+        public long getDecodeErrors() {
+            return decodeErrors;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            return String.format("%d 个连接，%d 字节，耗时 %.3f 秒，%.0f 连接/秒，%.1f MB/秒，结果 %s，未判定 %d，解码出错 %d",
+                    connections, bytes, seconds, connections / seconds, bytes / seconds / 1e6, counts, pending,
+                    decodeErrors);
+        }
+    }
+
+    public static List<TraceRecord> read(Path path) throws IOException {
+        List<TraceRecord> records = new ArrayList<>();
+        try (TraceReader reader = new TraceReader(path)) {
+            TraceRecord record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    public static Result replay(List<TraceRecord> records, int iterations) throws IOException {
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.OFF);
+
+        ProxyWhitelist oldWhitelist = ProxyWhitelist.whitelist;
+        ProxyWhitelist.whitelist = new ProxyWhitelist(Collections.singletonList(
+                new CIDR(TRUSTED.getAddress(), 32)));
+        try {
+            Result result = new Result();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (TraceRecord record : records) {
+                    replay(logger, record, result);
+                    result.connections++;
+                    result.bytes += record.getData().length;
+                }
+            }
+            result.nanos = System.nanoTime() - start;
+            return result;
+        } finally {
+            ProxyWhitelist.whitelist = oldWhitelist;
+        }
+    }
+
+    static void replay(Logger logger, TraceRecord record, Result result) {
+        ReplayChannel ch = new ReplayChannel(record.isWhitelisted() ? TRUSTED : UNTRUSTED);
+        ch.pipeline().addLast("haproxy-detector", new HAProxyDetectorHandler(logger, null));
+
+        long[] before = snapshot();
+        boolean error = false;
+        byte[] data = record.getData();
+        int offset = 0;
+        for (int i = 0; i < record.getSegmentCount() && ch.isOpen(); i++) {
+            int len = record.getSegmentLength(i);
+            try {
+                ch.writeInbound(Unpooled.wrappedBuffer(data, offset, len));
+            } catch (RuntimeException e) {
+                error = true;
+                break;
+            }
+            offset += len;
+        }
+        ch.finishAndReleaseAll();
+
+        if (error) {
+            result.decodeErrors++;
+            return;
+        }
+        long[] after = snapshot();
+        DetectionOutcome[] outcomes = DetectionOutcome.values();
+        for (int i = 0; i < outcomes.length; i++) {
+            if (after[i] != before[i]) {
+                result.counts.merge(outcomes[i], 1L, Long::sum);
+                return;
+            }
+        }
+        result.pending++;
+    }
+
+    private static long[] snapshot() {
+        DetectionOutcome[] outcomes = DetectionOutcome.values();
+        long[] counts = new long[outcomes.length];
+        for (int i = 0; i < outcomes.length; i++) {
+            counts[i] = DetectorStats.get(outcomes[i]);
+        }
+        return counts;
+    }
+
+    static final class ReplayChannel extends EmbeddedChannel {
+        private final SocketAddress remoteAddress;
+
+        ReplayChannel(SocketAddress remoteAddress) {
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        protected SocketAddress remoteAddress0() {
+            return remoteAddress;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("用法：TraceReplay <捕获文件> [重复次数]");
+            System.exit(1);
+        }
+        List<TraceRecord> records = read(Paths.get(args[0]));
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        replay(records, Math.max(1, iterations / 10)); // warm-up
+        System.out.println(replay(records, iterations));
+    }
+}
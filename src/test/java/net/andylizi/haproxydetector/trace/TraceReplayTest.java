@@ -0,0 +1,157 @@
+package net.andylizi.haproxydetector.trace;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import io.netty.buffer.Unpooled;
+import net.andylizi.haproxydetector.CIDR;
+import net.andylizi.haproxydetector.DetectorConfig;
+import net.andylizi.haproxydetector.ProxyWhitelist;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import static net.andylizi.haproxydetector.DetectionOutcome.*;
+import static net.andylizi.haproxydetector.trace.TraceReplay.UNTRUSTED;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraceReplayTest {
+    static final byte[] HANDSHAKE = {
+            0x10, 0x00, (byte) 0xF9, 0x05, 0x09, 'l', 'o', 'c', 'a', 'l', 'h', 'o', 's', 't', 0x63, (byte) 0xDD, 0x01
+    };
+    static final byte[] V2_SIGNATURE = {
+            0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A
+    };
+
+    static byte[] v2(int command) {
+        byte[] header = new byte[28];
+        System.arraycopy(V2_SIGNATURE, 0, header, 0, 12);
+        header[12] = (byte) (0x20 | command);
+        header[13] = 0x11; // TCP over IPv4
+        header[15] = 12;
+        byte[] body = {1, 2, 3, 4, 5, 6, 7, 8, 0x04, (byte) 0xD2, 0x63, (byte) 0xDD};
+        System.arraycopy(body, 0, header, 16, body.length);
+        return header;
+    }
+
+    /** {@link #v2(int)} with a PP2_TYPE_CRC32C TLV carrying {@code crc} */
+    static byte[] v2WithChecksum(int crc) {
+        byte[] header = Arrays.copyOf(v2(1), 35);
+        header[15] = 19;
+        header[28] = 0x03;
+        header[30] = 4;
+        header[31] = (byte) (crc >>> 24);
+        header[32] = (byte) (crc >>> 16);
+        header[33] = (byte) (crc >>> 8);
+        header[34] = (byte) crc;
+        return header;
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = new byte[a.length + b.length];
+        System.arraycopy(a, 0, out, 0, a.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    static TraceRecord record(boolean whitelisted, byte[] data, int... splits) {
+        int[] lengths = new int[splits.length + 1];
+        int prev = 0;
+        for (int i = 0; i < splits.length; i++) {
+            lengths[i] = splits[i] - prev;
+            prev = splits[i];
+        }
+        lengths[splits.length] = data.length - prev;
+        return new TraceRecord(whitelisted, lengths, data);
+    }
+
+    @Test
+    void roundTripAndReplay(@TempDir Path dir) throws IOException {
+        byte[] v1 = concat("PROXY TCP4 1.2.3.4 5.6.7.8 1234 25565\r\n".getBytes(StandardCharsets.US_ASCII), HANDSHAKE);
+        byte[] local = new byte[16];
+        System.arraycopy(v2(0), 0, local, 0, 16);
+        local[13] = 0x00;
+        local[15] = 0;
+
+        Path file = dir.resolve("test.trace");
+        TraceWriter writer = new TraceWriter(Logger.getAnonymousLogger(), file, 64);
+        writer.submit(record(false, HANDSHAKE));
+        writer.submit(record(true, v1, 5, 15));
+        writer.submit(record(true, concat(v2(1), HANDSHAKE), 8, 16, 28));
+        writer.submit(record(false, v2(1), 12));
+        writer.submit(record(false, "GET / HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        writer.submit(record(false, new byte[]{(byte) 0xFE, 0x01, (byte) 0xFA, 0x00, 0x0B, 0x00, 'M', 0x00, 'C',
+                0x00, '|', 0x00, 'P', 0x00, 'i', 0x00, 'n', 0x00, 'g'}));
+        writer.submit(record(true, local));
+        writer.submit(record(false, new byte[]{0x10, 0x00, (byte) 0xF9}));
+        writer.submit(record(true, "PROXY TCP4 1.2.3.4 999.6.7.8 1234 25565\r\n".getBytes(StandardCharsets.US_ASCII)));
+        writer.close();
+        assertEquals(9, writer.getWritten());
+        assertEquals(0, writer.getDropped());
+
+        List<TraceRecord> records = TraceReplay.read(file);
+        assertEquals(9, records.size());
+        assertArrayEquals(v1, records.get(1).getData());
+        assertEquals(3, records.get(1).getSegmentCount());
+        assertEquals(10, records.get(1).getSegmentLength(1));
+
+        TraceReplay.Result result = TraceReplay.replay(records, 1);
+        assertEquals(3, result.get(DIRECT));
+        assertEquals(2, result.get(PROXIED));
+        assertEquals(1, result.get(REJECTED));
+        assertEquals(1, result.get(HEALTH_CHECK));
+        assertEquals(1, result.getPending());
+        assertEquals(1, result.getDecodeErrors());
+    }
+
+    @Test
+    void captureUsesListenerWhitelist(@TempDir Path dir) throws IOException {
+        ProxyWhitelist listener = new ProxyWhitelist(Collections.singletonList(new CIDR(UNTRUSTED.getAddress(), 32)));
+        Path file = dir.resolve("test.trace");
+        TraceWriter writer = new TraceWriter(Logger.getAnonymousLogger(), file, 64);
+        for (ProxyWhitelist whitelist : Arrays.asList(listener, ProxyWhitelist.whitelist)) {
+            ConnectionCapture capture = new ConnectionCapture(writer, 64);
+            capture.append(Unpooled.wrappedBuffer(HANDSHAKE));
+            capture.finish(whitelist, new TraceReplay.ReplayChannel(UNTRUSTED));
+        }
+        writer.close();
+
+        List<TraceRecord> records = TraceReplay.read(file);
+        assertTrue(records.get(0).isWhitelisted());
+        assertFalse(records.get(1).isWhitelisted());
+    }
+
+    @Test
+    void replayCorrupted(@TempDir Path dir) throws IOException {
+        DetectorConfig previous = DetectorConfig.config;
+        Path config = dir.resolve("config.conf");
+        Files.write(config, Arrays.asList("proxy-protocol.verify-crc32c=true"), StandardCharsets.UTF_8);
+        DetectorConfig.config = DetectorConfig.load(config);
+        try {
+            TraceReplay.Result result = TraceReplay.replay(Arrays.asList(
+                    record(true, concat(v2WithChecksum(0), HANDSHAKE)),
+                    record(true, concat(v2(1), HANDSHAKE))), 1);
+            assertEquals(1, result.get(CORRUPTED));
+            assertEquals(1, result.get(PROXIED));
+        } finally {
+            DetectorConfig.config = previous;
+        }
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "haproxydetector.trace", matches = ".+")
+    void replayCapturedTrace() throws IOException {
+        List<TraceRecord> records = TraceReplay.read(Paths.get(System.getProperty("haproxydetector.trace")));
+        int iterations = Integer.getInteger("haproxydetector.trace.iterations", 1);
+        TraceReplay.Result result = TraceReplay.replay(records, iterations);
+        System.out.println(result);
+        assertEquals((long) records.size() * iterations, result.connections);
+    }
+}